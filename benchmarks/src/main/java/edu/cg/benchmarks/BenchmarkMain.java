@@ -0,0 +1,25 @@
+package edu.cg.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks like org.openjdk.jmh.Main, but writes the results as JSON by default
+ * so that runs of different versions of the tracer can be compared.
+ */
+public class BenchmarkMain {
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue())
+            builder.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue())
+            builder.result(DEFAULT_RESULT_FILE);
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+package edu.cg.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.Scene;
+import edu.cg.scene.acceleration.Accelerator;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Material;
+import edu.cg.scene.objects.Plain;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Closest hit queries on scenes of growing size: random boxes and spheres in a cube above a floor plain,
+ * queried by rays from a camera outside the cube, with every accelerator (LINEAR measures the linear scan).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindMinIntersectionBenchmark {
+    private static final int NUM_RAYS = 1024;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int numSurfaces;
+
+    @Param({"LINEAR", "BVH", "GRID", "OCTREE"})
+    public Accelerator.Kind accelerator;
+
+    private Scene scene;
+    private Ray[] rays;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(7);
+        scene = new Scene().initAccelerator(accelerator);
+        double side = Math.cbrt(numSurfaces) * 2;
+        for (int i = 0; i < numSurfaces; ++i) {
+            Point p = new Point(side * random.nextDouble(), side * random.nextDouble(), side * random.nextDouble());
+            double size = 0.2 + 0.6 * random.nextDouble();
+            if (i % 2 == 0)
+                scene.addSurface(new Surface(new Sphere(p, size / 2), new Material()));
+            else
+                scene.addSurface(new Surface(new AxisAlignedBox(p, p.add(new Vec(size))), new Material()));
+        }
+        scene.addSurface(new Surface(new Plain(new Vec(0, 0, 1), new Point(0, 0, -1)), new Material()));
+        scene.buildAccelerationStructures(s -> {});
+
+        rays = new Ray[NUM_RAYS];
+        Point eye = new Point(-side, -side, side * 1.5);
+        for (int i = 0; i < NUM_RAYS; ++i) {
+            Point target = new Point(side * random.nextDouble(), side * random.nextDouble(),
+                    side * random.nextDouble());
+            rays[i] = new Ray(eye, target);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void findMinIntersection(Blackhole bh) {
+        for (Ray ray : rays)
+            bh.consume(scene.findMinIntersection(ray));
+    }
+}
@@ -0,0 +1,89 @@
+package edu.cg.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Plain;
+import edu.cg.scene.objects.Sphere;
+
+/**
+ * Single shape intersection and the refraction math. Every invocation intersects a batch of rays,
+ * roughly half of them hit the shape.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectionBenchmark {
+    private static final int NUM_RAYS = 1024;
+
+    private Ray[] rays;
+    private Vec[] normals;
+    private Sphere sphere;
+    private AxisAlignedBox box;
+    private Plain plain;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        rays = new Ray[NUM_RAYS];
+        normals = new Vec[NUM_RAYS];
+        Point source = new Point(0, 0, 5);
+        for (int i = 0; i < NUM_RAYS; ++i) {
+            Point target = new Point(4 * random.nextDouble() - 2, 4 * random.nextDouble() - 2, 0);
+            rays[i] = new Ray(source, target);
+            normals[i] = new Vec(random.nextDouble() - 0.5, random.nextDouble() - 0.5, 1).normalize();
+        }
+        sphere = new Sphere(new Point(0, 0, 0), 1.2);
+        box = new AxisAlignedBox(new Point(-1, -1, -1), new Point(1, 1, 1));
+        plain = new Plain(new Vec(0.3, 0.2, 1), new Point(0, 0, 0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void sphereIntersect(Blackhole bh) {
+        for (Ray ray : rays)
+            bh.consume(sphere.intersect(ray));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void axisAlignedBoxIntersect(Blackhole bh) {
+        for (Ray ray : rays)
+            bh.consume(box.intersect(ray));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void plainIntersect(Blackhole bh) {
+        for (Ray ray : rays)
+            bh.consume(plain.intersect(ray));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void refract(Blackhole bh) {
+        for (int i = 0; i < NUM_RAYS; ++i)
+            bh.consume(Ops.refract(rays[i].direction(), normals[i], 1.0, 1.5));
+    }
+}
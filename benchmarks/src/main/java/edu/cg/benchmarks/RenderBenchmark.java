@@ -0,0 +1,54 @@
+package edu.cg.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.cg.Scenes;
+import edu.cg.scene.Scene;
+
+/**
+ * Full frame renders of the bundled scenes (Scenes.scene1 - Scenes.scene5) with their own rendering parameters.
+ * Note that scene4 and scene5 use random materials, which are drawn once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+    @Param({"scene1", "scene2", "scene3", "scene4", "scene5"})
+    public String sceneName;
+
+    @Param({"400"})
+    public int resolution;
+
+    // primary rays traced in packets of neighbouring pixels, or one by one
+    @Param({"true", "false"})
+    public boolean usePackets;
+
+    private Scene scene;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        scene = (Scene) Scenes.class.getMethod(sceneName).invoke(null);
+        scene.initUsePackets(usePackets);
+    }
+
+    @Benchmark
+    public BufferedImage render() throws Exception {
+        return scene.render(resolution, resolution, 4.0, s -> {});
+    }
+}
@@ -0,0 +1,79 @@
+package edu.cg.scene.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event emitted at the end of every render. Only loaded by RenderMonitor, by name, when it was built
+ * (see the jfr profile of the pom) and the runtime has JFR.
+ */
+@Name("edu.cg.Render")
+@Label("Render")
+@Category("Ray Tracing")
+@Description("A scene that has been rendered")
+class RenderEvent extends jdk.jfr.Event {
+    @Label("Scene")
+    String scene;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Cancelled")
+    boolean cancelled;
+
+    @Label("Render Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long renderTime;
+
+    @Label("Primary Rays")
+    long primaryRays;
+
+    @Label("Reflection Rays")
+    long reflectionRays;
+
+    @Label("Refraction Rays")
+    long refractionRays;
+
+    @Label("Shadow Rays")
+    long shadowRays;
+
+    @Label("Intersection Tests")
+    long intersectionTests;
+
+    @Label("Intersection Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long intersectionTime;
+
+    @Label("Shading Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long shadingTime;
+
+    @Label("Tiles")
+    long tiles;
+
+    static void commit(RenderMetrics metrics) {
+        RenderEvent event = new RenderEvent();
+        if (!event.isEnabled())
+            return;
+        event.scene = metrics.getSceneName();
+        event.width = metrics.getWidth();
+        event.height = metrics.getHeight();
+        event.cancelled = metrics.isCancelled();
+        event.renderTime = metrics.getRenderNanos();
+        event.primaryRays = metrics.getPrimaryRays();
+        event.reflectionRays = metrics.getReflectionRays();
+        event.refractionRays = metrics.getRefractionRays();
+        event.shadowRays = metrics.getShadowRays();
+        event.intersectionTests = metrics.getIntersectionTestsTotal();
+        event.intersectionTime = metrics.getIntersectionNanos();
+        event.shadingTime = metrics.getShadingNanos();
+        event.tiles = metrics.getTiles();
+        event.commit();
+    }
+}
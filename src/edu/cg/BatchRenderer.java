@@ -0,0 +1,410 @@
+package edu.cg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import edu.cg.cache.RenderCache;
+import edu.cg.distributed.RenderCoordinator;
+import edu.cg.menu.SceneLoader;
+import edu.cg.scene.Scene;
+import edu.cg.scene.Tile;
+import edu.cg.scene.acceleration.Accelerator;
+
+/**
+ * Headless command line renderer: renders scene files to PNG images without opening any window.
+ * All the scenes of a batch are rendered on a single thread pool, or on worker processes (see RenderCoordinator).
+ */
+public class BatchRenderer {
+    private static final String USAGE = "Usage: BatchRenderer [options] scene.{json,rtscene}..." + System.lineSeparator() +
+            "Options:" + System.lineSeparator() +
+            "  -w, --width <pixels>          image width (default 400)" + System.lineSeparator() +
+            "  -h, --height <pixels>         image height (default 400)" + System.lineSeparator() +
+            "  --view-plain-width <width>    width of the view plain (default 4.0)" + System.lineSeparator() +
+            "  --aa <1-3>                    anti aliasing factor (default: the scene's)" + System.lineSeparator() +
+            "  --adaptive                    supersample only contrasted pixels" + System.lineSeparator() +
+            "  --depth <1-10>                max recursion level (default: the scene's)" + System.lineSeparator() +
+            "  --min-contribution <value>    terminate rays whose throughput is lower (default 0)" +
+            System.lineSeparator() +
+            "  --roulette                    terminate low contribution rays by russian roulette" +
+            System.lineSeparator() +
+            "  --light-cutoff <value>        skip the lights that together change the color of a hit point by less" +
+            System.lineSeparator() +
+            "                                (default half an 8-bit step, 0 disables)" + System.lineSeparator() +
+            "  --light-samples <n>           shade n lights per hit point, chosen at random by brightness" +
+            System.lineSeparator() +
+            "                                (default 0, every light)" + System.lineSeparator() +
+            "  --preview <scale>             render a quick preview with a ray per scale x scale pixels, ambient" +
+            System.lineSeparator() +
+            "                                and diffuse shading only, to <scene>_preview.png" + System.lineSeparator() +
+            "  --crop <x,y,w,h>              render only this rectangle of the image, to <scene>_crop_x_y_w_h.png," +
+            System.lineSeparator() +
+            "                                can be repeated" + System.lineSeparator() +
+            "  --threads <n>                 number of render threads (default: number of processors)" +
+            System.lineSeparator() +
+            "  --accelerator <kind>          linear, bvh, grid, octree or auto (default auto)" +
+            System.lineSeparator() +
+            "  --metrics                     collect and print the detailed metrics of every render" +
+            System.lineSeparator() +
+            "  --workers <host:port,...>     render on running RenderWorker processes" + System.lineSeparator() +
+            "  --spawn-workers <n>           render on n RenderWorker processes started on this machine, which" +
+            System.lineSeparator() +
+            "                                share the render threads" + System.lineSeparator() +
+            "  --cache <dir>                 serve the images rendered before from a render cache in dir" +
+            System.lineSeparator() +
+            "  --cache-size <MB>             size budget of the render cache (default 1024)" + System.lineSeparator() +
+            "  -o, --output <dir>            output directory (default outputs)" + System.lineSeparator() +
+            "  -v, --verbose                 print the log of every render";
+
+    private int width = 400;
+    private int height = 400;
+    private double viewPlainWidth = 4.0;
+    private int antiAliasingFactor = 0; //0 keeps the scene's factor
+    private boolean adaptive = false;
+    private int maxRecursionLevel = 0; //0 keeps the scene's level
+    private double minRayContribution = 0;
+    private boolean russianRoulette = false;
+    private double lightCutoff = -1; //negative keeps the scene's cutoff
+    private int lightSamples = 0; //0 keeps the scene's light samples
+    private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private Accelerator.Kind accelerator = Accelerator.Kind.AUTO;
+    private File outputDir = new File("outputs");
+    private boolean verbose = false;
+    private boolean metrics = false;
+    private List<InetSocketAddress> workers = new ArrayList<>();
+    private int spawnWorkers = 0;
+    private int previewScale = 0; //0 renders the image
+    private List<Tile> crops = new ArrayList<>();
+    private File cacheDir = null;
+    private long cacheBytes = RenderCache.DEFAULT_MAX_BYTES;
+    private List<String> sceneFiles = new ArrayList<>();
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        BatchRenderer renderer = new BatchRenderer();
+        try {
+            renderer.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(renderer.run() ? 0 : 1);
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            switch (arg) {
+            case "-w":
+            case "--width":
+                width = positiveInt(arg, value(args, ++i, arg));
+                break;
+            case "-h":
+            case "--height":
+                height = positiveInt(arg, value(args, ++i, arg));
+                break;
+            case "--view-plain-width":
+                viewPlainWidth = Double.parseDouble(value(args, ++i, arg));
+                break;
+            case "--aa":
+                antiAliasingFactor = intInRange(arg, value(args, ++i, arg), 1, 3);
+                break;
+            case "--adaptive":
+                adaptive = true;
+                break;
+            case "--depth":
+                maxRecursionLevel = intInRange(arg, value(args, ++i, arg), 1, 10);
+                break;
+            case "--min-contribution":
+                minRayContribution = Double.parseDouble(value(args, ++i, arg));
+                break;
+            case "--roulette":
+                russianRoulette = true;
+                break;
+            case "--light-cutoff":
+                lightCutoff = Double.parseDouble(value(args, ++i, arg));
+                break;
+            case "--light-samples":
+                lightSamples = positiveInt(arg, value(args, ++i, arg));
+                break;
+            case "--threads":
+                threads = positiveInt(arg, value(args, ++i, arg));
+                break;
+            case "--accelerator":
+                accelerator = accelerator(arg, value(args, ++i, arg));
+                break;
+            case "-o":
+            case "--output":
+                outputDir = new File(value(args, ++i, arg));
+                break;
+            case "--metrics":
+                metrics = true;
+                break;
+            case "--workers":
+                for (String worker : value(args, ++i, arg).split(","))
+                    workers.add(address(arg, worker));
+                break;
+            case "--spawn-workers":
+                spawnWorkers = positiveInt(arg, value(args, ++i, arg));
+                break;
+            case "--preview":
+                previewScale = intInRange(arg, value(args, ++i, arg), 1, 64);
+                break;
+            case "--crop":
+                crops.add(crop(arg, value(args, ++i, arg)));
+                break;
+            case "--cache":
+                cacheDir = new File(value(args, ++i, arg));
+                break;
+            case "--cache-size":
+                cacheBytes = positiveInt(arg, value(args, ++i, arg)) * (1L << 20);
+                break;
+            case "-v":
+            case "--verbose":
+                verbose = true;
+                break;
+            default:
+                if (arg.startsWith("-"))
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                sceneFiles.add(arg);
+            }
+        }
+        if (sceneFiles.isEmpty())
+            throw new IllegalArgumentException("No scene files were given.");
+        if (!workers.isEmpty() && spawnWorkers > 0)
+            throw new IllegalArgumentException("--workers and --spawn-workers can't be used together.");
+        if (previewScale > 0 && !crops.isEmpty())
+            throw new IllegalArgumentException("--preview and --crop can't be used together.");
+        for (Tile crop : crops)
+            if (crop.x + crop.width > width || crop.y + crop.height > height)
+                throw new IllegalArgumentException("The crop " + crop + " is not within the image " + width + "x" +
+                        height);
+    }
+
+    private static Accelerator.Kind accelerator(String option, String value) {
+        for (Accelerator.Kind kind : Accelerator.Kind.values())
+            if (kind.name().equalsIgnoreCase(value))
+                return kind;
+        throw new IllegalArgumentException(option + " must be one of linear, bvh, grid, octree and auto");
+    }
+
+    private static InetSocketAddress address(String option, String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException(option + " expects host:port addresses, got " + value);
+        return new InetSocketAddress(value.substring(0, colon),
+                intInRange(option, value.substring(colon + 1), 1, 65535));
+    }
+
+    private static Tile crop(String option, String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4)
+            throw new IllegalArgumentException(option + " expects x,y,width,height, got " + value);
+        return new Tile(intInRange(option, parts[0], 0, Integer.MAX_VALUE),
+                intInRange(option, parts[1], 0, Integer.MAX_VALUE), positiveInt(option, parts[2]),
+                positiveInt(option, parts[3]));
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int positiveInt(String option, String value) {
+        return intInRange(option, value, 1, Integer.MAX_VALUE);
+    }
+
+    private static int intInRange(String option, String value, int min, int max) {
+        try {
+            int ans = Integer.parseInt(value);
+            if (ans < min || ans > max)
+                throw new NumberFormatException();
+            return ans;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " must be an integer between " + min + " and " + max);
+        }
+    }
+
+    /**
+     * Renders all the scene files.
+     *
+     * @return true if all the scenes were rendered successfully
+     */
+    private boolean run() {
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            System.err.println("Couldn't create the folder " + outputDir);
+            return false;
+        }
+
+        RenderCoordinator coordinator = null;
+        try {
+            if (spawnWorkers > 0)
+                coordinator = RenderCoordinator.spawnLocalWorkers(spawnWorkers, Math.max(1, threads / spawnWorkers));
+            else if (!workers.isEmpty())
+                coordinator = new RenderCoordinator(workers);
+        } catch (Exception e) {
+            System.err.println("Couldn't start the render workers: " + e);
+            return false;
+        }
+
+        RenderCache cache = null;
+        try {
+            if (cacheDir != null)
+                cache = new RenderCache(cacheDir, cacheBytes);
+        } catch (IOException e) {
+            System.err.println("Couldn't open the render cache: " + e);
+            if (coordinator != null)
+                coordinator.close();
+            return false;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        boolean success = true;
+        long batchStart = System.nanoTime();
+        try {
+            for (String sceneFile : sceneFiles)
+                success &= render(sceneFile, pool, coordinator, cache);
+        } finally {
+            pool.shutdown();
+            if (coordinator != null)
+                coordinator.close();
+        }
+        System.out.println("Rendered " + sceneFiles.size() + " scenes in " + millisSince(batchStart) + "ms");
+        return success;
+    }
+
+    private boolean render(String sceneFile, ForkJoinPool pool, RenderCoordinator coordinator, RenderCache cache) {
+        String baseName = new File(sceneFile).getName().replaceFirst("\\.(json|rtscene)$", "");
+        Logger logger = verbose ? s -> System.out.println("[" + baseName + "] " + s) : s -> {};
+        try {
+            long loadStart = System.nanoTime();
+            Scene scene = SceneLoader.load(sceneFile);
+            long loadTime = millisSince(loadStart);
+
+            if (antiAliasingFactor > 0)
+                scene.initAntiAliasingFactor(antiAliasingFactor);
+            if (adaptive)
+                scene.initAdaptiveAntiAliasing(true);
+            if (maxRecursionLevel > 0)
+                scene.initMaxRecursionLevel(maxRecursionLevel);
+            if (minRayContribution > 0)
+                scene.initMinRayContribution(minRayContribution);
+            if (russianRoulette)
+                scene.initRussianRoulette(true);
+            if (lightCutoff >= 0)
+                scene.initLightCutoff(lightCutoff);
+            if (lightSamples > 0)
+                scene.initLightSamples(lightSamples);
+            scene.initAccelerator(accelerator);
+            scene.initExecutor(pool);
+            scene.initCollectMetrics(metrics);
+            if (!crops.isEmpty())
+                return renderCrops(baseName, scene, loadTime, coordinator, cache, logger);
+            if (previewScale > 0)
+                return renderPreview(baseName, scene, loadTime, logger);
+
+            long renderStart = System.nanoTime();
+            String key = cache != null ? RenderCache.key(scene, width, height, viewPlainWidth) : null;
+            BufferedImage img = cache != null ? cache.getImage(key) : null;
+            boolean cached = img != null;
+            if (!cached) {
+                img = coordinator != null ?
+                        coordinator.render(scene, width, height, viewPlainWidth, logger) :
+                        scene.render(width, height, viewPlainWidth, logger);
+                if (cache != null)
+                    cache.putImage(key, img);
+            }
+            long renderTime = millisSince(renderStart);
+
+            File output = new File(outputDir, baseName + ".png");
+            ImageIO.write(img, "png", output);
+
+            if (cached) {
+                System.out.println(baseName + ": " + width + "x" + height + ", loaded in " + loadTime +
+                        "ms, served from the render cache in " + renderTime + "ms -> " + output.getPath());
+                return true;
+            }
+
+            if (coordinator != null) {
+                System.out.println(baseName + ": " + width + "x" + height + ", loaded in " + loadTime +
+                        "ms, rendered in " + renderTime + "ms on " + coordinator.getWorkers().size() +
+                        " workers -> " + output.getPath());
+                return true;
+            }
+
+            System.out.println(baseName + ": " + width + "x" + height + ", loaded in " + loadTime + "ms, rendered in " +
+                    renderTime + "ms, " + scene.getRayCount() + " rays, " + scene.getShadowRayCount() +
+                    " shadow rays -> " + output.getPath());
+            if (verbose)
+                System.out.println("[" + baseName + "] rays per depth: " +
+                        Arrays.toString(scene.getRayCountsPerDepth()) + ", terminated rays: " +
+                        scene.getTerminatedRayCount());
+            if (metrics)
+                System.out.println(scene.getLastRenderMetrics());
+            return true;
+        } catch (Exception e) {
+            System.err.println(baseName + ": couldn't render " + sceneFile + ": " + e);
+            return false;
+        }
+    }
+
+    private boolean renderPreview(String baseName, Scene scene, long loadTime, Logger logger) throws Exception {
+        long renderStart = System.nanoTime();
+        BufferedImage img = scene.renderPreview(width, height, viewPlainWidth, previewScale, logger);
+        long renderTime = millisSince(renderStart);
+
+        File output = new File(outputDir, baseName + "_preview.png");
+        ImageIO.write(img, "png", output);
+        System.out.println(baseName + ": preview " + width + "x" + height + " at 1/" + previewScale + ", loaded in " +
+                loadTime + "ms, rendered in " + renderTime + "ms, " + scene.getRayCount() + " rays -> " +
+                output.getPath());
+        return true;
+    }
+
+    private boolean renderCrops(String baseName, Scene scene, long loadTime, RenderCoordinator coordinator,
+            RenderCache cache, Logger logger) throws Exception {
+        long renderStart = System.nanoTime();
+        List<BufferedImage> images;
+        if (cache != null) {
+            // only the tiles of the crops that were never rendered are rendered, locally
+            images = new ArrayList<>();
+            for (Tile crop : crops)
+                images.add(cache.renderCrop(scene, crop, width, height, viewPlainWidth, logger));
+        } else if (coordinator != null) {
+            images = new ArrayList<>();
+            for (Tile crop : crops)
+                images.add(coordinator.renderCrop(scene, crop, width, height, viewPlainWidth, logger));
+        } else {
+            images = scene.renderCrops(crops, width, height, viewPlainWidth, logger);
+        }
+        long renderTime = millisSince(renderStart);
+
+        long pixels = 0;
+        for (int i = 0; i < crops.size(); ++i) {
+            Tile crop = crops.get(i);
+            File output = new File(outputDir, baseName + "_crop_" + crop.x + "_" + crop.y + "_" + crop.width + "_" +
+                    crop.height + ".png");
+            ImageIO.write(images.get(i), "png", output);
+            pixels += crop.area();
+            System.out.println(baseName + ": crop " + crop.width + "x" + crop.height + " at (" + crop.x + ", " +
+                    crop.y + ") of " + width + "x" + height + " -> " + output.getPath());
+        }
+        System.out.println(baseName + ": loaded in " + loadTime + "ms, rendered " + crops.size() + " crops (" +
+                pixels + " pixels) in " + renderTime + "ms");
+        return true;
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,48 @@
+package edu.cg;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import edu.cg.menu.BinarySceneFile;
+import edu.cg.menu.GsonMaker;
+import edu.cg.menu.SceneLoader;
+import edu.cg.scene.Scene;
+
+/**
+ * Converts scene files between the JSON and the binary formats.
+ * The input may be in either format, the output format is chosen by the extension of the output file.
+ */
+public class SceneConverter {
+    private static final String USAGE = "Usage: SceneConverter <input> <output>" + System.lineSeparator() +
+            "  Writes the binary format if the output ends with " + BinarySceneFile.EXTENSION + ", JSON otherwise.";
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            long start = System.nanoTime();
+            convert(args[0], args[1]);
+            System.out.println("Converted " + args[0] + " to " + args[1] + " in " +
+                    (System.nanoTime() - start) / 1000000 + "ms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Couldn't convert " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    public static void convert(String input, String output) throws IOException {
+        Scene scene = SceneLoader.load(input);
+        if (output.endsWith(BinarySceneFile.EXTENSION)) {
+            BinarySceneFile.write(scene, output);
+        } else {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+                GsonMaker.getInstance().toJson(scene, Scene.class, writer);
+            }
+        }
+    }
+}
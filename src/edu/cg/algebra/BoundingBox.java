@@ -0,0 +1,89 @@
+package edu.cg.algebra;
+
+public class BoundingBox {
+	public final double minX, minY, minZ;
+	public final double maxX, maxY, maxZ;
+
+	public BoundingBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+
+	public BoundingBox(Point minPoint, Point maxPoint) {
+		this(minPoint.x, minPoint.y, minPoint.z, maxPoint.x, maxPoint.y, maxPoint.z);
+	}
+
+	/**
+	 * @return a box that contains nothing, the neutral element of union.
+	 */
+	public static BoundingBox empty() {
+		return new BoundingBox(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * @return a box that contains the whole space (used by unbounded shapes such as plains).
+	 */
+	public static BoundingBox infinite() {
+		return new BoundingBox(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+	}
+
+	public BoundingBox union(BoundingBox other) {
+		return new BoundingBox(Math.min(minX, other.minX), Math.min(minY, other.minY), Math.min(minZ, other.minZ),
+				Math.max(maxX, other.maxX), Math.max(maxY, other.maxY), Math.max(maxZ, other.maxZ));
+	}
+
+	public BoundingBox union(Point p) {
+		return new BoundingBox(Math.min(minX, p.x), Math.min(minY, p.y), Math.min(minZ, p.z),
+				Math.max(maxX, p.x), Math.max(maxY, p.y), Math.max(maxZ, p.z));
+	}
+
+	/**
+	 * Grows the box by delta in every direction, so rays grazing a flat box are not missed.
+	 */
+	public BoundingBox pad(double delta) {
+		return new BoundingBox(minX - delta, minY - delta, minZ - delta, maxX + delta, maxY + delta, maxZ + delta);
+	}
+
+	public boolean isEmpty() {
+		return minX > maxX | minY > maxY | minZ > maxZ;
+	}
+
+	public boolean isFinite() {
+		return Double.isFinite(minX) & Double.isFinite(minY) & Double.isFinite(minZ) &
+				Double.isFinite(maxX) & Double.isFinite(maxY) & Double.isFinite(maxZ);
+	}
+
+	public double min(int axis) {
+		return axis == 0 ? minX : (axis == 1 ? minY : minZ);
+	}
+
+	public double max(int axis) {
+		return axis == 0 ? maxX : (axis == 1 ? maxY : maxZ);
+	}
+
+	public double centroid(int axis) {
+		return 0.5 * (min(axis) + max(axis));
+	}
+
+	public double extent(int axis) {
+		return max(axis) - min(axis);
+	}
+
+	public double surfaceArea() {
+		if (isEmpty())
+			return 0;
+		double dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	@Override
+	public String toString() {
+		return "[(" + minX + ", " + minY + ", " + minZ + "), (" + maxX + ", " + maxY + ", " + maxZ + ")]";
+	}
+}
@@ -15,7 +15,7 @@ public class Ops {
 	}
 	
 	public static Vec mult(double a, Vec v) {
-		return mult(new Vec(a), v);
+		return new Vec(a*v.x, a*v.y, a*v.z);
 	}
 	
 	public static Vec mult(Vec u, Vec v) {
@@ -23,7 +23,7 @@ public class Ops {
 	}
 	
 	public static Point mult(double a, Point p) {
-		return mult(new Point(a), p);
+		return new Point(a*p.x, a*p.y, a*p.z);
 	}
 	
 	public static Point mult(Point p1, Point p2) {
@@ -47,16 +47,17 @@ public class Ops {
 	}
 	
 	public static double dist(Point p1, Point p2) {
-		return length(sub(p1, p2));
+		return Math.sqrt(distSqr(p1, p2));
 	}
 	
 	public static double distSqr(Point p1, Point p2) {
-		return lengthSqr(sub(p1, p2));
+		double dx = p1.x-p2.x, dy = p1.y-p2.y, dz = p1.z-p2.z;
+		return dx*dx + dy*dy + dz*dz;
 	}
 	
 	public static Vec normalize(Vec v) {
-		return norm(v) == 0 ? v : mult(1.0/norm(v), v);
-		//		return mult(1.0/norm(v), v);
+		double norm = norm(v);
+		return norm == 0 ? v : mult(1.0/norm, v);
 	}
 	
 	public static Vec neg(Vec v) {
@@ -77,7 +78,7 @@ public class Ops {
 	
 	public static Point add(Point p, double t, Vec v) {
 		//returns p + tv;
-		return add(p, mult(t, v));
+		return new Point(p.x + t*v.x, p.y + t*v.y, p.z + t*v.z);
 	}
 	
 	public static Vec sub(Point p1, Point p2) {
@@ -93,7 +94,7 @@ public class Ops {
 	}
 	
 	public static Vec reflect(Vec u, Vec normal) {
-		return add(u, mult(-2*dot(u, normal), normal));
+		return reflect(u, normal, new Vec());
 	}
 	
 	public static Vec refract(Vec u, Vec normal, double n1, double n2) {
@@ -102,8 +103,8 @@ public class Ops {
 		if(n1 == n2)
 			return u;
 		
-		double dot = dot(neg(u), normal);
-		dot *= dot;
+		double cosTheta1 = -dot(u, normal);
+		double dot = cosTheta1 * cosTheta1;
 		if(n1 > n2) {
 			double criticalAngle = n2 / n1;
 			criticalAngle *= criticalAngle;
@@ -111,12 +112,42 @@ public class Ops {
 				return reflect(u, normal);
 		}
 		
-		Vec b = add(u, mult(dot(neg(u), normal), normal));
-		b = normalize(b);
+		//b is the normalized projection of u on the plain perpendicular to the normal
+		double bx = u.x + cosTheta1*normal.x, by = u.y + cosTheta1*normal.y, bz = u.z + cosTheta1*normal.z;
+		double bNorm = Math.sqrt(bx*bx + by*by + bz*bz);
+		if(bNorm != 0) {
+			double inv = 1.0/bNorm;
+			bx *= inv;
+			by *= inv;
+			bz *= inv;
+		}
 		double sin2Theta2 = (n1 * n1 * (1-dot)) / (n2*n2);
 		double cos2Theta2 = 1 - sin2Theta2;
 		double sinTheta2 = Math.sqrt(sin2Theta2);
 		double cosTheta2 = Math.sqrt(cos2Theta2);
-		return add(mult(-cosTheta2, normal), mult(sinTheta2, b));
+		return new Vec(-cosTheta2*normal.x + sinTheta2*bx, -cosTheta2*normal.y + sinTheta2*by,
+				-cosTheta2*normal.z + sinTheta2*bz);
+	}
+	
+	//MARK: in place versions
+	//The following methods write their result into 'out' instead of allocating a new object.
+	//'out' may be one of the arguments.
+	
+	public static Vec cross(Vec u, Vec v, Vec out) {
+		return out.set(u.y*v.z - u.z*v.y, u.z*v.x - u.x*v.z, u.x*v.y - u.y*v.x);
+	}
+	
+	public static Vec sub(Point p1, Point p2, Vec out) {
+		return out.set(p1.x-p2.x, p1.y-p2.y, p1.z-p2.z);
+	}
+	
+	public static Point add(Point p, double t, Vec v, Point out) {
+		//out = p + tv;
+		return out.set(p.x + t*v.x, p.y + t*v.y, p.z + t*v.z);
+	}
+	
+	public static Vec reflect(Vec u, Vec normal, Vec out) {
+		double a = -2*dot(u, normal);
+		return out.set(u.x + a*normal.x, u.y + a*normal.y, u.z + a*normal.z);
 	}
 }
@@ -53,6 +53,21 @@ public class Point {
 		return sub(new Point());
 	}
 	
+	public Point set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	// this += t*v, modifies this point
+	public Point addInPlace(double t, Vec v) {
+		x += t*v.x;
+		y += t*v.y;
+		z += t*v.z;
+		return this;
+	}
+	
 	public boolean isFinite() {
 		return Ops.isFinite(this);
 	}
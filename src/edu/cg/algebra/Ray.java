@@ -10,7 +10,9 @@ public class Ray {
 	}
 	
 	public Ray(Point p0, Point p1) {
-		this(p0, p1.sub(p0).normalize());
+		//the direction is a new vector, so it's normalized in place rather than copied
+		this.source = p0;
+		this.direction = p1.sub(p0).normalizeInPlace();
 	}
 	
 	public Point source() {
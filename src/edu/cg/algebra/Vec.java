@@ -67,6 +67,71 @@ public class Vec {
 		return Ops.add(this, v);
 	}
 	
+	//MARK: in place operations
+	//These methods modify this vector and return it, so calls can be chained without allocating.
+	//Never apply them to a vector that may be shared, e.g. a normal or a material coefficient.
+	
+	public Vec set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	public Vec set(Vec v) {
+		return set(v.x, v.y, v.z);
+	}
+	
+	// this += v
+	public Vec addInPlace(Vec v) {
+		x += v.x;
+		y += v.y;
+		z += v.z;
+		return this;
+	}
+	
+	// this += a*v
+	public Vec addInPlace(double a, Vec v) {
+		x += a*v.x;
+		y += a*v.y;
+		z += a*v.z;
+		return this;
+	}
+	
+	// this += a*(u*v), where u*v is the component-wise product
+	public Vec addInPlace(double a, Vec u, Vec v) {
+		x += a*(u.x*v.x);
+		y += a*(u.y*v.y);
+		z += a*(u.z*v.z);
+		return this;
+	}
+	
+	public Vec multInPlace(double a) {
+		x *= a;
+		y *= a;
+		z *= a;
+		return this;
+	}
+	
+	public Vec multInPlace(Vec v) {
+		x *= v.x;
+		y *= v.y;
+		z *= v.z;
+		return this;
+	}
+	
+	public Vec negInPlace() {
+		x = -x;
+		y = -y;
+		z = -z;
+		return this;
+	}
+	
+	public Vec normalizeInPlace() {
+		double norm = norm();
+		return norm == 0 ? this : multInPlace(1.0/norm);
+	}
+	
 	public boolean isFinite() {
 		return Ops.isFinite(this);
 	}
@@ -75,6 +140,16 @@ public class Vec {
 		return new Color(clip(x), clip(y), clip(z));
 	}
 	
+	/**
+	 * @return the color packed as 0xRRGGBB, the same value as toColor().getRGB() without the alpha channel.
+	 */
+	public int toRGB() {
+		int r = (int)(clip(x) * 255 + 0.5);
+		int g = (int)(clip(y) * 255 + 0.5);
+		int b = (int)(clip(z) * 255 + 0.5);
+		return (r << 16) | (g << 8) | b;
+	}
+	
 	private static float clip(double val) {
 		return (float)Math.min(1, Math.max(0, val));
 	}
@@ -0,0 +1,460 @@
+package edu.cg.cache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+
+import edu.cg.Logger;
+import edu.cg.menu.GsonMaker;
+import edu.cg.scene.Scene;
+import edu.cg.scene.Tile;
+import edu.cg.scene.camera.PinholeCamera;
+import edu.cg.scene.objects.Surface;
+import edu.cg.scene.objects.TriangleMesh;
+
+/**
+ * A content addressed cache of rendered images, on disk.
+ * <p>
+ * The key of a render is a SHA-256 hash of the scene, as serialized by GsonMaker (its geometry, lights, camera
+ * and render settings), of the files it references and of the image dimensions. Whole images are stored as PNG
+ * files, and their pixels are also stored per tile of a fixed TILE_SIZE grid, so rendering a region of an image
+ * (see renderRegion) only renders the tiles that were never rendered before.
+ * <p>
+ * The files of the cache are evicted in least recently used order to keep it under its size budget.
+ * Entries are written to a temporary file first, so readers never see a partial entry.
+ */
+public class RenderCache {
+    public static final long DEFAULT_MAX_BYTES = 1L << 30; //1GB
+    public static final int TILE_SIZE = 128;
+    // bump when a change of the renderer changes the pixels of existing scenes
+    private static final int FORMAT_VERSION = 1;
+    private static final String IMAGE_EXTENSION = ".png";
+    private static final String TILE_EXTENSION = ".tile";
+    private static final String TEMP_PREFIX = ".tmp-";
+    // the resolution the camera was last rendered at is part of the key already, and isn't part of the scene
+    private static final Set<String> CAMERA_RENDER_FIELDS = new HashSet<>(
+            Arrays.asList("height", "width", "viewPlainWidth"));
+    private static final Gson KEY_GSON = GsonMaker.newBuilder().setExclusionStrategies(new ExclusionStrategy() {
+        @Override
+        public boolean shouldSkipField(FieldAttributes f) {
+            return f.getDeclaringClass() == PinholeCamera.class && CAMERA_RENDER_FIELDS.contains(f.getName());
+        }
+
+        @Override
+        public boolean shouldSkipClass(Class<?> clazz) {
+            return false;
+        }
+    }).create();
+
+    private final File directory;
+    private final long maxBytes;
+    // file name -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens the cache in the directory, with the files that are already there.
+     *
+     * @param maxBytes - the size budget of the cache
+     */
+    public RenderCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("The size of the cache must be positive");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create the cache directory " + directory);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Couldn't list the cache directory " + directory);
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_PREFIX))
+                file.delete(); //left by a process that was killed while writing
+            else if (name.endsWith(IMAGE_EXTENSION) || name.endsWith(TILE_EXTENSION))
+                add(name, file.length());
+        }
+        evict();
+    }
+
+    //MARK: keys
+    /**
+     * @return the key of the render of the scene at the given dimensions, a hexadecimal SHA-256 hash
+     */
+    public static String key(Scene scene, int imgWidth, int imgHeight, double viewPlainWidth) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // the scene is streamed into the digest, it is never held as a string
+        try (Writer writer = new OutputStreamWriter(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, digest), StandardCharsets.UTF_8)) {
+            writer.write("v" + FORMAT_VERSION + " " + imgWidth + "x" + imgHeight + " " + viewPlainWidth + "\n");
+            KEY_GSON.toJson(scene, Scene.class, writer);
+            // meshes loaded from OBJ files only name them
+            for (Surface surface : scene.getSurfaces()) {
+                if (!(surface.getShape() instanceof TriangleMesh))
+                    continue;
+                String objFile = ((TriangleMesh) surface.getShape()).getObjFile();
+                if (objFile != null) {
+                    File file = new File(objFile);
+                    writer.write("\n" + file.getAbsolutePath() + " " + file.length() + " " + file.lastModified());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //nothing is actually written
+        }
+        StringBuilder ans = new StringBuilder();
+        for (byte b : digest.digest())
+            ans.append(String.format("%02x", b));
+        return ans.toString();
+    }
+
+    private static String imageName(String key) {
+        return key + IMAGE_EXTENSION;
+    }
+
+    private static String tileName(String key, Tile tile) {
+        return key + "-" + tile.x + "_" + tile.y + "_" + tile.width + "_" + tile.height + TILE_EXTENSION;
+    }
+
+    //MARK: rendering
+    /**
+     * Renders the scene, or serves its image from the cache. An image that isn't cached is assembled from the
+     * cached tiles of the grid, the missing tiles are rendered.
+     */
+    public BufferedImage render(Scene scene, int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
+            throws IOException, InterruptedException, ExecutionException {
+        String key = key(scene, imgWidth, imgHeight, viewPlainWidth);
+        BufferedImage img = getImage(key);
+        if (img != null) {
+            logger.log("Served " + scene.getName() + " from the render cache");
+            return img;
+        }
+        img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        Tile frame = new Tile(0, 0, imgWidth, imgHeight);
+        if (!renderTiles(key, scene, frame, framebuffer, imgWidth, imgHeight, viewPlainWidth, logger))
+            return img;
+        putImage(key, img, false);
+        return img;
+    }
+
+    /**
+     * Renders a region of the image of the scene, with the same pixels as the region in the whole image (see
+     * Scene.renderRegion). Only the tiles of the grid that it overlaps and that aren't cached are rendered.
+     *
+     * @return the pixels of the region, as 0xRRGGBB in row-major order
+     */
+    public int[] renderRegion(Scene scene, Tile region, int imgWidth, int imgHeight, double viewPlainWidth,
+            Logger logger) throws IOException, InterruptedException, ExecutionException {
+        if (region.width <= 0 || region.height <= 0 || !new Tile(0, 0, imgWidth, imgHeight).contains(region))
+            throw new IllegalArgumentException(region + " is not within the image " + imgWidth + "x" + imgHeight);
+        String key = key(scene, imgWidth, imgHeight, viewPlainWidth);
+        int[] pixels = new int[region.area()];
+        renderTiles(key, scene, region, pixels, imgWidth, imgHeight, viewPlainWidth, logger);
+        return pixels;
+    }
+
+    /**
+     * Renders a crop of the image of the scene (see Scene.renderCrop) from the tiles of the grid, like
+     * renderRegion.
+     *
+     * @return an image of the size of the region
+     */
+    public BufferedImage renderCrop(Scene scene, Tile region, int imgWidth, int imgHeight, double viewPlainWidth,
+            Logger logger) throws IOException, InterruptedException, ExecutionException {
+        int[] pixels = renderRegion(scene, region, imgWidth, imgHeight, viewPlainWidth, logger);
+        BufferedImage img = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, framebuffer, 0, pixels.length);
+        return img;
+    }
+
+    /**
+     * Fills the frame with the tiles of the grid that overlap it, rendering and caching the missing ones.
+     *
+     * @return false if the render was cancelled, the frame is then incomplete
+     */
+    private boolean renderTiles(String key, Scene scene, Tile frame, int[] framebuffer, int imgWidth,
+            int imgHeight, double viewPlainWidth, Logger logger)
+            throws IOException, InterruptedException, ExecutionException {
+        List<Tile> missing = new ArrayList<>();
+        List<Tile> tiles = gridTiles(frame, imgWidth, imgHeight);
+        for (Tile tile : tiles) {
+            int[] pixels = getTile(key, tile);
+            if (pixels == null)
+                missing.add(tile);
+            else
+                copy(pixels, tile, framebuffer, frame);
+        }
+        logger.log("Found " + (tiles.size() - missing.size()) + "/" + tiles.size() + " tiles of " +
+                scene.getName() + " in the render cache");
+        if (missing.isEmpty())
+            return true;
+
+        if (missing.size() == tiles.size() && frame.width == imgWidth && frame.height == imgHeight) {
+            // nothing to reuse, a single render of the image is the fastest
+            BufferedImage img = scene.render(imgWidth, imgHeight, viewPlainWidth, logger);
+            if (scene.getLastRenderMetrics().isCancelled())
+                return false;
+            int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            System.arraycopy(pixels, 0, framebuffer, 0, pixels.length);
+            for (Tile tile : missing)
+                putTile(key, tile, extract(pixels, frame, tile));
+            return true;
+        }
+
+        boolean ownsStructures = !scene.hasAccelerationStructures();
+        if (ownsStructures)
+            scene.buildAccelerationStructures(logger);
+        try {
+            for (Tile tile : missing) {
+                int[] pixels = scene.renderRegion(tile, imgWidth, imgHeight, viewPlainWidth, logger);
+                if (scene.getLastRenderMetrics().isCancelled())
+                    return false;
+                putTile(key, tile, pixels);
+                copy(pixels, tile, framebuffer, frame);
+            }
+        } finally {
+            if (ownsStructures)
+                scene.releaseAccelerationStructures();
+        }
+        return true;
+    }
+
+    /**
+     * @return the tiles of the grid that overlap the frame, clipped to the image
+     */
+    private static List<Tile> gridTiles(Tile frame, int imgWidth, int imgHeight) {
+        List<Tile> tiles = new ArrayList<>();
+        int firstX = frame.x / TILE_SIZE * TILE_SIZE, firstY = frame.y / TILE_SIZE * TILE_SIZE;
+        for (int y = firstY; y < frame.y + frame.height; y += TILE_SIZE)
+            for (int x = firstX; x < frame.x + frame.width; x += TILE_SIZE)
+                tiles.add(new Tile(x, y, Math.min(TILE_SIZE, imgWidth - x), Math.min(TILE_SIZE, imgHeight - y)));
+        return tiles;
+    }
+
+    /**
+     * Copies the part of the tile that is within the frame into the framebuffer of the frame.
+     */
+    private static void copy(int[] tilePixels, Tile tile, int[] framebuffer, Tile frame) {
+        int minX = Math.max(tile.x, frame.x), maxX = Math.min(tile.x + tile.width, frame.x + frame.width);
+        int minY = Math.max(tile.y, frame.y), maxY = Math.min(tile.y + tile.height, frame.y + frame.height);
+        for (int y = minY; y < maxY; ++y)
+            System.arraycopy(tilePixels, tile.indexOf(minX, y), framebuffer, frame.indexOf(minX, y), maxX - minX);
+    }
+
+    private static int[] extract(int[] framebuffer, Tile frame, Tile tile) {
+        int[] pixels = new int[tile.area()];
+        for (int y = tile.y; y < tile.y + tile.height; ++y)
+            System.arraycopy(framebuffer, frame.indexOf(tile.x, y), pixels, tile.indexOf(tile.x, y), tile.width);
+        return pixels;
+    }
+
+    //MARK: entries
+    /**
+     * @return the cached image with the given key, or null
+     */
+    public BufferedImage getImage(String key) throws IOException {
+        File file = lookup(imageName(key));
+        if (file == null)
+            return null;
+        BufferedImage stored = ImageIO.read(file);
+        if (stored == null)
+            throw new IOException("Corrupted cache entry " + file);
+        if (stored.getType() == BufferedImage.TYPE_INT_RGB)
+            return stored;
+        // the same pixels in the type rendered images have
+        BufferedImage img = new BufferedImage(stored.getWidth(), stored.getHeight(), BufferedImage.TYPE_INT_RGB);
+        img.getGraphics().drawImage(stored, 0, 0, null);
+        return img;
+    }
+
+    /**
+     * Caches an image rendered outside of the cache (e.g. by render workers), and its tiles.
+     */
+    public void putImage(String key, BufferedImage img) throws IOException {
+        putImage(key, img, true);
+    }
+
+    private void putImage(String key, BufferedImage img, boolean withTiles) throws IOException {
+        if (withTiles) {
+            Tile frame = new Tile(0, 0, img.getWidth(), img.getHeight());
+            int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+            for (Tile tile : gridTiles(frame, img.getWidth(), img.getHeight())) {
+                int[] tilePixels = extract(pixels, frame, tile);
+                for (int i = 0; i < tilePixels.length; ++i)
+                    tilePixels[i] &= 0xffffff;
+                putTile(key, tile, tilePixels);
+            }
+        }
+        File temp = File.createTempFile(TEMP_PREFIX, IMAGE_EXTENSION, directory);
+        try {
+            ImageIO.write(img, "png", temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        store(temp, imageName(key));
+    }
+
+    /**
+     * @return the cached pixels of the tile of the image with the given key, or null
+     */
+    public int[] getTile(String key, Tile tile) throws IOException {
+        File file = lookup(tileName(key, tile));
+        if (file == null)
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != tile.width || in.readInt() != tile.height)
+                throw new IOException("Corrupted cache entry " + file);
+            int[] pixels = new int[tile.area()];
+            for (int i = 0; i < pixels.length; ++i)
+                pixels[i] = in.readInt();
+            return pixels;
+        }
+    }
+
+    public void putTile(String key, Tile tile, int[] pixels) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX, TILE_EXTENSION, directory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(temp))))) {
+            out.writeInt(tile.width);
+            out.writeInt(tile.height);
+            for (int pixel : pixels)
+                out.writeInt(pixel);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        store(temp, tileName(key, tile));
+    }
+
+    /**
+     * @return the file of the entry, or null if it isn't cached. The entry becomes the most recently used one
+     */
+    private synchronized File lookup(String name) {
+        File file = new File(directory, name);
+        if (entries.get(name) == null || !file.isFile()) {
+            remove(name);
+            ++misses;
+            return null;
+        }
+        ++hits;
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    private synchronized void store(File temp, String name) throws IOException {
+        File file = new File(directory, name);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        remove(name);
+        add(name, file.length());
+        evict();
+    }
+
+    private void add(String name, long size) {
+        entries.put(name, size);
+        totalBytes += size;
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null)
+            totalBytes -= size;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(directory, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Deletes all the entries of the cache.
+     */
+    public synchronized void clear() {
+        for (String name : entries.keySet())
+            new File(directory, name).delete();
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    //MARK: getters
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
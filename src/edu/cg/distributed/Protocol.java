@@ -0,0 +1,88 @@
+package edu.cg.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import edu.cg.scene.Tile;
+
+/**
+ * The messages between a RenderCoordinator and its RenderWorkers, over a socket, with Data streams.
+ * <pre>
+ * coordinator -> worker
+ *   SCENE  int imgWidth, int imgHeight, double viewPlainWidth, bytes scene (GsonMaker JSON, UTF-8)
+ *   TILE   int id, int x, int y, int width, int height
+ *   BYE
+ * worker -> coordinator
+ *   READY                                  after a SCENE was loaded
+ *   PIXELS int id, bytes pixels            the pixels of a tile, an int 0xRRGGBB each, in row-major order
+ *   FAILED int id, string message          a SCENE (with id -1) or a TILE that couldn't be rendered
+ * </pre>
+ * Byte arrays and strings are sent as an int length followed by the bytes.
+ */
+final class Protocol {
+    static final int MAGIC = 0x52545744; //"RTWD"
+    static final int VERSION = 1;
+
+    static final byte SCENE = 1;
+    static final byte TILE = 2;
+    static final byte BYE = 3;
+
+    static final byte READY = 11;
+    static final byte PIXELS = 12;
+    static final byte FAILED = 13;
+
+    private Protocol() {
+    }
+
+    static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+    }
+
+    static void readHello(DataInputStream in) throws IOException {
+        int magic = in.readInt(), version = in.readInt();
+        if (magic != MAGIC)
+            throw new IOException("Not a render worker connection");
+        if (version != VERSION)
+            throw new IOException("Protocol version " + version + " isn't supported, expected " + VERSION);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Negative length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeTile(DataOutputStream out, int id, Tile tile) throws IOException {
+        out.writeByte(TILE);
+        out.writeInt(id);
+        out.writeInt(tile.x);
+        out.writeInt(tile.y);
+        out.writeInt(tile.width);
+        out.writeInt(tile.height);
+        out.flush();
+    }
+
+    static Tile readTile(DataInputStream in) throws IOException {
+        return new Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+}
@@ -0,0 +1,409 @@
+package edu.cg.distributed;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+
+import edu.cg.Logger;
+import edu.cg.menu.GsonMaker;
+import edu.cg.scene.Scene;
+import edu.cg.scene.Tile;
+
+/**
+ * Renders images on RenderWorker processes: the scene is serialized once with GsonMaker and sent to every worker,
+ * then the tiles of the image are handed out to the workers as they become free, and their pixels are assembled
+ * into the image. A tile that fails (the worker reports an error, or its connection is lost) is handed out again,
+ * up to maxAttempts times, and a worker whose connection is lost gets no more tiles.
+ * The pixels are the same as the ones of Scene.render, see Scene.renderRegion.
+ * <p>
+ * The workers are either started beforehand (possibly on other machines) or spawned on this machine, see
+ * spawnLocalWorkers.
+ */
+public class RenderCoordinator implements Closeable {
+    public static final int DEFAULT_TILE_SIZE = 128;
+    public static final int DEFAULT_TILE_TIMEOUT = 600000; //ms, a worker that hangs for 10 minutes is given up
+    public static final int DEFAULT_SCENE_TIMEOUT = 120000; //ms, to load the scene and build its structures
+    private static final int CONNECT_TIMEOUT = 10000; //ms
+    private static final long POLL_INTERVAL = 100; //ms
+    private static final long JOIN_TIMEOUT = 10000; //ms, for the workers to finish their tiles once the job is done
+    private static final Gson WIRE_GSON = GsonMaker.newCompactBuilder().create(); //not pretty printed
+
+    private final List<InetSocketAddress> workers;
+    private final List<Process> processes = new ArrayList<>();
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int maxAttempts = 3;
+    private int tileTimeout = DEFAULT_TILE_TIMEOUT; //ms, 0 waits for ever
+    private int sceneTimeout = DEFAULT_SCENE_TIMEOUT; //ms, 0 waits for ever
+
+    public RenderCoordinator(List<InetSocketAddress> workers) {
+        if (workers.isEmpty())
+            throw new IllegalArgumentException("No workers were given");
+        this.workers = new ArrayList<>(workers);
+    }
+
+    /**
+     * Starts worker JVMs on this machine, with the class path of this one. They are stopped by close(), and exit
+     * on their own if this process dies.
+     *
+     * @param count - the number of workers
+     * @param threadsPerWorker - the number of render threads of every worker
+     */
+    public static RenderCoordinator spawnLocalWorkers(int count, int threadsPerWorker) throws IOException {
+        if (count <= 0)
+            throw new IllegalArgumentException("The number of workers must be positive");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; ++i) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        RenderWorker.class.getName(), "--port", "0", "--threads", String.valueOf(threadsPerWorker),
+                        "--exit-on-stdin-close");
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                Process process = builder.start();
+                processes.add(process);
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), readPort(process)));
+            }
+        } catch (IOException e) {
+            for (Process process : processes)
+                process.destroyForcibly();
+            throw e;
+        }
+        RenderCoordinator coordinator = new RenderCoordinator(addresses);
+        coordinator.processes.addAll(processes);
+        return coordinator;
+    }
+
+    private static int readPort(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith(RenderWorker.LISTENING + " "))
+            throw new IOException("A render worker failed to start" + (line == null ? "" : ": " + line));
+        try {
+            return Integer.parseInt(line.substring(RenderWorker.LISTENING.length() + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("A render worker failed to start: " + line);
+        }
+    }
+
+    //MARK: initializers
+    public RenderCoordinator initTileSize(int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive");
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    public RenderCoordinator initMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("The number of attempts must be positive");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param tileTimeout - how long to wait for the pixels of a tile before giving up on its worker (ms),
+     *                    0 waits for ever, so a worker that hangs blocks the render for ever
+     */
+    public RenderCoordinator initTileTimeout(int tileTimeout) {
+        this.tileTimeout = Math.max(0, tileTimeout);
+        return this;
+    }
+
+    /**
+     * @param sceneTimeout - how long to wait for a worker to load the scene before giving up on it (ms),
+     *                     0 waits for ever, so a worker that hangs blocks the render for ever
+     */
+    public RenderCoordinator initSceneTimeout(int sceneTimeout) {
+        this.sceneTimeout = Math.max(0, sceneTimeout);
+        return this;
+    }
+
+    public List<InetSocketAddress> getWorkers() {
+        return Collections.unmodifiableList(workers);
+    }
+
+    //MARK: render
+    /**
+     * Renders the scene on the workers.
+     *
+     * @throws IOException if a tile failed maxAttempts times, or no worker is left to render the remaining tiles
+     */
+    public BufferedImage render(Scene scene, int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
+            throws IOException, InterruptedException {
+        BufferedImage img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        renderFrame(scene, new Tile(0, 0, imgWidth, imgHeight), imgWidth, imgHeight, viewPlainWidth, framebuffer,
+                logger);
+        return img;
+    }
+
+    /**
+     * Renders a region of the image of the scene on the workers, see Scene.renderCrop.
+     *
+     * @return an image of the size of the region
+     */
+    public BufferedImage renderCrop(Scene scene, Tile region, int imgWidth, int imgHeight, double viewPlainWidth,
+            Logger logger) throws IOException, InterruptedException {
+        if (region.width <= 0 || region.height <= 0 || !new Tile(0, 0, imgWidth, imgHeight).contains(region))
+            throw new IllegalArgumentException(region + " is not within the image " + imgWidth + "x" + imgHeight);
+        BufferedImage img = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        renderFrame(scene, region, imgWidth, imgHeight, viewPlainWidth, framebuffer, logger);
+        return img;
+    }
+
+    /**
+     * Renders the frame (a region of the image, or the whole of it) into the framebuffer, which holds the frame.
+     */
+    private void renderFrame(Scene scene, Tile frame, int imgWidth, int imgHeight, double viewPlainWidth,
+            int[] framebuffer, Logger logger) throws IOException, InterruptedException {
+        byte[] sceneJson = WIRE_GSON.toJson(scene, Scene.class).getBytes(StandardCharsets.UTF_8);
+        Job job = new Job(sceneJson, frame, imgWidth, imgHeight, viewPlainWidth, framebuffer, logger);
+        int endX = frame.x + frame.width, endY = frame.y + frame.height;
+        for (int y = frame.y; y < endY; y += tileSize)
+            for (int x = frame.x; x < endX; x += tileSize)
+                job.pending.add(new PendingTile(job.pending.size(),
+                        new Tile(x, y, Math.min(tileSize, endX - x), Math.min(tileSize, endY - y))));
+        job.remaining.set(job.pending.size());
+        logger.log("Rendering " + job.pending.size() + " tiles of " + tileSize + "x" + tileSize + " on " +
+                workers.size() + " workers, the scene takes " + sceneJson.length + " bytes");
+
+        List<Thread> threads = new ArrayList<>();
+        job.activeWorkers.set(workers.size());
+        for (InetSocketAddress worker : workers) {
+            Thread thread = new Thread(() -> job.serve(worker), "render-coordinator-" + worker);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            job.await();
+        } finally {
+            job.finished = true;
+            // the workers finish the tiles they are rendering, the connections of the ones that don't are closed
+            long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+            for (Thread thread : threads)
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            job.closeConnections();
+            for (Thread thread : threads)
+                thread.join(JOIN_TIMEOUT);
+        }
+        logger.log("Rendered " + job.rendered.get() + " tiles, " + job.retries.get() + " were retried");
+    }
+
+    private static class PendingTile {
+        final int id;
+        final Tile tile;
+        int attempts = 0;
+
+        PendingTile(int id, Tile tile) {
+            this.id = id;
+            this.tile = tile;
+        }
+    }
+
+    /**
+     * The state of a render, shared by the threads that talk to the workers, one thread per worker.
+     */
+    private class Job {
+        final byte[] sceneJson;
+        final Tile frame;
+        final int imgWidth, imgHeight;
+        final double viewPlainWidth;
+        final int[] framebuffer;
+        final Logger logger;
+        final BlockingDeque<PendingTile> pending = new LinkedBlockingDeque<>();
+        final AtomicInteger remaining = new AtomicInteger();
+        final AtomicInteger activeWorkers = new AtomicInteger();
+        final AtomicInteger rendered = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        volatile IOException failure = null;
+        volatile boolean finished = false;
+        final List<Socket> connections = Collections.synchronizedList(new ArrayList<>());
+
+        Job(byte[] sceneJson, Tile frame, int imgWidth, int imgHeight, double viewPlainWidth, int[] framebuffer,
+                Logger logger) {
+            this.sceneJson = sceneJson;
+            this.frame = frame;
+            this.imgWidth = imgWidth;
+            this.imgHeight = imgHeight;
+            this.viewPlainWidth = viewPlainWidth;
+            this.framebuffer = framebuffer;
+            this.logger = logger;
+        }
+
+        private boolean isDone() {
+            return finished || failure != null || remaining.get() == 0;
+        }
+
+        synchronized void await() throws IOException, InterruptedException {
+            while (remaining.get() > 0 && failure == null) {
+                if (activeWorkers.get() == 0)
+                    throw new IOException("All the render workers failed, " + remaining.get() +
+                            " tiles were not rendered");
+                wait();
+            }
+            if (failure != null)
+                throw failure;
+        }
+
+        void closeConnections() {
+            synchronized (connections) {
+                for (Socket socket : connections) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // the serving thread fails on it anyway
+                    }
+                }
+            }
+        }
+
+        private synchronized void progressed() {
+            notifyAll();
+        }
+
+        /**
+         * Talks to a single worker until the render is done, or the connection to the worker is lost.
+         */
+        void serve(InetSocketAddress worker) {
+            PendingTile current = null;
+            try (Socket socket = new Socket()) {
+                connections.add(socket);
+                if (finished)
+                    return;
+                socket.connect(worker, CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                // a worker that serves another coordinator, or doesn't answer, doesn't block the render
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Protocol.writeHello(out);
+                Protocol.readHello(in);
+
+                out.writeByte(Protocol.SCENE);
+                out.writeInt(imgWidth);
+                out.writeInt(imgHeight);
+                out.writeDouble(viewPlainWidth);
+                Protocol.writeBytes(out, sceneJson);
+                out.flush();
+                socket.setSoTimeout(sceneTimeout);
+                byte reply = in.readByte();
+                if (reply == Protocol.FAILED) {
+                    in.readInt();
+                    throw new IOException(Protocol.readString(in));
+                }
+                if (reply != Protocol.READY)
+                    throw new IOException("Unexpected reply to the scene: " + reply);
+                socket.setSoTimeout(tileTimeout);
+
+                while (!isDone()) {
+                    current = pending.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (current == null)
+                        continue;
+                    Protocol.writeTile(out, current.id, current.tile);
+                    reply = in.readByte();
+                    int id = in.readInt();
+                    if (id != current.id)
+                        throw new IOException("Expected tile " + current.id + " but got " + id);
+                    if (reply == Protocol.PIXELS) {
+                        store(current.tile, Protocol.readBytes(in));
+                        current = null;
+                        rendered.incrementAndGet();
+                        remaining.decrementAndGet();
+                        progressed();
+                    } else if (reply == Protocol.FAILED) {
+                        PendingTile failed = current;
+                        current = null;
+                        retry(failed, worker + ": " + Protocol.readString(in));
+                    } else {
+                        throw new IOException("Unexpected reply to a tile: " + reply);
+                    }
+                }
+                out.writeByte(Protocol.BYE);
+                out.flush();
+            } catch (IOException e) {
+                if (!finished)
+                    logger.log("Lost the render worker " + worker + ": " + e);
+                if (current != null)
+                    retry(current, worker + ": " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                activeWorkers.decrementAndGet();
+                progressed();
+            }
+        }
+
+        private void retry(PendingTile tile, String reason) {
+            if (++tile.attempts >= maxAttempts) {
+                failure = new IOException(tile.tile + " failed " + tile.attempts + " times, last on " + reason);
+                progressed();
+                return;
+            }
+            retries.incrementAndGet();
+            logger.log("Retrying " + tile.tile + " after a failure on " + reason);
+            pending.addFirst(tile);
+        }
+
+        private void store(Tile tile, byte[] bytes) throws IOException {
+            if (bytes.length != 4 * tile.area())
+                throw new IOException("Got " + bytes.length / 4 + " pixels for " + tile);
+            IntBuffer pixels = ByteBuffer.wrap(bytes).asIntBuffer();
+            for (int y = 0; y < tile.height; ++y) {
+                pixels.position(y * tile.width);
+                pixels.get(framebuffer, frame.indexOf(tile.x, tile.y + y), tile.width);
+            }
+        }
+    }
+
+    /**
+     * Stops the spawned workers, if any.
+     */
+    @Override
+    public void close() {
+        for (Process process : processes) {
+            try {
+                process.getOutputStream().close();
+            } catch (IOException e) {
+                // it is destroyed anyway
+            }
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        processes.clear();
+    }
+}
@@ -0,0 +1,236 @@
+package edu.cg.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.cg.Logger;
+import edu.cg.menu.GsonMaker;
+import edu.cg.scene.Scene;
+import edu.cg.scene.Tile;
+
+/**
+ * A worker process of distributed rendering: receives a scene from a RenderCoordinator, then renders the tiles
+ * it is sent, one at a time, on all of its threads. The acceleration structures of the scene are built once and
+ * reused for all of its tiles. Coordinators are served one after the other, a coordinator that says nothing for
+ * the idle timeout is dropped.
+ * <p>
+ * The worker prints "LISTENING port" once it accepts connections, so that it can be started with port 0.
+ */
+public class RenderWorker {
+    private static final String USAGE = "Usage: RenderWorker [options]" + System.lineSeparator() +
+            "Options:" + System.lineSeparator() +
+            "  --port <port>                 the port to listen on, 0 for any free port (default 0)" +
+            System.lineSeparator() +
+            "  --bind <address>              the address to listen on (default: the loopback address)" +
+            System.lineSeparator() +
+            "  --threads <n>                 number of render threads (default: number of processors)" +
+            System.lineSeparator() +
+            "  --idle-timeout <seconds>      drop a coordinator that sends nothing for that long, 0 never does" +
+            System.lineSeparator() +
+            "                                (default 1800)" + System.lineSeparator() +
+            "  --exit-on-stdin-close         exit when the standard input is closed (e.g. by a parent process)" +
+            System.lineSeparator() +
+            "  -v, --verbose                 print the log of every render to the standard error";
+    static final String LISTENING = "LISTENING";
+    private static final int HELLO_TIMEOUT = 10000; //ms, for a connection to say hello
+    private static final int DEFAULT_IDLE_TIMEOUT = 1800; //s, longer than the default tile timeout of a coordinator
+
+    private int port = 0;
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+    private int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT; //s, 0 waits for ever
+    private boolean exitOnStdinClose = false;
+    private boolean verbose = false;
+    private ForkJoinPool pool;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        RenderWorker worker = new RenderWorker();
+        try {
+            worker.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            worker.run();
+        } catch (IOException e) {
+            System.err.println("Render worker failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            switch (arg) {
+            case "--port":
+                port = intInRange(arg, value(args, ++i, arg), 0, 65535);
+                break;
+            case "--bind":
+                try {
+                    bindAddress = InetAddress.getByName(value(args, ++i, arg));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Unknown address: " + args[i]);
+                }
+                break;
+            case "--threads":
+                threads = intInRange(arg, value(args, ++i, arg), 1, Integer.MAX_VALUE);
+                break;
+            case "--idle-timeout":
+                idleTimeout = intInRange(arg, value(args, ++i, arg), 0, Integer.MAX_VALUE / 1000);
+                break;
+            case "--exit-on-stdin-close":
+                exitOnStdinClose = true;
+                break;
+            case "-v":
+            case "--verbose":
+                verbose = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int intInRange(String option, String value, int min, int max) {
+        try {
+            int ans = Integer.parseInt(value);
+            if (ans < min || ans > max)
+                throw new NumberFormatException();
+            return ans;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " must be an integer between " + min + " and " + max);
+        }
+    }
+
+    private void run() throws IOException {
+        if (exitOnStdinClose) {
+            Thread watcher = new Thread(() -> {
+                try {
+                    while (System.in.read() >= 0)
+                        ;
+                } catch (IOException e) {
+                    // the parent is gone as well
+                }
+                System.exit(0);
+            }, "stdin-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+
+        pool = new ForkJoinPool(threads);
+        try (ServerSocket server = new ServerSocket(port, 50, bindAddress)) {
+            System.out.println(LISTENING + " " + server.getLocalPort());
+            System.out.flush();
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    serve(socket);
+                } catch (IOException e) {
+                    System.err.println("Lost the connection to the coordinator: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // connections that never say hello (e.g. port probes) or go quiet would keep the next coordinators out
+        socket.setSoTimeout(HELLO_TIMEOUT);
+        Protocol.readHello(in);
+        Protocol.writeHello(out);
+        socket.setSoTimeout(idleTimeout * 1000);
+
+        Scene scene = null;
+        int imgWidth = 0, imgHeight = 0;
+        double viewPlainWidth = 0;
+        Logger logger = verbose ? s -> System.err.println("[worker " + socket.getLocalPort() + "] " + s) : s -> {};
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                switch (type) {
+                case Protocol.SCENE:
+                    imgWidth = in.readInt();
+                    imgHeight = in.readInt();
+                    viewPlainWidth = in.readDouble();
+                    String json = new String(Protocol.readBytes(in), StandardCharsets.UTF_8);
+                    if (scene != null)
+                        scene.releaseAccelerationStructures();
+                    scene = null;
+                    try {
+                        scene = GsonMaker.getInstance().fromJson(json, Scene.class);
+                        scene.initExecutor(pool);
+                        scene.buildAccelerationStructures(logger);
+                        out.writeByte(Protocol.READY);
+                    } catch (RuntimeException e) {
+                        scene = null;
+                        out.writeByte(Protocol.FAILED);
+                        out.writeInt(-1);
+                        Protocol.writeString(out, "Couldn't load the scene: " + e);
+                    }
+                    out.flush();
+                    break;
+                case Protocol.TILE:
+                    int id = in.readInt();
+                    Tile tile = Protocol.readTile(in);
+                    renderTile(out, scene, id, tile, imgWidth, imgHeight, viewPlainWidth, logger);
+                    break;
+                case Protocol.BYE:
+                    return;
+                default:
+                    throw new IOException("Unknown message: " + type);
+                }
+            }
+        } finally {
+            if (scene != null)
+                scene.releaseAccelerationStructures();
+        }
+    }
+
+    private static void renderTile(DataOutputStream out, Scene scene, int id, Tile tile, int imgWidth,
+            int imgHeight, double viewPlainWidth, Logger logger) throws IOException {
+        int[] pixels;
+        try {
+            if (scene == null)
+                throw new IllegalStateException("No scene was loaded");
+            pixels = scene.renderRegion(tile, imgWidth, imgHeight, viewPlainWidth, logger);
+        } catch (Exception e) {
+            out.writeByte(Protocol.FAILED);
+            out.writeInt(id);
+            Protocol.writeString(out, e.toString());
+            out.flush();
+            return;
+        }
+        byte[] bytes = new byte[4 * pixels.length];
+        ByteBuffer.wrap(bytes).asIntBuffer().put(pixels);
+        out.writeByte(Protocol.PIXELS);
+        out.writeInt(id);
+        Protocol.writeBytes(out, bytes);
+        out.flush();
+    }
+}
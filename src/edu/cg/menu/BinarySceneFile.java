@@ -0,0 +1,534 @@
+package edu.cg.menu;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.ExclusionStrategy;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.Scene;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Material;
+import edu.cg.scene.objects.Plain;
+import edu.cg.scene.objects.Shape;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+import edu.cg.scene.objects.TriangleMesh;
+
+/**
+ * The binary scene format: the geometry is stored in flat little endian blocks of primitives, one block per shape
+ * type, which are read back with bulk copies through a FileChannel instead of being parsed.
+ * <p>
+ * Layout (version 1), every block of doubles aligned to 8 bytes:
+ * <pre>
+ * magic "RTSC", int version
+ * string header             - the scene without its surfaces (camera, lights, parameters) as GsonMaker JSON
+ * int m, double[m * 14]     - the material objects: Ka, Kd, Ks, reflection intensity, shininess,
+ *                             is transparent, refraction intensity, refraction index
+ * int n, byte[n], int[n]    - the shape type and the material (-1 for none) of every surface, in scene order
+ * int s, double[s * 4]      - spheres: center, radius
+ * int b, double[b * 6], string[b] - boxes: min point, max point, and their names
+ * int p, double[p * 4]      - plains: a, b, c, d
+ * int t, t meshes           - triangle meshes: an OBJ path, or the vertex, index, normal and normal index arrays
+ * int o, o shapes           - any other shape: its class name and its JSON
+ * </pre>
+ * Strings are an int length followed by UTF-8 bytes. The surfaces of each shape type appear in their blocks in
+ * the order of the scene, so the types of the surfaces are enough to rebuild it. A material is written once for
+ * all the surfaces sharing the object, surfaces with equal but separate materials (as loaded from JSON) keep
+ * separate materials when read back.
+ */
+public class BinarySceneFile {
+    public static final String EXTENSION = ".rtscene";
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = { 'R', 'T', 'S', 'C' };
+    private static final int MATERIAL_STRIDE = 14;
+    private static final int SPHERE_STRIDE = 4;
+    private static final int BOX_STRIDE = 6;
+    private static final int PLAIN_STRIDE = 4;
+
+    private static final byte SPHERE = 0;
+    private static final byte BOX = 1;
+    private static final byte PLAIN = 2;
+    private static final byte MESH = 3;
+    private static final byte OTHER = 4;
+
+    private static final byte INLINE_MESH = 0;
+    private static final byte OBJ_MESH = 1;
+
+    // serializes the scene without its surfaces, which go to the binary blocks
+    private static final Gson HEADER_GSON = GsonMaker.newBuilder().setExclusionStrategies(new ExclusionStrategy() {
+        @Override
+        public boolean shouldSkipField(FieldAttributes f) {
+            return f.getDeclaringClass() == Scene.class && f.getName().equals("surfaces");
+        }
+
+        @Override
+        public boolean shouldSkipClass(Class<?> clazz) {
+            return false;
+        }
+    }).create();
+
+    private BinarySceneFile() {
+    }
+
+    /**
+     * @return true if the file starts with the magic number of the binary format
+     */
+    public static boolean isBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0)
+                ;
+            return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    //MARK: write
+    public static void write(Scene scene, String filename) throws IOException {
+        List<Surface> surfaces = scene.getSurfaces();
+        Map<Material, Integer> materialIndices = new IdentityHashMap<>();
+        List<Material> materials = new ArrayList<>();
+        byte[] types = new byte[surfaces.size()];
+        int[] surfaceMaterials = new int[surfaces.size()];
+        List<Sphere> spheres = new ArrayList<>();
+        List<AxisAlignedBox> boxes = new ArrayList<>();
+        List<Plain> plains = new ArrayList<>();
+        List<TriangleMesh> meshes = new ArrayList<>();
+        List<Shape> others = new ArrayList<>();
+
+        for (int i = 0; i < surfaces.size(); ++i) {
+            Surface surface = surfaces.get(i);
+            Material material = surface.getMaterial();
+            if (material == null) {
+                surfaceMaterials[i] = -1;
+            } else {
+                Integer index = materialIndices.get(material);
+                if (index == null) {
+                    index = materials.size();
+                    materials.add(material);
+                    materialIndices.put(material, index);
+                }
+                surfaceMaterials[i] = index;
+            }
+
+            Shape shape = surface.getShape();
+            Class<?> klass = shape == null ? null : shape.getClass();
+            if (klass == Sphere.class) {
+                types[i] = SPHERE;
+                spheres.add((Sphere) shape);
+            } else if (klass == AxisAlignedBox.class) {
+                types[i] = BOX;
+                boxes.add((AxisAlignedBox) shape);
+            } else if (klass == Plain.class) {
+                types[i] = PLAIN;
+                plains.add((Plain) shape);
+            } else if (klass == TriangleMesh.class) {
+                types[i] = MESH;
+                meshes.add((TriangleMesh) shape);
+            } else {
+                types[i] = OTHER;
+                others.add(shape);
+            }
+        }
+
+        try (BlockWriter out = new BlockWriter(Paths.get(filename))) {
+            out.putBytes(MAGIC);
+            out.putInt(VERSION);
+            out.putString(HEADER_GSON.toJson(scene, Scene.class));
+
+            out.putInt(materials.size());
+            out.align();
+            for (Material material : materials)
+                out.putDoubles(toArray(material));
+
+            out.putInt(types.length);
+            out.putBytes(types);
+            out.putInts(surfaceMaterials);
+
+            out.putInt(spheres.size());
+            out.align();
+            for (Sphere sphere : spheres) {
+                Point center = sphere.getCenter();
+                out.putDoubles(center.x, center.y, center.z, sphere.getRadius());
+            }
+
+            out.putInt(boxes.size());
+            out.align();
+            for (AxisAlignedBox box : boxes) {
+                Point min = box.getMinPoint(), max = box.getMaxPoint();
+                out.putDoubles(min.x, min.y, min.z, max.x, max.y, max.z);
+            }
+            for (AxisAlignedBox box : boxes)
+                out.putString(box.getName());
+
+            out.putInt(plains.size());
+            out.align();
+            for (Plain plain : plains)
+                out.putDoubles(plain.getCoefficients());
+
+            out.putInt(meshes.size());
+            for (TriangleMesh mesh : meshes)
+                writeMesh(out, mesh);
+
+            out.putInt(others.size());
+            Gson gson = GsonMaker.getInstance();
+            for (Shape shape : others) {
+                out.putString(shape == null ? "" : shape.getClass().getName());
+                out.putString(shape == null ? "" : gson.toJson(shape));
+            }
+        }
+    }
+
+    private static void writeMesh(BlockWriter out, TriangleMesh mesh) throws IOException {
+        if (mesh.getObjFile() != null) {
+            out.putByte(OBJ_MESH);
+            out.putString(mesh.getObjFile());
+            return;
+        }
+        double[] vertices = mesh.getVertices(), normals = mesh.getNormals();
+        int[] indices = mesh.getIndices(), normalIndices = mesh.getNormalIndices();
+        boolean hasNormals = normals != null && normalIndices != null;
+        out.putByte(INLINE_MESH);
+        out.putInt(vertices.length);
+        out.putInt(indices.length);
+        out.putInt(hasNormals ? normals.length : 0);
+        out.putInt(hasNormals ? normalIndices.length : 0);
+        out.putInts(indices);
+        if (hasNormals)
+            out.putInts(normalIndices);
+        out.align();
+        out.putDoubles(vertices);
+        if (hasNormals)
+            out.putDoubles(normals);
+    }
+
+    //MARK: read
+    /**
+     * @throws IOException if the file can't be read, or isn't a binary scene of a supported version
+     */
+    public static Scene read(String filename) throws IOException {
+        try (BlockReader in = new BlockReader(Paths.get(filename))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.getBytes(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(filename + " is not a binary scene");
+            int version = in.getInt();
+            if (version != VERSION)
+                throw new IOException(filename + " has version " + version + ", only version " + VERSION +
+                        " is supported");
+            Scene scene = GsonMaker.getInstance().fromJson(in.getString(), Scene.class);
+
+            double[] materialValues = new double[MATERIAL_STRIDE * in.getCount()];
+            in.align();
+            in.getDoubles(materialValues);
+            Material[] materials = new Material[materialValues.length / MATERIAL_STRIDE];
+            for (int i = 0; i < materials.length; ++i)
+                materials[i] = toMaterial(materialValues, MATERIAL_STRIDE * i);
+
+            byte[] types = new byte[in.getCount()];
+            in.getBytes(types);
+            int[] surfaceMaterials = new int[types.length];
+            in.getInts(surfaceMaterials);
+
+            double[] spheres = new double[SPHERE_STRIDE * in.getCount()];
+            in.align();
+            in.getDoubles(spheres);
+
+            double[] boxes = new double[BOX_STRIDE * in.getCount()];
+            in.align();
+            in.getDoubles(boxes);
+            String[] boxNames = new String[boxes.length / BOX_STRIDE];
+            for (int i = 0; i < boxNames.length; ++i)
+                boxNames[i] = in.getString();
+
+            double[] plains = new double[PLAIN_STRIDE * in.getCount()];
+            in.align();
+            in.getDoubles(plains);
+
+            TriangleMesh[] meshes = new TriangleMesh[in.getCount()];
+            for (int i = 0; i < meshes.length; ++i)
+                meshes[i] = readMesh(in);
+
+            Shape[] others = new Shape[in.getCount()];
+            GsonMaker<Shape> shapes = new GsonMaker<>();
+            for (int i = 0; i < others.length; ++i) {
+                String className = in.getString(), json = in.getString();
+                others[i] = className.isEmpty() ? null :
+                        GsonMaker.getInstance().fromJson(json, shapes.getObjectClass(className));
+            }
+
+            int sphere = 0, box = 0, plain = 0, mesh = 0, other = 0;
+            for (int i = 0; i < types.length; ++i) {
+                Shape shape;
+                switch (types[i]) {
+                case SPHERE:
+                    int s = SPHERE_STRIDE * sphere++;
+                    shape = new Sphere(new Point(spheres[s], spheres[s + 1], spheres[s + 2]), spheres[s + 3]);
+                    break;
+                case BOX:
+                    int b = BOX_STRIDE * box;
+                    shape = new AxisAlignedBox(new Point(boxes[b], boxes[b + 1], boxes[b + 2]),
+                            new Point(boxes[b + 3], boxes[b + 4], boxes[b + 5])).initName(boxNames[box++]);
+                    break;
+                case PLAIN:
+                    int p = PLAIN_STRIDE * plain++;
+                    shape = new Plain(plains[p], plains[p + 1], plains[p + 2], plains[p + 3]);
+                    break;
+                case MESH:
+                    shape = meshes[mesh++];
+                    break;
+                case OTHER:
+                    shape = others[other++];
+                    break;
+                default:
+                    throw new IOException(filename + ": unknown shape type " + types[i]);
+                }
+                int material = surfaceMaterials[i];
+                scene.addSurface(new Surface(shape, material < 0 ? null : materials[material]));
+            }
+            return scene;
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(filename + " is corrupted", e);
+        }
+    }
+
+    private static TriangleMesh readMesh(BlockReader in) throws IOException {
+        if (in.getByte() == OBJ_MESH)
+            return new TriangleMesh().initObjFile(in.getString());
+        double[] vertices = new double[in.getCount()];
+        int[] indices = new int[in.getCount()];
+        double[] normals = new double[in.getCount()];
+        int[] normalIndices = new int[in.getCount()];
+        in.getInts(indices);
+        in.getInts(normalIndices);
+        in.align();
+        in.getDoubles(vertices);
+        in.getDoubles(normals);
+        TriangleMesh mesh = new TriangleMesh(vertices, indices);
+        if (normalIndices.length > 0)
+            mesh.initNormals(normals, normalIndices);
+        return mesh;
+    }
+
+    /**
+     * @return the values of a material, as stored in the file
+     */
+    private static double[] toArray(Material m) {
+        return new double[] { m.Ka.x, m.Ka.y, m.Ka.z, m.Kd.x, m.Kd.y, m.Kd.z, m.Ks.x, m.Ks.y, m.Ks.z,
+                m.reflectionIntensity, m.shininess, m.isTransparent ? 1 : 0, m.refractionIntensity,
+                m.refractionIndex };
+    }
+
+    private static Material toMaterial(double[] v, int i) {
+        return new Material()
+                .initKa(new Vec(v[i], v[i + 1], v[i + 2]))
+                .initKd(new Vec(v[i + 3], v[i + 4], v[i + 5]))
+                .initKs(new Vec(v[i + 6], v[i + 7], v[i + 8]))
+                .initReflectionIntensity(v[i + 9])
+                .initShininess((int) v[i + 10])
+                .initIsTransparent(v[i + 11] != 0)
+                .initRefractionIntensity(v[i + 12])
+                .initRefractionIndex(v[i + 13]);
+    }
+
+    //MARK: blocks
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Writes primitives through a direct buffer, flushing it to the channel whenever it fills up.
+     */
+    private static class BlockWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed = 0;
+
+        BlockWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                flushed += channel.write(buffer);
+            buffer.clear();
+        }
+
+        void align() throws IOException {
+            long position = flushed + buffer.position();
+            int padding = (int) ((8 - position % 8) % 8);
+            ensure(padding);
+            for (int i = 0; i < padding; ++i)
+                buffer.put((byte) 0);
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putBytes(byte[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(1);
+                int count = Math.min(buffer.remaining(), values.length - done);
+                buffer.put(values, done, count);
+                done += count;
+            }
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(4);
+                int count = Math.min(buffer.remaining() / 4, values.length - done);
+                buffer.asIntBuffer().put(values, done, count);
+                buffer.position(buffer.position() + 4 * count);
+                done += count;
+            }
+        }
+
+        void putDoubles(double... values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(8);
+                int count = Math.min(buffer.remaining() / 8, values.length - done);
+                buffer.asDoubleBuffer().put(values, done, count);
+                buffer.position(buffer.position() + 8 * count);
+                done += count;
+            }
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads primitives through a direct buffer, refilling it from the channel whenever it runs out.
+     */
+    private static class BlockReader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long consumed = 0;
+
+        BlockReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            buffer.flip();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes)
+                return;
+            consumed += buffer.position();
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException("Unexpected end of the scene file");
+            }
+            buffer.flip();
+        }
+
+        void align() throws IOException {
+            long position = consumed + buffer.position();
+            int padding = (int) ((8 - position % 8) % 8);
+            ensure(padding);
+            buffer.position(buffer.position() + padding);
+        }
+
+        byte getByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        /**
+         * @return a length, which can't be negative in a valid file
+         */
+        int getCount() throws IOException {
+            int count = getInt();
+            if (count < 0)
+                throw new IOException("Negative count in the scene file: " + count);
+            return count;
+        }
+
+        void getBytes(byte[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(1);
+                int count = Math.min(buffer.remaining(), values.length - done);
+                buffer.get(values, done, count);
+                done += count;
+            }
+        }
+
+        void getInts(int[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(4);
+                int count = Math.min(buffer.remaining() / 4, values.length - done);
+                buffer.asIntBuffer().get(values, done, count);
+                buffer.position(buffer.position() + 4 * count);
+                done += count;
+            }
+        }
+
+        void getDoubles(double[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(8);
+                int count = Math.min(buffer.remaining() / 8, values.length - done);
+                buffer.asDoubleBuffer().get(values, done, count);
+                buffer.position(buffer.position() + 8 * count);
+                done += count;
+            }
+        }
+
+        String getString() throws IOException {
+            byte[] bytes = new byte[getCount()];
+            getBytes(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package edu.cg.menu;
 import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -19,6 +21,8 @@ public class GsonMaker<T>  implements JsonSerializer<T>, JsonDeserializer<T> {
 
 	private static final String CLASSNAME = "CLASSNAME";
 	private static final String DATA = "DATA";
+	// Class.forName is slow, and a scene names the same few classes for every one of its elements
+	private static final Map<String, Class<?>> CLASSES = new ConcurrentHashMap<>();
 
 	public T deserialize(JsonElement jsonElement, Type type,
 			JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
@@ -40,8 +44,13 @@ public class GsonMaker<T>  implements JsonSerializer<T>, JsonDeserializer<T> {
 	/****** Helper method to get the className of the object to be deserialized *****/
 	@SuppressWarnings("unchecked")
 	public Class<T> getObjectClass(String className) {
+		Class<?> klass = CLASSES.get(className);
+		if (klass != null)
+			return (Class<T>) klass;
 		try {
-			return (Class<T>) Class.forName(className);
+			klass = Class.forName(className);
+			CLASSES.put(className, klass);
+			return (Class<T>) klass;
 		} catch (ClassNotFoundException e) {
 			//e.printStackTrace();
 			throw new JsonParseException(e.getMessage());
@@ -52,17 +61,30 @@ public class GsonMaker<T>  implements JsonSerializer<T>, JsonDeserializer<T> {
 	private static class GsonHolder {
 		public static Gson gson;
 		static {
-			GsonBuilder gsonBuilder = new GsonBuilder();
-			gsonBuilder
-			.setPrettyPrinting()
-			.registerTypeAdapter(Light.class, new GsonMaker<Light>())
-			.registerTypeAdapter(Shape.class, new GsonMaker<Shape>());
-
-			gson = gsonBuilder.create();
+			gson = newBuilder().create();
 		}
 	}
 	
 	public static Gson getInstance() {
 		return GsonHolder.gson;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * @return a builder configured like the shared instance, for variations of it.
+	 */
+	public static GsonBuilder newBuilder() {
+		return newCompactBuilder().setPrettyPrinting();
+	}
+	
+	/**
+	 * @return a builder configured like the shared instance but without pretty printing, for JSON that is only
+	 * read by programs, e.g. sent over the network.
+	 */
+	public static GsonBuilder newCompactBuilder() {
+		GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder
+		.registerTypeAdapter(Light.class, new GsonMaker<Light>())
+		.registerTypeAdapter(Shape.class, new GsonMaker<Shape>());
+		return gsonBuilder;
+	}
+}
\ No newline at end of file
@@ -23,6 +23,7 @@ import javax.swing.border.EmptyBorder;
 public class ImageWindow extends JFrame {
 	private MenuWindow menuWindow;
 	private BufferedImage img;
+	private JPanel panelImage;
 
 	/**
 	 * Create the window.
@@ -49,7 +50,7 @@ public class ImageWindow extends JFrame {
 		});
 		contentPane.add(btnSaveAs, BorderLayout.NORTH);
 		
-		JPanel panelImage = new ImagePanel();
+		panelImage = new ImagePanel();
 		contentPane.add(panelImage, BorderLayout.CENTER);
 		
 		pack();
@@ -66,6 +67,13 @@ public class ImageWindow extends JFrame {
 		}
 	}
 	
+	/**
+	 * Repaints a region of the image, may be called from any thread (used while the image is being rendered).
+	 */
+	public void repaintImage(int x, int y, int width, int height) {
+		panelImage.repaint(x, y, width, height);
+	}
+	
 	private void save(File file) {
 		try {
 			ImageIO.write(img, "png", file);
@@ -0,0 +1,79 @@
+package edu.cg.menu;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A UTF-8 reader over a memory mapped file. The file is decoded straight from the page cache, window by window,
+ * so reading it never holds a copy of its bytes (or of its text) on the heap, whatever its size.
+ */
+class MappedReader extends Reader {
+    private static final long WINDOW_SIZE = 1L << 28; //256MB, mappings are limited to 2GB each
+
+    private final FileChannel channel;
+    private final long size;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    private long windowStart = 0;
+    private MappedByteBuffer window;
+    private boolean flushed = false;
+
+    MappedReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            map(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+    }
+
+    private boolean isLastWindow() {
+        return windowStart + window.limit() >= size;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (out.position() == off && !flushed) {
+            boolean last = isLastWindow();
+            CoderResult result = decoder.decode(window, out, last);
+            if (result.isError())
+                result.throwException();
+            if (result.isOverflow())
+                break;
+            if (!last) {
+                // a character split between the windows is decoded from the start of the next one
+                map(windowStart + window.position());
+            } else if (decoder.flush(out).isUnderflow()) {
+                flushed = true;
+            }
+        }
+        int count = out.position() - off;
+        return count == 0 && flushed ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -8,19 +8,24 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 
 import edu.cg.Logger;
 import edu.cg.menu.components.ScenesCreator;
 import edu.cg.menu.components.ScenesPicker;
+import edu.cg.scene.RenderListener;
 import edu.cg.scene.Scene;
 import edu.cg.menu.components.LogField;
 import edu.cg.menu.components.RenderingParametersSelector;
 
 @SuppressWarnings("serial")
 public class MenuWindow extends JFrame implements Logger {
+	private static final int PREVIEW_SCALE = 4; //a preview shoots a ray per 4x4 pixels
+	
 	//MARK: fields
 	private Scene scene = null;
+	private Scene renderedScene = null; //the scene being rendered in the background, null when idle
 	
 	//MARK: GUI fields
 	private ScenesPicker scenesPicker;
@@ -28,6 +33,8 @@ public class MenuWindow extends JFrame implements Logger {
 	private RenderingParametersSelector renderingParametersSelector;
 	private LogField logField;
 	private JButton btnRender;
+	private JButton btnPreview;
+	private JButton btnCancel;
 	
 	public MenuWindow() {
 		super();
@@ -50,26 +57,22 @@ public class MenuWindow extends JFrame implements Logger {
 		
 		btnRender = new JButton("Render scene");
 		btnRender.setEnabled(false);
-		btnRender.addActionListener((e) -> {
-			int width = renderingParametersSelector.width();
-			int height = renderingParametersSelector.height();
-			double viewPlainWidth = renderingParametersSelector.viewPlainWidth();
-			
-			if(!renderingParametersSelector.readParameters(scene, MenuWindow.this))
-				return;
-			
-			try {
-				BufferedImage img = scene.render(width, height, viewPlainWidth,MenuWindow.this);
-				present(img);
-			} catch(Exception ex) {
-				String msg = "Couldn't render " + scene.getName() + System.lineSeparator() + 
-						"Exception message: " + ex.getMessage();
-				log(msg);
-				JOptionPane.showMessageDialog(MenuWindow.this, msg, "Error", JOptionPane.ERROR_MESSAGE);
-			}
+		btnRender.addActionListener((e) -> startRender(false));
+		
+		btnPreview = new JButton("Preview");
+		btnPreview.setEnabled(false);
+		btnPreview.addActionListener((e) -> startRender(true));
+		
+		btnCancel = new JButton("Cancel rendering");
+		btnCancel.setEnabled(false);
+		btnCancel.addActionListener((e) -> {
+			if(renderedScene != null)
+				renderedScene.cancelRender();
 		});
 		
 		renderingParametersSelector.add(btnRender);
+		renderingParametersSelector.add(btnPreview);
+		renderingParametersSelector.add(btnCancel);
 		logField = new LogField();
 		
 		JPanel panel1 = new JPanel();
@@ -83,6 +86,24 @@ public class MenuWindow extends JFrame implements Logger {
 		pack();
 	}
 	
+	/**
+	 * @param preview - render a quick preview (see Scene.renderPreview) instead of the image
+	 */
+	private void startRender(boolean preview) {
+		int width = renderingParametersSelector.width();
+		int height = renderingParametersSelector.height();
+		double viewPlainWidth = renderingParametersSelector.viewPlainWidth();
+		
+		if(!renderingParametersSelector.readParameters(scene, MenuWindow.this))
+			return;
+		
+		//The scene is rendered off the event dispatch thread, so the image can be presented while it is refined.
+		renderedScene = scene;
+		updateButtons();
+		RenderJob job = new RenderJob(scene, width, height, viewPlainWidth, preview);
+		new Thread(job, "Rendering " + scene.getName()).start();
+	}
+	
 	@Override
 	public void setVisible(boolean b) {
 		super.setVisible(b);
@@ -90,14 +111,89 @@ public class MenuWindow extends JFrame implements Logger {
 	}
 	
 	public void setScene(Scene scene) {
+		if(this.scene != null && this.scene != renderedScene)
+			this.scene.releaseAccelerationStructures();
 		this.scene = scene;
-		btnRender.setEnabled(true);
+		updateButtons();
 		renderingParametersSelector.writeParameters(scene);
 		log(scene.getName() + " has been selected.");
 	}
 	
-	public void present(BufferedImage img) {
-		new ImageWindow(img, scene.getName(), this).setVisible(true);
+	public ImageWindow present(BufferedImage img) {
+		ImageWindow window = new ImageWindow(img, scene.getName(), this);
+		window.setVisible(true);
+		return window;
+	}
+	
+	private void updateButtons() {
+		btnRender.setEnabled(scene != null && renderedScene == null);
+		btnPreview.setEnabled(scene != null && renderedScene == null);
+		btnCancel.setEnabled(renderedScene != null);
+	}
+	
+	/**
+	 * Renders a scene on its own thread. The image window is opened as soon as the render starts
+	 * and repaints every region of the image that is updated.
+	 */
+	private class RenderJob implements Runnable, RenderListener {
+		private final Scene scene;
+		private final int width;
+		private final int height;
+		private final double viewPlainWidth;
+		private final boolean preview;
+		private volatile ImageWindow window = null;
+		
+		public RenderJob(Scene scene, int width, int height, double viewPlainWidth, boolean preview) {
+			this.scene = scene;
+			this.width = width;
+			this.height = height;
+			this.viewPlainWidth = viewPlainWidth;
+			this.preview = preview;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if(preview) {
+					//the structures are kept for the next previews (and renders) of the scene
+					if(!scene.hasAccelerationStructures())
+						scene.buildAccelerationStructures(MenuWindow.this);
+					BufferedImage img = scene.renderPreview(width, height, viewPlainWidth, PREVIEW_SCALE,
+							MenuWindow.this);
+					SwingUtilities.invokeLater(() -> present(img));
+					return;
+				}
+				scene.render(width, height, viewPlainWidth, MenuWindow.this, this);
+				SwingUtilities.invokeLater(() -> {
+					if(window != null)
+						window.repaint();
+				});
+			} catch(Exception ex) {
+				String msg = "Couldn't render " + scene.getName() + System.lineSeparator() + 
+						"Exception message: " + ex.getMessage();
+				log(msg);
+				SwingUtilities.invokeLater(() -> 
+					JOptionPane.showMessageDialog(MenuWindow.this, msg, "Error", JOptionPane.ERROR_MESSAGE));
+			} finally {
+				SwingUtilities.invokeLater(() -> {
+					renderedScene = null;
+					updateButtons();
+				});
+			}
+		}
+		
+		@Override
+		public void renderStarted(BufferedImage img) {
+			SwingUtilities.invokeLater(() -> window = present(img));
+		}
+		
+		@Override
+		public void regionUpdated(int x, int y, int width, int height) {
+			//repaint requests are thread safe, regions updated before the window is shown are painted with it
+			ImageWindow window = this.window;
+			if(window != null)
+				window.repaintImage(x, y, width, height);
+		}
 	}
 	
 	//MARK: Logger
@@ -0,0 +1,223 @@
+package edu.cg.menu;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import edu.cg.scene.Scene;
+import edu.cg.scene.objects.Material;
+import edu.cg.scene.objects.Shape;
+import edu.cg.scene.objects.Surface;
+import edu.cg.scene.objects.TriangleMesh;
+
+/**
+ * Loads scenes saved by GsonMaker without building the whole JSON tree (or the whole file as a String) first.
+ * The file is memory mapped and read with a streaming JsonReader: the surfaces are built one at a time as
+ * they are read, with a single class lookup and type adapter per shape class, and the arrays of triangle
+ * meshes are read straight into primitive arrays. The rest of the scene (camera, lights and parameters)
+ * is small and goes through Gson as usual.
+ * <p>
+ * Scenes saved in the binary format (see BinarySceneFile) are recognized by their magic number and read by it.
+ */
+public class SceneLoader {
+    private static final String CLASSNAME = "CLASSNAME";
+    private static final String DATA = "DATA";
+    private static final String SURFACES = "surfaces";
+
+    private final Gson gson = GsonMaker.getInstance();
+    private final TypeAdapter<JsonElement> elementAdapter = gson.getAdapter(JsonElement.class);
+    private final TypeAdapter<Material> materialAdapter = gson.getAdapter(Material.class);
+    private final Map<String, TypeAdapter<? extends Shape>> shapeAdapters = new HashMap<>();
+
+    private SceneLoader() {
+    }
+
+    /**
+     * @param filename - a scene saved as JSON by GsonMaker, or in the binary format
+     * @throws IOException if the file can't be read
+     * @throws JsonParseException if the file isn't a valid scene
+     */
+    public static Scene load(String filename) throws IOException {
+        if (BinarySceneFile.isBinary(Paths.get(filename)))
+            return BinarySceneFile.read(filename);
+        try (JsonReader reader = new JsonReader(new MappedReader(Paths.get(filename)))) {
+            return new SceneLoader().readScene(reader);
+        }
+    }
+
+    private Scene readScene(JsonReader reader) throws IOException {
+        JsonObject header = new JsonObject();
+        List<Surface> surfaces = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(SURFACES) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    surfaces.add(readSurface(reader));
+                reader.endArray();
+            } else {
+                header.add(name, elementAdapter.read(reader));
+            }
+        }
+        reader.endObject();
+
+        Scene scene = gson.fromJson(header, Scene.class);
+        for (Surface surface : surfaces)
+            scene.addSurface(surface);
+        return scene;
+    }
+
+    private Surface readSurface(JsonReader reader) throws IOException {
+        Shape shape = null;
+        Material material = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case "shape":
+                shape = readShape(reader);
+                break;
+            case "material":
+                material = materialAdapter.read(reader);
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Surface(shape, material);
+    }
+
+    /**
+     * Reads a shape wrapped by GsonMaker as {CLASSNAME: ..., DATA: ...}.
+     */
+    private Shape readShape(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        String className = null;
+        JsonElement pendingData = null;
+        Shape shape = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+            case CLASSNAME:
+                className = reader.nextString();
+                break;
+            case DATA:
+                if (className == null) //the data came first, hold it until the class is known
+                    pendingData = elementAdapter.read(reader);
+                else
+                    shape = readShapeData(className, reader);
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (className == null)
+            throw new JsonParseException("A shape without " + CLASSNAME + " at " + reader.getPath());
+        if (pendingData != null)
+            shape = adapter(className).fromJsonTree(pendingData);
+        return shape;
+    }
+
+    private Shape readShapeData(String className, JsonReader reader) throws IOException {
+        if (className.equals(TriangleMesh.class.getName()))
+            return readTriangleMesh(reader);
+        return adapter(className).read(reader);
+    }
+
+    private TypeAdapter<? extends Shape> adapter(String className) {
+        TypeAdapter<? extends Shape> adapter = shapeAdapters.get(className);
+        if (adapter == null) {
+            Class<Shape> klass = new GsonMaker<Shape>().getObjectClass(className);
+            if (!Shape.class.isAssignableFrom(klass))
+                throw new JsonParseException(className + " is not a shape");
+            adapter = gson.getAdapter(klass);
+            shapeAdapters.put(className, adapter);
+        }
+        return adapter;
+    }
+
+    private TriangleMesh readTriangleMesh(JsonReader reader) throws IOException {
+        String objFile = null;
+        double[] vertices = null, normals = null;
+        int[] indices = null, normalIndices = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+            case "objFile":
+                objFile = reader.nextString();
+                break;
+            case "vertices":
+                vertices = readDoubles(reader);
+                break;
+            case "indices":
+                indices = readInts(reader);
+                break;
+            case "normals":
+                normals = readDoubles(reader);
+                break;
+            case "normalIndices":
+                normalIndices = readInts(reader);
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (objFile != null)
+            return new TriangleMesh().initObjFile(objFile);
+        TriangleMesh mesh = new TriangleMesh(vertices != null ? vertices : new double[0],
+                indices != null ? indices : new int[0]);
+        if (normals != null && normalIndices != null)
+            mesh.initNormals(normals, normalIndices);
+        return mesh;
+    }
+
+    private static double[] readDoubles(JsonReader reader) throws IOException {
+        double[] values = new double[1024];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2 * size);
+            values[size++] = reader.nextDouble();
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, size);
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException {
+        int[] values = new int[1024];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2 * size);
+            values[size++] = reader.nextInt();
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -9,6 +9,7 @@ import java.lang.reflect.Method;
 import java.util.function.Consumer;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -18,6 +19,7 @@ import javax.swing.border.EtchedBorder;
 import com.google.gson.Gson;
 
 import edu.cg.Scenes;
+import edu.cg.menu.BinarySceneFile;
 import edu.cg.menu.MenuWindow;
 import edu.cg.scene.Scene;
 import edu.cg.menu.GsonMaker;
@@ -25,6 +27,7 @@ import edu.cg.menu.GsonMaker;
 @SuppressWarnings("serial")
 public class ScenesCreator extends JPanel {
 	private JFormattedTextField sceneNumTextField;
+	private JCheckBox binaryCheckBox;
 	
 	public ScenesCreator(MenuWindow menuWindow, Consumer<String> sceneSelector) {
 		super();
@@ -37,6 +40,11 @@ public class ScenesCreator extends JPanel {
 		sceneNumTextField = addAndGetTextField("      scene");
 		
 		
+		binaryCheckBox = new JCheckBox("Binary");
+		binaryCheckBox.setToolTipText("Save the scene in the compact binary format (" + BinarySceneFile.EXTENSION +
+				") instead of JSON");
+		add(binaryCheckBox);
+		
 		add(new JLabel("            "));
 		
 		String btnName = "Create scene";
@@ -53,14 +61,20 @@ public class ScenesCreator extends JPanel {
 				try {
 					Method sceneMakerMethod = scenes.getMethod(sceneName);
 
-					Gson gson = GsonMaker.getInstance();
 					Object scene = sceneMakerMethod.invoke(null);
-					String jsonStr = gson.toJson(scene, Scene.class);
-					String sceneFileName = "scenes/" + sceneName + ".json";
-					FileWriter writer = new FileWriter(sceneFileName);
-					writer.write(jsonStr);
-					writer.flush();
-					writer.close();
+					String sceneFileName;
+					if (binaryCheckBox.isSelected()) {
+						sceneFileName = "scenes/" + sceneName + BinarySceneFile.EXTENSION;
+						BinarySceneFile.write((Scene) scene, sceneFileName);
+					} else {
+						Gson gson = GsonMaker.getInstance();
+						String jsonStr = gson.toJson(scene, Scene.class);
+						sceneFileName = "scenes/" + sceneName + ".json";
+						FileWriter writer = new FileWriter(sceneFileName);
+						writer.write(jsonStr);
+						writer.flush();
+						writer.close();
+					}
 
 					sceneSelector.accept(sceneFileName);
 
@@ -69,7 +83,7 @@ public class ScenesCreator extends JPanel {
 				} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e1) {
 					throw new RuntimeException("Unknon error while inviking:  Scenes." + sceneName + "()");
 				} catch (IOException e1) {
-					throw new RuntimeException("Couldn't create file: " + sceneName + ".json");
+					throw new RuntimeException("Couldn't create file for: " + sceneName);
 				}
 			} catch (Exception ex) {
 				String msg = "Error in " + btnName + "!" + System.lineSeparator() + ex.getMessage();
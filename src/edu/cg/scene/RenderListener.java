@@ -0,0 +1,20 @@
+package edu.cg.scene;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the progress of a progressive render. The methods are called from render threads.
+ */
+@FunctionalInterface
+public interface RenderListener {
+    /**
+     * Called once, before any pixel is rendered, with the image that the render writes into.
+     */
+    public default void renderStarted(BufferedImage img) {
+    }
+
+    /**
+     * Called whenever the pixels of a region of the image were updated.
+     */
+    public void regionUpdated(int x, int y, int width, int height);
+}
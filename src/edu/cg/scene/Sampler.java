@@ -0,0 +1,31 @@
+package edu.cg.scene;
+
+/**
+ * A small deterministic random number generator (SplitMix64).
+ * Every pixel seeds its own sampler from its coordinates, so a pixel gets the same samples
+ * regardless of the thread, tile or order in which it is rendered.
+ */
+public class Sampler {
+    private long state;
+
+    public Sampler(long seed) {
+        this.state = seed;
+    }
+
+    public Sampler(int x, int y) {
+        this(mix(((long) x << 32) ^ (y & 0xffffffffL)));
+    }
+
+    /**
+     * @return a uniformly distributed number in [0, 1)
+     */
+    public double next() {
+        return (mix(state += 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -1,33 +1,62 @@
 package edu.cg.scene;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 import edu.cg.Logger;
 import edu.cg.UnimplementedMethodException;
 import edu.cg.algebra.*;
+import edu.cg.scene.acceleration.Accelerator;
+import edu.cg.scene.acceleration.Accelerators;
+import edu.cg.scene.acceleration.CompiledScene;
+import edu.cg.scene.acceleration.RayPacket;
 import edu.cg.scene.camera.PinholeCamera;
 import edu.cg.scene.lightSources.Light;
+import edu.cg.scene.lightSources.LightIndex;
+import edu.cg.scene.metrics.RenderMetrics;
+import edu.cg.scene.metrics.RenderMonitor;
+import edu.cg.scene.objects.Shape;
 import edu.cg.scene.objects.Surface;
 
 public class Scene {
+    private static final int PREVIEW_BLOCK = 8; //the preview of a progressive render has a ray per 8x8 pixels
+    private static final int PACKET_SIZE = 8; //primary rays are traced in packets of 8x8 pixels
+    //the lights addLightColors samples from, reused by the hits of a thread
+    private static final ThreadLocal<LightCandidates> LIGHT_CANDIDATES = ThreadLocal.withInitial(LightCandidates::new);
+
     private String name = "scene";
     private int maxRecursionLevel = 1;
     private int antiAliasingFactor = 1; //gets the values of 1, 2 and 3
+    private boolean adaptiveAntiAliasing = false; //supersample only pixels with a contrasted neighbourhood
+    private double adaptiveThreshold = 0.1; //the contrast (per color channel, in [0, 1]) that triggers supersampling
     private boolean renderRefarctions = false;
     private boolean renderReflections = false;
+    private double minRayContribution = 0; //reflected and refracted rays that contribute less are not traced
+    private boolean russianRoulette = false; //terminate low contribution rays at random instead, without bias
+    private double lightCutoff = LightIndex.DEFAULT_CUTOFF; //see initLightCutoff
+    private int lightSamples = 0; //0 shades every light at every hit point, see initLightSamples
+    private transient Accelerator.Kind acceleratorKind = Accelerator.Kind.AUTO; //see initAccelerator
+    private transient boolean usePackets = true; //trace the primary rays of neighbouring pixels together
+    private transient int tileSize = TileScheduler.DEFAULT_TILE_SIZE;
+    private transient ForkJoinPool executor = null; //null means the pool shared by all scenes
+    private transient boolean collectMetrics = false; //count intersection tests and time intersection queries
 
     private PinholeCamera camera;
     private Vec ambient = new Vec(1, 1, 1); //white
     private Vec backgroundColor = new Vec(0, 0.5, 1); //blue sky
     private List<Light> lightSources = new LinkedList<>();
-    private List<Surface> surfaces = new LinkedList<>();
+    private List<Surface> surfaces = new ArrayList<>();
 
 
     //MARK: initializers
@@ -48,11 +77,34 @@ public class Scene {
 
     public Scene addLightSource(Light lightSource) {
         lightSources.add(lightSource);
+        if (compiledScene != null)
+            lightsStale = true;
         return this;
     }
 
     public Scene addSurface(Surface surface) {
         surfaces.add(surface);
+        if (compiledScene != null)
+            structuresStale = true;
+        return this;
+    }
+
+    /**
+     * Replaces the surface at the given position, e.g. to move it between the frames of an animation.
+     * Structures kept by buildAccelerationStructures are updated in place before the next render: the surface is
+     * rewritten into the compiled scene and the accelerator is refitted (the grid and the octree are built again,
+     * see Accelerator.refit), they are only built again when that isn't possible. The light index is built again.
+     * Must not be called during a render.
+     */
+    public Scene setSurface(int index, Surface surface) {
+        surfaces.set(index, surface);
+        if (compiledScene != null) {
+            lightsStale = true;
+            if (compiledScene.update(index, surface))
+                boundsChanged = true;
+            else
+                structuresStale = true;
+        }
         return this;
     }
 
@@ -66,6 +118,16 @@ public class Scene {
         return this;
     }
 
+    public Scene initAdaptiveAntiAliasing(boolean adaptiveAntiAliasing) {
+        this.adaptiveAntiAliasing = adaptiveAntiAliasing;
+        return this;
+    }
+
+    public Scene initAdaptiveThreshold(double adaptiveThreshold) {
+        this.adaptiveThreshold = adaptiveThreshold;
+        return this;
+    }
+
     public Scene initName(String name) {
         this.name = name;
         return this;
@@ -81,15 +143,124 @@ public class Scene {
         return this;
     }
 
+    /**
+     * Sets the throughput below which reflected and refracted rays are terminated. The throughput of a ray is the
+     * product of the reflection and refraction intensities along its path, i.e. the fraction of its color that
+     * reaches the pixel. Rays with no contribution at all are never traced.
+     */
+    public Scene initMinRayContribution(double minRayContribution) {
+        this.minRayContribution = minRayContribution;
+        return this;
+    }
+
+    /**
+     * When enabled, a ray whose throughput is below the minimal contribution is not always terminated: it
+     * survives with a probability proportional to its throughput and its color is scaled up accordingly,
+     * so the expected color of the pixel is unchanged.
+     */
+    public Scene initRussianRoulette(boolean russianRoulette) {
+        this.russianRoulette = russianRoulette;
+        return this;
+    }
+
+    /**
+     * Chooses how the surfaces hit by a ray are found during a render: by a linear scan, a BVH, a uniform grid or
+     * an octree. They all find the same hits, only their speed differs, and AUTO (the default) chooses one from
+     * the surfaces of the scene (see Accelerators.choose).
+     */
+    public Scene initAccelerator(Accelerator.Kind acceleratorKind) {
+        this.acceleratorKind = acceleratorKind;
+        return this;
+    }
+
+    /**
+     * Skips the lights that are too dim to change the color of a hit point by more than the cutoff in any channel,
+     * together with their shadow rays (see LightIndex). The bound holds per shading point: the errors of the hit
+     * points of the reflected and refracted rays are added to the pixel too, weighted by the reflection and
+     * refraction intensities, so with several recursion levels a pixel may change by more than the cutoff.
+     * The default is half of an 8-bit color step, 0 shades every point with every light.
+     */
+    public Scene initLightCutoff(double lightCutoff) {
+        this.lightCutoff = lightCutoff;
+        if (compiledScene != null)
+            lightsStale = true;
+        return this;
+    }
+
+    /**
+     * Caps the shadow rays of a hit point: when more lights may reach it, lightSamples of them are chosen at
+     * random, the brighter ones more often, and their colors are weighted so that the expected color is unchanged.
+     * The image gets noisier as the cap gets lower, 0 (the default) shades every light for reference renders.
+     */
+    public Scene initLightSamples(int lightSamples) {
+        this.lightSamples = lightSamples;
+        return this;
+    }
+
+    /**
+     * @param useBVH - false falls back to a linear scan over the surfaces, true is the same as
+     *               initAccelerator(Accelerator.Kind.BVH)
+     */
+    public Scene initUseBVH(boolean useBVH) {
+        return initAccelerator(useBVH ? Accelerator.Kind.BVH : Accelerator.Kind.LINEAR);
+    }
+
+    /**
+     * Enables tracing the primary rays of blocks of PACKET_SIZE x PACKET_SIZE pixels as packets (when a pixel
+     * gets a single ray). The packets find exactly the same hits as single rays.
+     */
+    public Scene initUsePackets(boolean usePackets) {
+        this.usePackets = usePackets;
+        return this;
+    }
+
+    public Scene initTileSize(int tileSize) {
+        this.tileSize = tileSize;
+        return this;
+    }
+
+    /**
+     * Sets the pool that renders the tiles of this scene. The pool is not shut down by the scene,
+     * so it can be reused across renders.
+     */
+    public Scene initExecutor(ForkJoinPool executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Enables the detailed metrics of the renders: the intersection tests per shape type and the time spent
+     * in intersection queries versus shading. They cost a clock read per query, so they are off by default.
+     */
+    public Scene initCollectMetrics(boolean collectMetrics) {
+        this.collectMetrics = collectMetrics;
+        return this;
+    }
+
     //MARK: getters
     public String getName() {
         return name;
     }
 
+    /**
+     * @return the surfaces in scene order, read only
+     */
+    public List<Surface> getSurfaces() {
+        return Collections.unmodifiableList(surfaces);
+    }
+
     public int getFactor() {
         return antiAliasingFactor;
     }
 
+    public boolean getAdaptiveAntiAliasing() {
+        return adaptiveAntiAliasing;
+    }
+
+    public double getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
     public int getMaxRecursionLevel() {
         return maxRecursionLevel;
     }
@@ -102,6 +273,69 @@ public class Scene {
         return renderReflections;
     }
 
+    public double getMinRayContribution() {
+        return minRayContribution;
+    }
+
+    public boolean getRussianRoulette() {
+        return russianRoulette;
+    }
+
+    public Accelerator.Kind getAccelerator() {
+        return acceleratorKind;
+    }
+
+    public boolean getUsePackets() {
+        return usePackets;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public boolean getCollectMetrics() {
+        return collectMetrics;
+    }
+
+    /**
+     * @return the metrics of the last render of this scene, or null if it was never rendered
+     */
+    public RenderMetrics getLastRenderMetrics() {
+        return lastRenderMetrics;
+    }
+
+    /**
+     * @return the number of rays (primary, reflected and refracted) traced by the last render
+     */
+    public long getRayCount() {
+        return rayCount.sum();
+    }
+
+    /**
+     * @return the number of rays traced by the last render at every recursion level, primary rays first
+     */
+    public long[] getRayCountsPerDepth() {
+        long[] counts = new long[rayCountPerDepth.length];
+        for (int depth = 0; depth < counts.length; ++depth)
+            counts[depth] = rayCountPerDepth[depth].sum();
+        return counts;
+    }
+
+    /**
+     * @return the number of reflected and refracted rays of the last render that were terminated because of their
+     * low contribution (see initMinRayContribution)
+     */
+    public long getTerminatedRayCount() {
+        return terminatedRayCount.sum();
+    }
+
+    /**
+     * @return the number of shadow rays cast by the last render
+     */
+    public long getShadowRayCount() {
+        return shadowRayCount.sum();
+    }
+
     @Override
     public String toString() {
         String endl = System.lineSeparator();
@@ -109,77 +343,661 @@ public class Scene {
                 "Ambient: " + ambient + endl +
                 "Background Color: " + backgroundColor + endl +
                 "Max recursion level: " + maxRecursionLevel + endl +
-                "Anti aliasing factor: " + antiAliasingFactor + endl +
+                "Anti aliasing factor: " + antiAliasingFactor + (adaptiveAntiAliasing ? " (adaptive)" : "") + endl +
                 "Light sources:" + endl + lightSources + endl +
                 "Surfaces:" + endl + surfaces;
     }
 
-    private transient ExecutorService executor = null;
     private transient Logger logger = null;
+    private transient CompiledScene compiledScene = null;
+    private transient Accelerator accelerator = null;
+    private transient LightIndex lightIndex = null;
+    private transient boolean structuresStale = false; //surfaces were added or changed type since the build
+    private transient boolean boundsChanged = false; //surfaces were moved since the accelerator was built
+    private transient boolean lightsStale = false; //lights, surfaces or the cutoff changed since the light index
+    private transient volatile TileScheduler activeScheduler = null;
+    private transient volatile boolean cancelled = false; //cancelRender was called, maybe before the scheduler
+    private transient volatile Scene activeSnapshot = null; //the snapshot being rendered, see snapshot()
+    // statistics of the last render
+    private transient LongAdder rayCount = new LongAdder();
+    private transient LongAdder shadowRayCount = new LongAdder();
+    private transient LongAdder[] rayCountPerDepth = new LongAdder[0];
+    private transient LongAdder terminatedRayCount = new LongAdder();
+    private transient LongAdder reflectionRayCount = new LongAdder();
+    private transient LongAdder refractionRayCount = new LongAdder();
+    // per thread counters, only while rendering with collectMetrics
+    private transient ThreadLocal<ThreadMetrics> threadMetrics = null;
+    private transient Queue<ThreadMetrics> allThreadMetrics = null;
+    private transient RenderMetrics lastRenderMetrics = null;
 
-    private void initSomeFields(int imgWidth, int imgHeight, Logger logger) {
+    /**
+     * @return true if the acceleration structures were built for this render, and should be released after it
+     */
+    private boolean initSomeFields(int imgWidth, int imgHeight, Logger logger) {
         this.logger = logger;
+        rayCount.reset();
+        shadowRayCount.reset();
+        terminatedRayCount.reset();
+        reflectionRayCount.reset();
+        refractionRayCount.reset();
+        if (collectMetrics) {
+            Queue<ThreadMetrics> all = new ConcurrentLinkedQueue<>();
+            allThreadMetrics = all;
+            threadMetrics = ThreadLocal.withInitial(() -> {
+                ThreadMetrics metrics = new ThreadMetrics();
+                all.add(metrics);
+                return metrics;
+            });
+        }
+        rayCountPerDepth = new LongAdder[Math.max(0, maxRecursionLevel)];
+        for (int depth = 0; depth < rayCountPerDepth.length; ++depth)
+            rayCountPerDepth[depth] = new LongAdder();
+        if (compiledScene != null) {
+            updateAccelerationStructures(logger);
+            return false;
+        }
+        buildAccelerationStructures(logger);
+        return true;
+    }
+
+    /**
+     * Brings the structures kept by buildAccelerationStructures up to date with the changes of setSurface,
+     * addSurface, addLightSource and initLightCutoff.
+     */
+    private void updateAccelerationStructures(Logger logger) {
+        if (structuresStale) {
+            buildAccelerationStructures(logger);
+            return;
+        }
+        if (lightsStale)
+            buildLightIndex(logger);
+        if (!boundsChanged)
+            return;
+        boundsChanged = false;
+        if (accelerator == compiledScene)
+            return;
+        long start = System.currentTimeMillis();
+        if (accelerator.refit()) {
+            logger.log("Refitted " + accelerator.describe() + " in " + (System.currentTimeMillis() - start) + "ms");
+            return;
+        }
+        accelerator = Accelerators.build(acceleratorKind, compiledScene);
+        logger.log("Rebuilt " + accelerator.describe() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Compiles the surfaces into flat arrays and builds the acceleration structures used by findMinIntersection
+     * (the accelerator, see initAccelerator), and the light index of the shading (see initLightCutoff).
+     * render() builds them on its own and releases them when done. Call this to query the scene outside a render,
+     * or to reuse the structures over many renders of the same surfaces, until releaseAccelerationStructures().
+     *
+     * @param logger - receives the build statistics
+     */
+    public void buildAccelerationStructures(Logger logger) {
+        structuresStale = false;
+        boundsChanged = false;
+        compiledScene = new CompiledScene(surfaces);
+        long start = System.currentTimeMillis();
+        accelerator = Accelerators.build(acceleratorKind, compiledScene);
+        if (accelerator != compiledScene)
+            logger.log("Built " + accelerator.describe() + " in " + (System.currentTimeMillis() - start) + "ms");
+        buildLightIndex(logger);
+    }
+
+    private void buildLightIndex(Logger logger) {
+        lightsStale = false;
+        long start = System.currentTimeMillis();
+        lightIndex = new LightIndex(lightSources, surfaces, lightCutoff);
+        if (lightIndex.isEnabled() && !lightSources.isEmpty())
+            logger.log(lightIndex.describe() + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return true if the structures built by buildAccelerationStructures are kept for the next renders
+     */
+    public boolean hasAccelerationStructures() {
+        return compiledScene != null;
+    }
+
+    /**
+     * Releases the structures built by buildAccelerationStructures, later renders build their own again.
+     */
+    public void releaseAccelerationStructures() {
+        accelerator = null;
+        compiledScene = null;
+        lightIndex = null;
+        structuresStale = false;
+        boundsChanged = false;
+        lightsStale = false;
     }
 
 
     public BufferedImage render(int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
             throws InterruptedException, ExecutionException {
+        return render(imgWidth, imgHeight, viewPlainWidth, logger, null);
+    }
+
+    /**
+     * Renders the scene progressively: a coarse preview (one ray per PREVIEW_BLOCK x PREVIEW_BLOCK pixels) is
+     * rendered first, then it is refined in place tile by tile. The listener is told about every updated region,
+     * so the image can be displayed while it is rendered.
+     * The render can be stopped with cancelRender(), the image is then returned with the tiles completed so far.
+     *
+     * @param listener - notified of the progress of the render, null renders without a preview
+     */
+    public BufferedImage render(int imgWidth, int imgHeight, double viewPlainWidth, Logger logger,
+            RenderListener listener) throws InterruptedException, ExecutionException {
+        BufferedImage img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        // the tiles write straight into the pixels of the image
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        if (listener != null)
+            listener.renderStarted(img);
+        renderFrame(new Tile(0, 0, imgWidth, imgHeight), imgWidth, imgHeight, viewPlainWidth, framebuffer, logger,
+                listener);
+        return img;
+    }
+
+    /**
+     * Renders a region of the image only. Its pixels are the same as the pixels of the region in a render of
+     * the whole image, so an image can be rendered in parts (e.g. by several processes) and assembled.
+     *
+     * @param region - the pixels to render, within the image
+     * @return the pixels of the region, as 0xRRGGBB in row-major order
+     */
+    public int[] renderRegion(Tile region, int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
+            throws InterruptedException, ExecutionException {
+        checkRegion(region, imgWidth, imgHeight);
+        int[] pixels = new int[region.area()];
+        renderFrame(region, imgWidth, imgHeight, viewPlainWidth, pixels, logger, null);
+        return pixels;
+    }
+
+    /**
+     * Renders a crop of the image: only the rays of the region are traced, and its pixels are the same as in a
+     * render of the whole image.
+     *
+     * @param region - the pixels to render, within the image
+     * @return an image of the size of the region
+     */
+    public BufferedImage renderCrop(Tile region, int imgWidth, int imgHeight, double viewPlainWidth, Logger logger)
+            throws InterruptedException, ExecutionException {
+        checkRegion(region, imgWidth, imgHeight);
+        BufferedImage img = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        renderFrame(region, imgWidth, imgHeight, viewPlainWidth, framebuffer, logger, null);
+        return img;
+    }
+
+    /**
+     * Renders crops of the same image (see renderCrop), the acceleration structures are built once for all
+     * of them.
+     *
+     * @return the images of the regions, in the same order
+     */
+    public List<BufferedImage> renderCrops(List<Tile> regions, int imgWidth, int imgHeight, double viewPlainWidth,
+            Logger logger) throws InterruptedException, ExecutionException {
+        for (Tile region : regions)
+            checkRegion(region, imgWidth, imgHeight);
+        boolean ownsStructures = compiledScene == null;
+        if (ownsStructures)
+            buildAccelerationStructures(logger);
+        try {
+            List<BufferedImage> crops = new ArrayList<>();
+            for (Tile region : regions)
+                crops.add(renderCrop(region, imgWidth, imgHeight, viewPlainWidth, logger));
+            return crops;
+        } finally {
+            if (ownsStructures)
+                releaseAccelerationStructures();
+        }
+    }
+
+    /**
+     * Renders a quick preview of the image, for laying out the scene: a single ray is shot per scale x scale
+     * block of pixels and it is shaded with the ambient and diffuse terms only, without specular highlights,
+     * shadows, reflections or refractions. The low resolution image is upsampled bilinearly to the size of the
+     * image. Keep the acceleration structures (see buildAccelerationStructures) over repeated previews.
+     *
+     * @param scale - the size of the blocks of pixels, 1 shoots a ray per pixel
+     */
+    public BufferedImage renderPreview(int imgWidth, int imgHeight, double viewPlainWidth, int scale, Logger logger)
+            throws InterruptedException, ExecutionException {
+        if (scale < 1)
+            throw new IllegalArgumentException("The scale of a preview must be at least 1");
+        BufferedImage img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        int[] framebuffer = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        Scene snapshot = snapshot(logger);
+        try {
+            snapshot.tracePreview(framebuffer, imgWidth, imgHeight, viewPlainWidth, scale, logger);
+        } finally {
+            adoptStatistics(snapshot);
+        }
+        return img;
+    }
+
+    /**
+     * Renders the preview of a snapshot, see renderPreview.
+     */
+    private void tracePreview(int[] framebuffer, int imgWidth, int imgHeight, double viewPlainWidth, int scale,
+            Logger logger) throws InterruptedException, ExecutionException {
+        Tile frame = new Tile(0, 0, imgWidth, imgHeight);
+        Tile lowResolution = new Tile(0, 0, (imgWidth + scale - 1) / scale, (imgHeight + scale - 1) / scale);
+
+        boolean ownsStructures = initSomeFields(imgWidth, imgHeight, logger);
+        camera.initResolution(imgHeight, imgWidth, viewPlainWidth);
+        TileScheduler scheduler = newScheduler();
+        long renderStart = System.nanoTime();
+        try {
+            this.logger.log("Starting to shoot " + lowResolution.area() + " preview rays over " + name);
+            int[] samples = scale == 1 ? framebuffer : new int[lowResolution.area()];
+            scheduler.render(scheduler.tiles(lowResolution), lowResolution,
+                    (tile, pixels, pixelsFrame) -> renderPreviewPackets(tile, pixels, pixelsFrame, scale, imgWidth,
+                            imgHeight),
+                    samples, null);
+            if (scale > 1)
+                scheduler.render(scheduler.tiles(frame), frame,
+                        (x, y) -> upsample(samples, lowResolution, scale, x, y), framebuffer, null);
+            recordMetrics(scheduler, imgWidth, imgHeight, System.nanoTime() - renderStart);
+            this.logger.log("Preview of " + name + " has been " + (scheduler.isCancelled() ? "cancelled." :
+                    "completed in " + (System.nanoTime() - renderStart) / 1000000 + "ms."));
+        } finally {
+            activeScheduler = null;
+            threadMetrics = null;
+            allThreadMetrics = null;
+            this.logger = null;
+            if (ownsStructures)
+                releaseAccelerationStructures();
+        }
+    }
+
+    private static void checkRegion(Tile region, int imgWidth, int imgHeight) {
+        if (region.width <= 0 || region.height <= 0 || !new Tile(0, 0, imgWidth, imgHeight).contains(region))
+            throw new IllegalArgumentException(region + " is not within the image " + imgWidth + "x" + imgHeight);
+    }
+
+    /**
+     * Renders the frame (a region of the image, or the whole of it) into the framebuffer, which holds the frame.
+     *
+     * @param listener - notified of the progress of the render, only for a frame that is the whole image
+     */
+    private void renderFrame(Tile frame, int imgWidth, int imgHeight, double viewPlainWidth, int[] framebuffer,
+            Logger logger, RenderListener listener) throws InterruptedException, ExecutionException {
+        Scene snapshot = snapshot(logger);
+        try {
+            snapshot.traceFrame(frame, imgWidth, imgHeight, viewPlainWidth, framebuffer, logger, listener);
+        } finally {
+            adoptStatistics(snapshot);
+        }
+    }
+
+    /**
+     * Freezes the scene for a render. The snapshot holds copies of the settings, of the camera and of the lists
+     * of lights and surfaces, and shares the acceleration structures kept by buildAccelerationStructures, which
+     * are brought up to date first. The render threads only read the snapshot, without locks, so this scene can
+     * be edited during the render (e.g. by the GUI), the edits apply to the next render.
+     */
+    private Scene snapshot(Logger logger) {
+        if (compiledScene != null)
+            updateAccelerationStructures(logger);
+        Scene snapshot = new Scene();
+        snapshot.name = name;
+        snapshot.maxRecursionLevel = maxRecursionLevel;
+        snapshot.antiAliasingFactor = antiAliasingFactor;
+        snapshot.adaptiveAntiAliasing = adaptiveAntiAliasing;
+        snapshot.adaptiveThreshold = adaptiveThreshold;
+        snapshot.renderRefarctions = renderRefarctions;
+        snapshot.renderReflections = renderReflections;
+        snapshot.minRayContribution = minRayContribution;
+        snapshot.russianRoulette = russianRoulette;
+        snapshot.acceleratorKind = acceleratorKind;
+        snapshot.usePackets = usePackets;
+        snapshot.tileSize = tileSize;
+        snapshot.executor = executor;
+        snapshot.collectMetrics = collectMetrics;
+        snapshot.lightCutoff = lightCutoff;
+        snapshot.lightSamples = lightSamples;
+        snapshot.camera = camera.copy();
+        snapshot.ambient = new Vec(ambient);
+        snapshot.backgroundColor = new Vec(backgroundColor);
+        snapshot.lightSources = new ArrayList<>(lightSources);
+        snapshot.surfaces = new ArrayList<>(surfaces);
+        snapshot.compiledScene = compiledScene;
+        snapshot.accelerator = accelerator;
+        snapshot.lightIndex = lightIndex;
+        activeSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Makes the statistics of the render of the snapshot the statistics of the last render of this scene.
+     */
+    private void adoptStatistics(Scene snapshot) {
+        rayCount = snapshot.rayCount;
+        shadowRayCount = snapshot.shadowRayCount;
+        rayCountPerDepth = snapshot.rayCountPerDepth;
+        terminatedRayCount = snapshot.terminatedRayCount;
+        reflectionRayCount = snapshot.reflectionRayCount;
+        refractionRayCount = snapshot.refractionRayCount;
+        lastRenderMetrics = snapshot.lastRenderMetrics;
+        activeSnapshot = null;
+    }
+
+    /**
+     * Renders the frame of a snapshot, see renderFrame.
+     */
+    private void traceFrame(Tile frame, int imgWidth, int imgHeight, double viewPlainWidth, int[] framebuffer,
+            Logger logger, RenderListener listener) throws InterruptedException, ExecutionException {
         // This method is invoked each time Render Scene button is invoked.
         // Use it to initialize additional fields you need.
-        initSomeFields(imgWidth, imgHeight, logger);
-        BufferedImage img = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
+        boolean ownsStructures = initSomeFields(imgWidth, imgHeight, logger);
         camera.initResolution(imgHeight, imgWidth, viewPlainWidth);
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        nThreads = nThreads < 2 ? 2 : nThreads;
-        this.logger.log("Intitialize executor. Using " + nThreads + " threads to render " + name);
-        executor = Executors.newFixedThreadPool(nThreads);
+        TileScheduler scheduler = newScheduler();
+        this.logger.log("Using " + scheduler.parallelism() + " threads and tiles of " + tileSize + "x" + tileSize +
+                " pixels to render " + name);
+        TileScheduler.TileListener tileListener = listener == null ? null :
+                tile -> listener.regionUpdated(tile.x, tile.y, tile.width, tile.height);
 
-        @SuppressWarnings("unchecked")
-        Future<Color>[][] futures = (Future<Color>[][]) (new Future[imgHeight][imgWidth]);
+        long renderStart = System.nanoTime();
+        try {
+            if (listener != null) {
+                renderProgressivePreview(scheduler, framebuffer, imgWidth, imgHeight);
+                listener.regionUpdated(0, 0, imgWidth, imgHeight);
+            }
 
-        this.logger.log("Starting to shoot " +
-                (imgHeight * imgWidth * antiAliasingFactor * antiAliasingFactor) +
-                " rays over " + name);
+            int samples = antiAliasingFactor * antiAliasingFactor;
+            List<Tile> tiles = scheduler.tiles(frame);
+            TileScheduler.TileRenderer singleSample = usePackets ? this::renderPackets :
+                    (tile, pixels, pixelsFrame) -> renderPixels(tile, pixels, pixelsFrame, 1);
+            if (adaptiveAntiAliasing && samples > 1) {
+                // the contrast of the pixels at the border of the frame depends on the pixels around it
+                Tile firstPassFrame = frame.grow(1, imgWidth, imgHeight);
+                boolean wholeImage = firstPassFrame.equals(frame);
+                this.logger.log("Starting to shoot " + firstPassFrame.area() + " rays over " + name);
+                int[] firstPassPixels = wholeImage ? framebuffer : new int[firstPassFrame.area()];
+                scheduler.render(scheduler.tiles(firstPassFrame), firstPassFrame, singleSample, firstPassPixels,
+                        wholeImage ? tileListener : null);
 
-        for (int y = 0; y < imgHeight; ++y)
-            for (int x = 0; x < imgWidth; ++x) {
-                futures[y][x] = calcColor(x, y);
+                // the neighbourhoods are read from a copy, since refined pixels are written while others are tested
+                int[] firstPass = wholeImage ? framebuffer.clone() : firstPassPixels;
+                int threshold = (int) Math.round(adaptiveThreshold * 255);
+                LongAdder refined = new LongAdder();
+                scheduler.render(tiles, frame, (x, y) -> {
+                    if (!isContrasted(firstPass, firstPassFrame, x, y, threshold))
+                        return firstPass[firstPassFrame.indexOf(x, y)];
+                    refined.increment();
+                    return calcColor(x, y, antiAliasingFactor).toRGB();
+                }, framebuffer, tileListener);
+                this.logger.log("Supersampled " + refined.sum() + " pixels, shooting another " +
+                        (refined.sum() * samples) + " rays over " + name);
+            } else {
+                this.logger.log("Starting to shoot " + (frame.area() * samples) + " rays over " + name);
+                scheduler.render(tiles, frame, samples == 1 ? singleSample :
+                        (tile, pixels, pixelsFrame) -> renderPixels(tile, pixels, pixelsFrame, antiAliasingFactor),
+                        framebuffer, tileListener);
             }
+            recordMetrics(scheduler, frame.width, frame.height, System.nanoTime() - renderStart);
+            if (scheduler.isCancelled())
+                this.logger.log("Ray tracing of " + name + " has been cancelled.");
+            else
+                this.logger.log("Ray tracing of " + name + " has been completed.");
+        } finally {
+            activeScheduler = null;
+            threadMetrics = null;
+            allThreadMetrics = null;
+            this.logger = null;
+            if (ownsStructures)
+                releaseAccelerationStructures();
+        }
+    }
+
+    private void recordMetrics(TileScheduler scheduler, int imgWidth, int imgHeight, long renderNanos) {
+        long primaryRays = rayCountPerDepth.length > 0 ? rayCountPerDepth[0].sum() : 0;
+        RenderMetrics metrics = new RenderMetrics()
+                .initScene(name, imgWidth, imgHeight)
+                .initCancelled(scheduler.isCancelled())
+                .initRenderNanos(renderNanos)
+                .initRays(primaryRays, reflectionRayCount.sum(), refractionRayCount.sum(), shadowRayCount.sum(),
+                        terminatedRayCount.sum())
+                .initTiles(scheduler.tilesRendered(), scheduler.busyNanosPerThread());
+        if (allThreadMetrics != null) {
+            long[] tests = new long[CompiledScene.NUM_TYPES];
+            long intersectionNanos = 0;
+            for (ThreadMetrics threadMetrics : allThreadMetrics) {
+                for (int type = 0; type < tests.length; ++type)
+                    tests[type] += threadMetrics.intersectionTests[type];
+                intersectionNanos += threadMetrics.intersectionNanos;
+            }
+            Map<String, Long> testsPerType = new LinkedHashMap<>();
+            for (int type = 0; type < tests.length; ++type)
+                testsPerType.put(CompiledScene.typeName(type), tests[type]);
+            metrics.initIntersections(testsPerType, intersectionNanos);
+        }
+        lastRenderMetrics = metrics;
+        RenderMonitor.getInstance().record(metrics);
+    }
 
+    /**
+     * Creates the scheduler of the render of a snapshot and publishes it for cancelRender. The snapshot may have
+     * been cancelled while its structures were built, before there was a scheduler, it is then cancelled at once.
+     */
+    private TileScheduler newScheduler() {
+        TileScheduler scheduler = new TileScheduler(executor != null ? executor : TileScheduler.sharedPool(),
+                tileSize);
+        activeScheduler = scheduler;
+        if (cancelled)
+            scheduler.cancel();
+        return scheduler;
+    }
 
-        this.logger.log("Done shooting rays.");
-        this.logger.log("Wating for results...");
+    /**
+     * Stops the render in progress, if any. Tiles that are being rendered are completed, the rest are skipped
+     * and render returns the partial image.
+     */
+    public void cancelRender() {
+        cancelled = true;
+        Scene snapshot = activeSnapshot;
+        if (snapshot != null)
+            snapshot.cancelRender();
+        TileScheduler scheduler = activeScheduler;
+        if (scheduler != null)
+            scheduler.cancel();
+    }
 
+    /**
+     * Renders one ray through the middle of every PREVIEW_BLOCK x PREVIEW_BLOCK block of pixels and fills the
+     * whole block with its color.
+     */
+    private void renderProgressivePreview(TileScheduler scheduler, int[] framebuffer, int imgWidth, int imgHeight)
+            throws InterruptedException, ExecutionException {
+        int width = (imgWidth + PREVIEW_BLOCK - 1) / PREVIEW_BLOCK;
+        int height = (imgHeight + PREVIEW_BLOCK - 1) / PREVIEW_BLOCK;
+        int[] preview = new int[width * height];
+        scheduler.render(width, height, (x, y) -> calcColor(
+                Math.min(x * PREVIEW_BLOCK + PREVIEW_BLOCK / 2, imgWidth - 1),
+                Math.min(y * PREVIEW_BLOCK + PREVIEW_BLOCK / 2, imgHeight - 1), 1).toRGB(), preview);
         for (int y = 0; y < imgHeight; ++y)
-            for (int x = 0; x < imgWidth; ++x) {
-                Color color = futures[y][x].get();
-                img.setRGB(x, y, color.getRGB());
+            for (int x = 0; x < imgWidth; ++x)
+                framebuffer[y * imgWidth + x] = preview[(y / PREVIEW_BLOCK) * width + x / PREVIEW_BLOCK];
+    }
+
+    private void renderPixels(Tile tile, int[] framebuffer, Tile frame, int factor) {
+        for (int y = tile.y; y < tile.y + tile.height; ++y)
+            for (int x = tile.x; x < tile.x + tile.width; ++x)
+                framebuffer[frame.indexOf(x, y)] = calcColor(x, y, factor).toRGB();
+    }
+
+    /**
+     * Renders a tile with a ray through the middle of every pixel, tracing the primary rays of every block of
+     * PACKET_SIZE x PACKET_SIZE pixels as a packet. The colors are the same as calcColor(x, y, 1).
+     */
+    private void renderPackets(Tile tile, int[] framebuffer, Tile frame) {
+        RayPacket packet = new RayPacket();
+        Point cameraPosition = camera.getCameraPosition();
+        for (int blockY = tile.y; blockY < tile.y + tile.height; blockY += PACKET_SIZE) {
+            int endY = Math.min(blockY + PACKET_SIZE, tile.y + tile.height);
+            for (int blockX = tile.x; blockX < tile.x + tile.width; blockX += PACKET_SIZE) {
+                int endX = Math.min(blockX + PACKET_SIZE, tile.x + tile.width);
+
+                packet.clear();
+                for (int y = blockY; y < endY; ++y)
+                    for (int x = blockX; x < endX; ++x)
+                        packet.add(new Ray(cameraPosition, camera.transform(x, y)));
+                if (maxRecursionLevel > 0)
+                    findMinIntersections(packet);
+
+                int lane = 0;
+                for (int y = blockY; y < endY; ++y)
+                    for (int x = blockX; x < endX; ++x, ++lane) {
+                        Vec color;
+                        if (maxRecursionLevel <= 0) {
+                            color = new Vec();
+                        } else {
+                            countRay(0);
+                            Hit hit = compiledScene.hit(packet, lane);
+                            color = calcColor(packet.ray(lane), hit, 0, 1.0,
+                                    usesSampler() ? new Sampler(x, y) : null);
+                        }
+                        framebuffer[frame.indexOf(x, y)] = color.toRGB();
+                    }
             }
+        }
+    }
 
-        executor.shutdown();
+    /**
+     * Renders a tile of the low resolution image of a preview, tracing the rays of every block of
+     * PACKET_SIZE x PACKET_SIZE samples as a packet. A sample is shot through the middle of its block of pixels.
+     */
+    private void renderPreviewPackets(Tile tile, int[] samples, Tile frame, int scale, int imgWidth,
+            int imgHeight) {
+        RayPacket packet = new RayPacket();
+        Point cameraPosition = camera.getCameraPosition();
+        double offset = (scale - 1) / 2.0;
+        for (int blockY = tile.y; blockY < tile.y + tile.height; blockY += PACKET_SIZE) {
+            int endY = Math.min(blockY + PACKET_SIZE, tile.y + tile.height);
+            for (int blockX = tile.x; blockX < tile.x + tile.width; blockX += PACKET_SIZE) {
+                int endX = Math.min(blockX + PACKET_SIZE, tile.x + tile.width);
 
-        this.logger.log("Ray tracing of " + name + " has been completed.");
+                packet.clear();
+                for (int y = blockY; y < endY; ++y)
+                    for (int x = blockX; x < endX; ++x)
+                        packet.add(new Ray(cameraPosition, camera.transform(
+                                Math.min(x * scale + offset, imgWidth - 1),
+                                Math.min(y * scale + offset, imgHeight - 1))));
+                if (maxRecursionLevel > 0)
+                    findMinIntersections(packet);
 
-        executor = null;
-        this.logger = null;
+                int lane = 0;
+                for (int y = blockY; y < endY; ++y)
+                    for (int x = blockX; x < endX; ++x, ++lane) {
+                        Vec color;
+                        if (maxRecursionLevel <= 0) {
+                            color = new Vec();
+                        } else {
+                            countRay(0);
+                            color = calcPreviewColor(packet.ray(lane), compiledScene.hit(packet, lane));
+                        }
+                        samples[frame.indexOf(x, y)] = color.toRGB();
+                    }
+            }
+        }
+    }
 
-        return img;
+    /**
+     * @return the color of the pixel (x,y), interpolated bilinearly between the samples of the blocks around it
+     */
+    private static int upsample(int[] samples, Tile lowResolution, int scale, int x, int y) {
+        double u = Math.max(0, Math.min(lowResolution.width - 1, (x - (scale - 1) / 2.0) / scale));
+        double v = Math.max(0, Math.min(lowResolution.height - 1, (y - (scale - 1) / 2.0) / scale));
+        int x0 = (int) u, y0 = (int) v;
+        int x1 = Math.min(x0 + 1, lowResolution.width - 1), y1 = Math.min(y0 + 1, lowResolution.height - 1);
+        double fx = u - x0, fy = v - y0;
+        int c00 = samples[lowResolution.indexOf(x0, y0)], c10 = samples[lowResolution.indexOf(x1, y0)];
+        int c01 = samples[lowResolution.indexOf(x0, y1)], c11 = samples[lowResolution.indexOf(x1, y1)];
+        int rgb = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            double top = ((c00 >> shift) & 0xff) * (1 - fx) + ((c10 >> shift) & 0xff) * fx;
+            double bottom = ((c01 >> shift) & 0xff) * (1 - fx) + ((c11 >> shift) & 0xff) * fx;
+            rgb |= (int) Math.round(top * (1 - fy) + bottom * fy) << shift;
+        }
+        return rgb;
     }
 
-    private Future<Color> calcColor(int x, int y) {
-        return executor.submit(() -> {
-            Point centerPoint = camera.transform(x, y);
-            Ray ray = new Ray(camera.getCameraPosition(), centerPoint);
-            Vec color = calcColor(ray, 0);
-            return color.toColor();
-        });
+    /**
+     * Stratified supersampling: the pixel is divided into factor x factor cells and a ray is shot through a
+     * random point of every cell. A factor of 1 shoots a single ray through the middle of the pixel.
+     */
+    private Vec calcColor(int x, int y, int factor) {
+        if (factor == 1)
+            return calcColor(camera.transform(x, y), usesSampler() ? new Sampler(x, y) : null);
+
+        Sampler sampler = new Sampler(x, y);
+        Vec color = new Vec();
+        for (int i = 0; i < factor; ++i)
+            for (int j = 0; j < factor; ++j) {
+                double sx = x - 0.5 + (i + sampler.next()) / factor;
+                double sy = y - 0.5 + (j + sampler.next()) / factor;
+                color.addInPlace(calcColor(camera.transform(sx, sy), sampler));
+            }
+        return color.multInPlace(1.0 / (factor * factor));
     }
 
-    private Vec calcColor(Ray ray, int recusionLevel) {
+    /**
+     * @return true if the rays need random numbers even when a pixel gets a single ray
+     */
+    private boolean usesSampler() {
+        return russianRoulette || lightSamples > 0;
+    }
+
+    private Vec calcColor(Point pointOnPlain, Sampler sampler) {
+        Ray ray = new Ray(camera.getCameraPosition(), pointOnPlain);
+        return calcColor(ray, 0, 1.0, sampler);
+    }
+
+    /**
+     * @param pixels - the pixels of the frame, which holds the neighbourhood of (x,y) within the image
+     * @return true if some channel varies by more than threshold (out of 255) in the 3x3 neighbourhood of (x,y)
+     */
+    private static boolean isContrasted(int[] pixels, Tile frame, int x, int y, int threshold) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int min = 255, max = 0;
+            for (int ny = Math.max(frame.y, y - 1); ny <= Math.min(frame.y + frame.height - 1, y + 1); ++ny)
+                for (int nx = Math.max(frame.x, x - 1); nx <= Math.min(frame.x + frame.width - 1, x + 1); ++nx) {
+                    int c = (pixels[frame.indexOf(nx, ny)] >> shift) & 0xff;
+                    min = Math.min(min, c);
+                    max = Math.max(max, c);
+                }
+            if (max - min > threshold)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Traces the ray. The returned vector may be shared (e.g. the background color), callers must not modify it.
+     *
+     * @param throughput - the fraction of the color of the ray that reaches the pixel
+     * @param sampler - the random numbers of the pixel, used by the russian roulette
+     */
+    private Vec calcColor(Ray ray, int recusionLevel, double throughput, Sampler sampler) {
         if (recusionLevel >= maxRecursionLevel) {
             return new Vec();
         }
+        countRay(recusionLevel);
         Hit closetHit = findMinIntersection(ray);
+        return calcColor(ray, closetHit, recusionLevel, throughput, sampler);
+    }
+
+    private void countRay(int recusionLevel) {
+        rayCount.increment();
+        rayCountPerDepth[recusionLevel].increment();
+    }
+
+    /**
+     * Shades a ray whose closest hit was already found.
+     *
+     * @param closetHit - the closest hit of the ray, null if it hits nothing
+     */
+    private Vec calcColor(Ray ray, Hit closetHit, int recusionLevel, double throughput, Sampler sampler) {
         // in case no intersections was found
         if (closetHit == null) return backgroundColor;
         // get the hitting point
@@ -187,16 +1005,9 @@ public class Scene {
         // get the working surface
         Surface hittingSurface = closetHit.getSurface();
 
-        Vec color = new Vec();
-        color = color.add(calcAmbientColor(hittingSurface));
-        color.add(calcAmbientColor(hittingSurface));
-        for (Light l : lightSources) {
-            Ray rayToLight = l.rayToLight(hittingPoint);
-            if (!isOccluded(l, rayToLight)) {
-                color = color.add(calcDiffuseColor(closetHit, rayToLight).mult(l.intensity(hittingPoint, rayToLight)));
-                color = color.add(calcSpecularColor(closetHit, rayToLight, ray).mult(l.intensity(hittingPoint, rayToLight)));
-            }
-        }
+        // a new vector, the rest of the components are accumulated into it in place
+        Vec color = calcAmbientColor(hittingSurface);
+        addLightColors(color, ray, closetHit, hittingPoint, sampler);
 
         Vec N = closetHit.getNormalToSurface();
         Vec L = ray.direction();
@@ -208,7 +1019,7 @@ public class Scene {
             // the reflection coefficient for the material
             double K_R = hittingSurface.reflectionIntensity();
             // recursive call calcColor for the reflected ray
-            color = color.add(calcColor(reflectRay, recusionLevel + 1).mult(new Vec(K_R)));
+            traceSecondary(color, K_R, reflectRay, recusionLevel + 1, throughput, sampler, reflectionRayCount);
         }
         if (renderRefarctions && hittingSurface.isTransparent()) {
             double n1 = hittingSurface.n1(closetHit);
@@ -217,22 +1028,200 @@ public class Scene {
             Ray refractRay = new Ray(hittingPoint, refractionDirection);
             // the transparency coefficient
             double K_T = hittingSurface.refractionIntensity();
-            color = color.add(calcColor(refractRay, recusionLevel + 1).mult(new Vec(K_T)));
+            traceSecondary(color, K_T, refractRay, recusionLevel + 1, throughput, sampler, refractionRayCount);
         }
         return color;
     }
 
+    /**
+     * Adds the diffuse and specular colors of the lights at the hit point to color. Lights too dim to change the
+     * color are skipped (see LightIndex). When more than lightSamples of the remaining lights have a bounded
+     * intensity, only lightSamples of them are shaded, chosen at random with probabilities proportional to their
+     * bounds and stratified, and each color is divided by the expected number of times its light is chosen.
+     * The other lights, such as directional lights, are always shaded.
+     */
+    private void addLightColors(Vec color, Ray ray, Hit closetHit, Point hittingPoint, Sampler sampler) {
+        LightIndex.Cell cell = lightIndex.cellAt(hittingPoint);
+        Light[] lights = cell.lights();
+        double budget = cell.budget();
+        boolean sample = lightSamples > 0 && lights.length > lightSamples;
+        Light[] candidates = null;
+        double[] cumulativeBounds = null;
+        if (sample) {
+            LightCandidates scratch = LIGHT_CANDIDATES.get().ensureCapacity(lights.length);
+            candidates = scratch.lights;
+            cumulativeBounds = scratch.cumulativeBounds;
+        }
+        int numCandidates = 0;
+        double total = 0;
+        for (Light l : lights) {
+            double bound = budget > 0 || sample ? l.maxIntensityAt(hittingPoint) : Double.POSITIVE_INFINITY;
+            // lights too dim to change the color are skipped before their shadow ray
+            if (bound <= budget) {
+                budget -= bound;
+                continue;
+            }
+            if (sample && bound < Double.POSITIVE_INFINITY) {
+                // lights with a zero bound add nothing, they are never chosen
+                if (bound > 0) {
+                    total += bound;
+                    candidates[numCandidates] = l;
+                    cumulativeBounds[numCandidates++] = total;
+                }
+                continue;
+            }
+            addLightColor(color, l, 1.0, ray, closetHit, hittingPoint);
+        }
+        if (numCandidates <= lightSamples) {
+            for (int i = 0; i < numCandidates; ++i)
+                addLightColor(color, candidates[i], 1.0, ray, closetHit, hittingPoint);
+            return;
+        }
+        for (int k = 0; k < lightSamples; ++k) {
+            double u = (k + sampler.next()) / lightSamples * total;
+            // the first light whose cumulative bound is beyond u
+            int lo = 0, hi = numCandidates - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulativeBounds[mid] > u)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            double bound = cumulativeBounds[lo] - (lo > 0 ? cumulativeBounds[lo - 1] : 0);
+            addLightColor(color, candidates[lo], total / (bound * lightSamples), ray, closetHit, hittingPoint);
+        }
+    }
 
-    private Hit findMinIntersection(Ray ray) {
-        Hit closetHit = null;
-        // find the first (closet) surface intersected by the ray
+    private static class LightCandidates {
+        private Light[] lights = new Light[0];
+        private double[] cumulativeBounds = new double[0];
+
+        private LightCandidates ensureCapacity(int capacity) {
+            if (lights.length < capacity) {
+                lights = new Light[capacity];
+                cumulativeBounds = new double[capacity];
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Adds weight times the diffuse and specular colors of a light at the hit point to color, unless the light
+     * is occluded.
+     */
+    private void addLightColor(Vec color, Light l, double weight, Ray ray, Hit closetHit, Point hittingPoint) {
+        Ray rayToLight = l.rayToLight(hittingPoint);
+        Vec intensity = l.intensity(hittingPoint, rayToLight);
+        // lights that don't reach the point (e.g. outside of a spotlight's cone) need no shadow ray
+        if (isBlack(intensity) || isOccluded(l, rayToLight))
+            return;
+        Surface hittingSurface = closetHit.getSurface();
+        color.addInPlace(weight * calcDiffuseFactor(closetHit, rayToLight), hittingSurface.Kd(), intensity);
+        color.addInPlace(weight * calcSpecularFactor(closetHit, rayToLight, ray), hittingSurface.Ks(), intensity);
+    }
+
+    /**
+     * Shades a ray for a preview: the ambient and diffuse terms of the lights, with no shadow rays.
+     *
+     * @param closetHit - the closest hit of the ray, null if it hits nothing
+     */
+    private Vec calcPreviewColor(Ray ray, Hit closetHit) {
+        if (closetHit == null) return backgroundColor;
+        Point hittingPoint = ray.getHittingPoint(closetHit);
+        Surface hittingSurface = closetHit.getSurface();
+        Vec color = calcAmbientColor(hittingSurface);
+        LightIndex.Cell cell = lightIndex.cellAt(hittingPoint);
+        double budget = cell.budget();
+        for (Light l : cell.lights()) {
+            double bound = budget > 0 ? l.maxIntensityAt(hittingPoint) : Double.POSITIVE_INFINITY;
+            if (bound <= budget) {
+                budget -= bound;
+                continue;
+            }
+            Ray rayToLight = l.rayToLight(hittingPoint);
+            Vec intensity = l.intensity(hittingPoint, rayToLight);
+            if (!isBlack(intensity))
+                color.addInPlace(calcDiffuseFactor(closetHit, rayToLight), hittingSurface.Kd(), intensity);
+        }
+        return color;
+    }
+
+    /**
+     * Adds K times the color of a reflected or refracted ray to color, unless the throughput of the ray is too low.
+     * With the russian roulette a low throughput ray survives with probability throughput / minRayContribution,
+     * and its color is divided by that probability.
+     */
+    private void traceSecondary(Vec color, double K, Ray ray, int recusionLevel, double throughput,
+            Sampler sampler, LongAdder counter) {
+        if (recusionLevel >= maxRecursionLevel)
+            return;
+        double rayThroughput = throughput * K;
+        if (rayThroughput == 0) {
+            terminatedRayCount.increment();
+            return;
+        }
+        if (minRayContribution > 0 && rayThroughput < minRayContribution) {
+            double survival = rayThroughput / minRayContribution;
+            if (!russianRoulette || sampler.next() >= survival) {
+                terminatedRayCount.increment();
+                return;
+            }
+            K /= survival;
+            rayThroughput = minRayContribution;
+        }
+        counter.increment();
+        color.addInPlace(K, calcColor(ray, recusionLevel, rayThroughput, sampler));
+    }
+
+
+    /**
+     * Finds the closest surface hit by the ray, through the accelerator if it was built and by a linear scan
+     * over the surfaces otherwise.
+     *
+     * @param ray - the ray
+     * @return the closest hit, or null if the ray doesn't hit any surface
+     */
+    public Hit findMinIntersection(Ray ray) {
+        ThreadMetrics metrics = currentThreadMetrics();
+        if (metrics == null)
+            return findMinIntersection(ray, null);
+        long start = System.nanoTime();
+        Hit hit = findMinIntersection(ray, metrics.intersectionTests);
+        metrics.intersectionNanos += System.nanoTime() - start;
+        return hit;
+    }
+
+    /**
+     * Finds the closest surface of every ray of the packet, through the accelerator. Only available during a
+     * render.
+     */
+    private void findMinIntersections(RayPacket packet) {
+        ThreadMetrics metrics = currentThreadMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        long[] tests = metrics == null ? null : metrics.intersectionTests;
+        accelerator.findMinIntersections(packet, tests);
+        if (metrics != null)
+            metrics.intersectionNanos += System.nanoTime() - start;
+    }
+
+    private Hit findMinIntersection(Ray ray, long[] tests) {
+        if (accelerator != null)
+            return accelerator.findMinIntersection(ray, tests);
+
+        Surface closest = null;
+        double closestT = Shape.NO_HIT;
+        // find the first (closet) surface intersected by the ray, the hit record is built for it only
         for (Surface s : surfaces) {
-            Hit hit = s.intersect(ray);
-            closetHit = (closetHit == null) ? hit : closetHit;
-            if (hit != null)
-                closetHit = (hit.compareTo(closetHit) >= 0) ? closetHit : hit;
+            if (tests != null)
+                tests[CompiledScene.typeOf(s.getShape())]++;
+            double t = s.intersectT(ray);
+            if (t < closestT) {
+                closestT = t;
+                closest = s;
+            }
         }
-        return closetHit;
+        return closest == null ? null : closest.hitAt(ray, closestT);
     }
 
 
@@ -248,46 +1237,72 @@ public class Scene {
     /**
      * @param closetHit
      * @param rayToLight
-     * @return the diffuse reflection component of the light source, the amount of light that bounces
-     * back | I_D = K_D * (N^ . L^) . I_L
+     * @return the factor of the diffuse reflection component of the light source, the amount of light that bounces
+     * back | I_D = K_D * (N^ . L^) . I_L, without K_D and I_L
      */
-    private Vec calcDiffuseColor(Hit closetHit, Ray rayToLight) {
+    private double calcDiffuseFactor(Hit closetHit, Ray rayToLight) {
         Vec N = closetHit.getNormalToSurface();
         Vec L = rayToLight.direction();
-        // surface’s coefficient of diffuse reflection
-        Vec K_d = closetHit.getSurface().Kd();
-        return K_d.mult(Math.max(N.dot(L), 0.0));
+        return Math.max(N.dot(L), 0.0);
     }
 
     /**
      * @param closetHit
      * @param rayToLight
      * @param viewpointRay - the ray from the camera
-     * @return the specular component of the light source
+     * @return the factor of the specular component of the light source | I_S = K_S * (V^ . R^)^n . I_L,
+     * without K_S and I_L
      */
-    private Vec calcSpecularColor(Hit closetHit, Ray rayToLight, Ray viewpointRay) {
+    private double calcSpecularFactor(Hit closetHit, Ray rayToLight, Ray viewpointRay) {
         Vec N = closetHit.getNormalToSurface();
         Vec L = rayToLight.direction();
-        // the mirror reflection of the light vector off the surface
-        Vec R = Ops.reflect(L.neg(), N);
         Vec V = viewpointRay.direction();
-        // surface’s coefficient of specular reflection
-        Vec K_s = closetHit.getSurface().Ks();
+        // the mirror reflection of the light vector off the surface, R = -L - 2(-L.N)N
+        double a = 2 * L.dot(N);
+        double rx = -L.x + a * N.x, ry = -L.y + a * N.y, rz = -L.z + a * N.z;
+        double VR = rx * -V.x + ry * -V.y + rz * -V.z;
         // n defines the shininess constant for this material.
         int n = closetHit.getSurface().shininess();
-        double VR = R.dot(V.neg());
-        return K_s.mult(Math.pow(R.dot(V.neg()), n));
+        return Math.pow(VR, n);
     }
 
     /**
+     * Any-hit query: stops at the first surface found between the point and the light.
+     *
      * @param light
      * @param rayToLight
      * @return true if occluded
      */
     private boolean isOccluded(Light light, Ray rayToLight) {
+        shadowRayCount.increment();
+        double maxT = light.distance(rayToLight.source());
+        ThreadMetrics metrics = currentThreadMetrics();
+        if (metrics == null)
+            return isOccluded(rayToLight, maxT, null);
+        long start = System.nanoTime();
+        boolean occluded = isOccluded(rayToLight, maxT, metrics.intersectionTests);
+        metrics.intersectionNanos += System.nanoTime() - start;
+        return occluded;
+    }
+
+    private boolean isOccluded(Ray rayToLight, double maxT, long[] tests) {
+        if (accelerator != null)
+            return accelerator.isOccluded(rayToLight, maxT, tests);
+
         for (Surface surface : surfaces) {
-            if (light.isOccludedBy(surface, rayToLight)) return true;
+            if (tests != null)
+                tests[CompiledScene.typeOf(surface.getShape())]++;
+            if (surface.occludes(rayToLight, maxT)) return true;
         }
         return false;
     }
+
+    private ThreadMetrics currentThreadMetrics() {
+        ThreadLocal<ThreadMetrics> metrics = threadMetrics;
+        return metrics == null ? null : metrics.get();
+    }
+
+    private static boolean isBlack(Vec v) {
+        return v.x == 0 & v.y == 0 & v.z == 0;
+    }
 }
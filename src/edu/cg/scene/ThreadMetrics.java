@@ -0,0 +1,12 @@
+package edu.cg.scene;
+
+import edu.cg.scene.acceleration.CompiledScene;
+
+/**
+ * The detailed counters of one render thread. Every thread updates its own instance without synchronization,
+ * the scene sums them up when the render ends.
+ */
+class ThreadMetrics {
+    final long[] intersectionTests = new long[CompiledScene.NUM_TYPES];
+    long intersectionNanos = 0;
+}
@@ -0,0 +1,59 @@
+package edu.cg.scene;
+
+/**
+ * A rectangle of pixels that is rendered as a single unit of work.
+ */
+public class Tile {
+    public final int x, y;
+    public final int width, height;
+
+    public Tile(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int area() {
+        return width * height;
+    }
+
+    /**
+     * @return the index of the pixel (x, y) of the image in a framebuffer that holds this tile in row-major order
+     */
+    public int indexOf(int x, int y) {
+        return (y - this.y) * width + (x - this.x);
+    }
+
+    public boolean contains(Tile other) {
+        return other.x >= x && other.y >= y && other.x + other.width <= x + width &&
+                other.y + other.height <= y + height;
+    }
+
+    /**
+     * @return this tile grown by margin pixels on every side, clipped to the image
+     */
+    public Tile grow(int margin, int imgWidth, int imgHeight) {
+        int minX = Math.max(0, x - margin), minY = Math.max(0, y - margin);
+        int maxX = Math.min(imgWidth, x + width + margin), maxY = Math.min(imgHeight, y + height + margin);
+        return new Tile(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Tile))
+            return false;
+        Tile other = (Tile) o;
+        return x == other.x && y == other.y && width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x * 31 + y) * 31 + width) * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile (" + x + ", " + y + ") " + width + "x" + height;
+    }
+}
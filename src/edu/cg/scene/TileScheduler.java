@@ -0,0 +1,234 @@
+package edu.cg.scene;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits an image into square tiles and renders them on a work-stealing pool.
+ * Pixels are written directly into a shared framebuffer, one int (0xRRGGBB) per pixel in row-major order,
+ * so no per-pixel task or result object is ever created. A framebuffer holds a region of the image, its frame
+ * (the whole image, unless only a part of it is rendered), and pixels are addressed in image coordinates.
+ * A scheduler can be cancelled from any thread, tiles that were not started yet are then skipped.
+ */
+public class TileScheduler {
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    /**
+     * Computes the color of a single pixel.
+     */
+    @FunctionalInterface
+    public interface PixelRenderer {
+        /**
+         * @param x - the x index of the pixel
+         * @param y - the y index of the pixel
+         * @return the color of the pixel as 0xRRGGBB
+         */
+        int render(int x, int y);
+    }
+
+    /**
+     * Computes the colors of all the pixels of a tile at once, for renderers that share work between
+     * neighbouring pixels.
+     */
+    @FunctionalInterface
+    public interface TileRenderer {
+        /**
+         * @param tile - the pixels to render
+         * @param framebuffer - receives the colors, as 0xRRGGBB
+         * @param frame - the region of the image held by the framebuffer, see Tile.indexOf
+         */
+        void render(Tile tile, int[] framebuffer, Tile frame);
+    }
+
+    /**
+     * Notified (on a render thread) whenever all the pixels of a tile were written to the framebuffer.
+     */
+    @FunctionalInterface
+    public interface TileListener {
+        void tileRendered(Tile tile);
+    }
+
+    private static ForkJoinPool sharedPool = null;
+
+    /**
+     * Returns the pool shared by all renders of this JVM. It is created on first use and never shut down,
+     * its threads are daemons so they don't keep the application alive.
+     */
+    public static synchronized ForkJoinPool sharedPool() {
+        if (sharedPool == null) {
+            int nThreads = Runtime.getRuntime().availableProcessors();
+            nThreads = nThreads < 2 ? 2 : nThreads;
+            sharedPool = new ForkJoinPool(nThreads);
+        }
+        return sharedPool;
+    }
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+    private volatile boolean cancelled = false;
+    // statistics of all the renders of this scheduler, updated once per tile
+    private final LongAdder tilesRendered = new LongAdder();
+    private final Map<String, LongAdder> busyNanos = new ConcurrentHashMap<>();
+
+    public TileScheduler(ForkJoinPool pool, int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive");
+        this.pool = pool;
+        this.tileSize = tileSize;
+    }
+
+    public int parallelism() {
+        return pool.getParallelism();
+    }
+
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Stops the current render: tiles that are being rendered are completed, the rest are skipped.
+     * Later calls to render return immediately.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long tilesRendered() {
+        return tilesRendered.sum();
+    }
+
+    /**
+     * @return the time every thread spent rendering tiles, by thread name
+     */
+    public Map<String, Long> busyNanosPerThread() {
+        Map<String, Long> ans = new HashMap<>();
+        busyNanos.forEach((thread, nanos) -> ans.put(thread, nanos.sum()));
+        return ans;
+    }
+
+    private void tileRendered(long nanos) {
+        tilesRendered.increment();
+        busyNanos.computeIfAbsent(Thread.currentThread().getName(), thread -> new LongAdder()).add(nanos);
+    }
+
+    /**
+     * Splits the image into tiles of tileSize x tileSize (tiles at the right and bottom edges may be smaller).
+     */
+    public List<Tile> tiles(int width, int height) {
+        return tiles(new Tile(0, 0, width, height));
+    }
+
+    /**
+     * Splits a region of the image into tiles of tileSize x tileSize, starting at its top left corner.
+     */
+    public List<Tile> tiles(Tile region) {
+        List<Tile> tiles = new ArrayList<>();
+        int endX = region.x + region.width, endY = region.y + region.height;
+        for (int y = region.y; y < endY; y += tileSize)
+            for (int x = region.x; x < endX; x += tileSize)
+                tiles.add(new Tile(x, y, Math.min(tileSize, endX - x), Math.min(tileSize, endY - y)));
+        return tiles;
+    }
+
+    /**
+     * Renders every pixel of a width x height image into the framebuffer and waits for all tiles to finish.
+     */
+    public void render(int width, int height, PixelRenderer renderer, int[] framebuffer)
+            throws InterruptedException, ExecutionException {
+        Tile frame = new Tile(0, 0, width, height);
+        render(tiles(frame), frame, renderer, framebuffer, null);
+    }
+
+    /**
+     * Renders the given tiles into the framebuffer and waits for all of them to finish.
+     *
+     * @param tiles - the tiles to render, within the frame
+     * @param frame - the region of the image held by the framebuffer
+     * @param renderer - computes the color of a pixel
+     * @param framebuffer - the pixels of the frame, in row-major order
+     * @param listener - notified of every rendered tile, may be null
+     */
+    public void render(List<Tile> tiles, Tile frame, PixelRenderer renderer, int[] framebuffer,
+            TileListener listener) throws InterruptedException, ExecutionException {
+        render(tiles, frame, (tile, pixels, pixelsFrame) -> {
+            for (int y = tile.y; y < tile.y + tile.height; ++y) {
+                int row = pixelsFrame.indexOf(0, y);
+                for (int x = tile.x; x < tile.x + tile.width; ++x)
+                    pixels[row + x] = renderer.render(x, y);
+            }
+        }, framebuffer, listener);
+    }
+
+    /**
+     * Renders the given tiles, a whole tile at a time, into the framebuffer and waits for all of them to finish.
+     */
+    public void render(List<Tile> tiles, Tile frame, TileRenderer renderer, int[] framebuffer,
+            TileListener listener) throws InterruptedException, ExecutionException {
+        Tile[] work = tiles.toArray(new Tile[0]);
+        if (work.length == 0 || cancelled)
+            return;
+        for (Tile tile : work)
+            if (!frame.contains(tile))
+                throw new IllegalArgumentException(tile + " is outside of the frame " + frame);
+        pool.submit(new TileRange(this, work, 0, work.length, frame, renderer, framebuffer, listener)).get();
+    }
+
+    /**
+     * A range of tiles. Ranges are split in halves until a single tile remains, idle workers steal
+     * the pending halves from busy ones.
+     */
+    @SuppressWarnings("serial")
+    private static class TileRange extends RecursiveAction {
+        private final TileScheduler scheduler;
+        private final Tile[] tiles;
+        private final int from, to;
+        private final Tile frame;
+        private final TileRenderer renderer;
+        private final int[] framebuffer;
+        private final TileListener listener;
+
+        TileRange(TileScheduler scheduler, Tile[] tiles, int from, int to, Tile frame, TileRenderer renderer,
+                int[] framebuffer, TileListener listener) {
+            this.scheduler = scheduler;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.frame = frame;
+            this.renderer = renderer;
+            this.framebuffer = framebuffer;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (scheduler.cancelled)
+                return;
+            if (to - from == 1) {
+                renderTile(tiles[from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileRange(scheduler, tiles, from, mid, frame, renderer, framebuffer, listener),
+                    new TileRange(scheduler, tiles, mid, to, frame, renderer, framebuffer, listener));
+        }
+
+        private void renderTile(Tile tile) {
+            long start = System.nanoTime();
+            renderer.render(tile, framebuffer, frame);
+            scheduler.tileRendered(System.nanoTime() - start);
+            if (listener != null)
+                listener.tileRendered(tile);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package edu.cg.scene.acceleration;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
+
+/**
+ * A spatial index over the surfaces of a compiled scene, which answers the ray queries of a render.
+ * Candidates are always tested by the compiled scene, and ties between equal hits go to the surface that comes
+ * first in the scene, so every accelerator finds exactly the same hits and renders the same image.
+ * <p>
+ * The queries optionally count the intersection tests they make per shape type (see CompiledScene), into an
+ * array of CompiledScene.NUM_TYPES counters (null counts nothing). Accelerators are immutable once built, except
+ * by refit, and are safely shared by the render threads.
+ */
+public interface Accelerator {
+    /**
+     * The accelerators a scene can be rendered with, AUTO chooses one from the surfaces (see Accelerators.choose).
+     */
+    enum Kind {
+        LINEAR, BVH, GRID, OCTREE, AUTO
+    }
+
+    /**
+     * Closest hit query.
+     *
+     * @return the hit of the closest surface, or null if the ray does not hit any surface
+     */
+    Hit findMinIntersection(Ray ray, long[] tests);
+
+    /**
+     * Finds the closest surface of every ray of the packet, see RayPacket.closestId.
+     */
+    void findMinIntersections(RayPacket packet, long[] tests);
+
+    /**
+     * Any-hit query, used for shadow rays. Stops at the first surface that is hit before maxT and never builds a
+     * Hit.
+     *
+     * @return true if some surface is hit by the ray before maxT
+     */
+    boolean isOccluded(Ray ray, double maxT, long[] tests);
+
+    /**
+     * Updates the accelerator after surfaces of its compiled scene were moved or resized (see CompiledScene.update).
+     *
+     * @return false if the accelerator must be built again
+     */
+    boolean refit();
+
+    /**
+     * @return a short description of the accelerator for the logs, e.g. "BVH over 12 surfaces (7 nodes)"
+     */
+    String describe();
+}
@@ -0,0 +1,99 @@
+package edu.cg.scene.acceleration;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.cg.algebra.BoundingBox;
+
+/**
+ * Builds the accelerators of a compiled scene, and chooses one for it.
+ */
+public final class Accelerators {
+    private static final int LINEAR_MAX = 8; //up to 8 bounded surfaces, a linear scan beats any structure
+    private static final double LARGE_SURFACE = 0.25; //of the largest extent of the scene
+    private static final double MAX_LARGE_FRACTION = 0.02; //of the surfaces may be large for the grid and octree
+    private static final double EVEN_OCCUPANCY = 0.5; //of the cells of a grid of a cell per surface are occupied
+
+    private Accelerators() {
+    }
+
+    /**
+     * @param kind - AUTO chooses the accelerator with choose
+     */
+    public static Accelerator build(Accelerator.Kind kind, CompiledScene scene) {
+        switch (kind == Accelerator.Kind.AUTO ? choose(scene) : kind) {
+        case LINEAR:
+            return scene;
+        case GRID:
+            return new UniformGrid(scene);
+        case OCTREE:
+            return new Octree(scene);
+        default:
+            return new BVH(scene);
+        }
+    }
+
+    /**
+     * Chooses the accelerator from the number of bounded surfaces and how they are spread:
+     * <ul>
+     * <li>a few surfaces are scanned linearly (LINEAR),</li>
+     * <li>surfaces of similar sizes spread evenly over the scene, like a stack of boxes, go in a uniform grid
+     * (GRID),</li>
+     * <li>similar surfaces gathered in clusters go in an octree, which only subdivides where they are
+     * (OCTREE),</li>
+     * <li>scenes with large surfaces, which would be copied into many cells, get a BVH, which references every
+     * surface once (BVH).</li>
+     * </ul>
+     * The spread is the fraction of the cells of a grid of about a cell per surface that hold a surface centre.
+     * Unbounded surfaces, such as a floor plain, are tested linearly by all of them and don't count.
+     */
+    public static Accelerator.Kind choose(CompiledScene scene) {
+        int n = 0;
+        BoundingBox sceneBox = BoundingBox.empty();
+        for (int id = 0; id < scene.size(); ++id) {
+            BoundingBox b = scene.surface(id).bounds();
+            if (b.isFinite()) {
+                ++n;
+                sceneBox = sceneBox.union(b);
+            }
+        }
+        if (n <= LINEAR_MAX)
+            return Accelerator.Kind.LINEAR;
+
+        int[] resolution = new int[3];
+        double volume = 1;
+        for (int axis = 0; axis < 3; ++axis)
+            volume *= Math.max(sceneBox.extent(axis), Double.MIN_VALUE);
+        double cellsPerUnit = Math.cbrt(n / volume);
+        for (int axis = 0; axis < 3; ++axis)
+            resolution[axis] = (int) Math.max(1, Math.min(n, Math.round(sceneBox.extent(axis) * cellsPerUnit)));
+        long numCells = (long) resolution[0] * resolution[1] * resolution[2];
+        double largestExtent = Math.max(sceneBox.extent(0), Math.max(sceneBox.extent(1), sceneBox.extent(2)));
+
+        int large = 0;
+        Set<Long> occupied = new HashSet<>();
+        for (int id = 0; id < scene.size(); ++id) {
+            BoundingBox b = scene.surface(id).bounds();
+            if (!b.isFinite())
+                continue;
+            long cell = 0;
+            boolean isLarge = false;
+            for (int axis = 0; axis < 3; ++axis) {
+                double extent = sceneBox.extent(axis);
+                if (b.extent(axis) > LARGE_SURFACE * largestExtent)
+                    isLarge = true;
+                int c = extent <= 0 ? 0 : (int) ((b.centroid(axis) - sceneBox.min(axis)) / extent * resolution[axis]);
+                cell = cell * (n + 1) + Math.min(c, resolution[axis] - 1);
+            }
+            if (isLarge)
+                ++large;
+            occupied.add(cell);
+        }
+
+        if (large > MAX_LARGE_FRACTION * n)
+            return Accelerator.Kind.BVH;
+        if (occupied.size() >= EVEN_OCCUPANCY * Math.min(numCells, n))
+            return Accelerator.Kind.GRID;
+        return Accelerator.Kind.OCTREE;
+    }
+}
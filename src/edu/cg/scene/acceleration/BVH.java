@@ -0,0 +1,493 @@
+package edu.cg.scene.acceleration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+
+/**
+ * A bounding volume hierarchy over the surfaces of a compiled scene.
+ * The tree is built top-down using the surface area heuristic (SAH) over binned centroids,
+ * and is stored flattened in depth-first order so traversal only touches primitive arrays.
+ * Unbounded surfaces (such as plains) cannot be placed in the tree and are tested linearly.
+ * Leaves hold surface ids, candidates are tested by the compiled scene and only the closest one gets a Hit.
+ */
+public class BVH implements Accelerator {
+    private static final int NUM_BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+    private static final double TRAVERSAL_COST = 1.0;
+    private static final double INTERSECTION_COST = 1.0;
+    private static final int STACK_SIZE = 64;
+    private static final double MISS = Double.POSITIVE_INFINITY;
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+
+    private final CompiledScene scene;
+    // Surface ids, which are the positions of the surfaces in the scene. Ties between equal hits are
+    // resolved by them exactly as the linear scan does (the first surface wins)
+    private final int[] primitives;
+    private final int[] unbounded;
+
+    // Per node: minX, minY, minZ, maxX, maxY, maxZ
+    private double[] nodeBounds;
+    // Per node: interior - index of the right child (left child is the next node), leaf - first primitive
+    private int[] nodeOffset;
+    // Per node: interior - negative split axis minus one, leaf - number of primitives
+    private int[] nodeCount;
+    private int numNodes = 0;
+    // The sum of the surface areas of the nodes when the tree was built, the expected cost of traversing it
+    private double builtArea;
+
+    public BVH(CompiledScene scene) {
+        this.scene = scene;
+        List<Integer> bounded = new ArrayList<>();
+        List<Integer> others = new ArrayList<>();
+        List<BoundingBox> bounds = new ArrayList<>();
+        for (int id = 0; id < scene.size(); ++id) {
+            BoundingBox b = scene.surface(id).bounds();
+            if (b.isFinite()) {
+                bounded.add(id);
+                bounds.add(b.pad(Ops.epsilon));
+            } else {
+                others.add(id);
+            }
+        }
+        unbounded = new int[others.size()];
+        for (int i = 0; i < unbounded.length; ++i)
+            unbounded[i] = others.get(i);
+
+        int n = bounded.size();
+        int[] order = new int[n];
+        double[] centroids = new double[3 * n];
+        for (int i = 0; i < n; ++i) {
+            order[i] = i;
+            for (int axis = 0; axis < 3; ++axis)
+                centroids[3 * i + axis] = bounds.get(i).centroid(axis);
+        }
+
+        int maxNodes = Math.max(1, 2 * n - 1);
+        nodeBounds = new double[6 * maxNodes];
+        nodeOffset = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        if (n > 0)
+            build(order, 0, n, bounds, centroids, 0);
+
+        primitives = new int[n];
+        for (int i = 0; i < n; ++i)
+            primitives[i] = bounded.get(order[i]);
+        builtArea = totalArea();
+    }
+
+    /**
+     * Recomputes the bounds of the nodes bottom-up after surfaces of the compiled scene were moved or resized
+     * (see CompiledScene.update), keeping the structure of the tree. This is much cheaper than building it again
+     * but the tree gets worse the more the surfaces move, so it is rejected once it costs twice as much to
+     * traverse as it did when it was built.
+     *
+     * @return false if the tree must be built again: a surface became unbounded or bounded, or the tree got too
+     *         loose
+     */
+    @Override
+    public boolean refit() {
+        for (int id : unbounded)
+            if (scene.surface(id).bounds().isFinite())
+                return false;
+        // children always come after their parent, so they are refitted first
+        for (int node = numNodes - 1; node >= 0; --node) {
+            int i = 6 * node;
+            if (nodeCount[node] < 0) {
+                int left = 6 * (node + 1), right = 6 * nodeOffset[node];
+                for (int k = 0; k < 3; ++k) {
+                    nodeBounds[i + k] = Math.min(nodeBounds[left + k], nodeBounds[right + k]);
+                    nodeBounds[i + 3 + k] = Math.max(nodeBounds[left + 3 + k], nodeBounds[right + 3 + k]);
+                }
+                continue;
+            }
+            BoundingBox box = BoundingBox.empty();
+            for (int p = nodeOffset[node]; p < nodeOffset[node] + nodeCount[node]; ++p) {
+                BoundingBox b = scene.surface(primitives[p]).bounds();
+                if (!b.isFinite())
+                    return false;
+                box = box.union(b.pad(Ops.epsilon));
+            }
+            setBounds(node, box);
+        }
+        return totalArea() <= 2 * builtArea;
+    }
+
+    private double totalArea() {
+        double area = 0;
+        for (int node = 0; node < numNodes; ++node) {
+            int i = 6 * node;
+            double dx = nodeBounds[i + 3] - nodeBounds[i], dy = nodeBounds[i + 4] - nodeBounds[i + 1],
+                    dz = nodeBounds[i + 5] - nodeBounds[i + 2];
+            area += dx * dy + dy * dz + dz * dx;
+        }
+        return area;
+    }
+
+    public int size() {
+        return primitives.length + unbounded.length;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    @Override
+    public String describe() {
+        return "BVH over " + size() + " surfaces (" + numNodes + " nodes)";
+    }
+
+    private int build(int[] order, int start, int end, List<BoundingBox> bounds, double[] centroids, int depth) {
+        int node = numNodes++;
+        BoundingBox box = BoundingBox.empty();
+        BoundingBox centroidBox = BoundingBox.empty();
+        for (int i = start; i < end; ++i) {
+            int p = order[i];
+            box = box.union(bounds.get(p));
+            centroidBox = centroidBox.union(new Point(centroids[3 * p], centroids[3 * p + 1], centroids[3 * p + 2]));
+        }
+        setBounds(node, box);
+
+        int count = end - start;
+        int axis = largestAxis(centroidBox);
+        double extent = centroidBox.extent(axis);
+        // depth is capped so that traversal never overflows its fixed size stack
+        if (count <= 1 || extent <= 0 || depth >= STACK_SIZE - 2) {
+            makeLeaf(node, start, count);
+            return node;
+        }
+
+        // Bin the centroids along the widest axis and evaluate the SAH at every bin boundary
+        int[] binCount = new int[NUM_BINS];
+        BoundingBox[] binBounds = new BoundingBox[NUM_BINS];
+        for (int b = 0; b < NUM_BINS; ++b)
+            binBounds[b] = BoundingBox.empty();
+        double binScale = NUM_BINS / extent;
+        double axisMin = centroidBox.min(axis);
+        for (int i = start; i < end; ++i) {
+            int p = order[i];
+            int b = binIndex(centroids[3 * p + axis], axisMin, binScale);
+            binCount[b]++;
+            binBounds[b] = binBounds[b].union(bounds.get(p));
+        }
+
+        double[] leftArea = new double[NUM_BINS - 1];
+        int[] leftCount = new int[NUM_BINS - 1];
+        BoundingBox acc = BoundingBox.empty();
+        int accCount = 0;
+        for (int b = 0; b < NUM_BINS - 1; ++b) {
+            acc = acc.union(binBounds[b]);
+            accCount += binCount[b];
+            leftArea[b] = acc.surfaceArea();
+            leftCount[b] = accCount;
+        }
+
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestSplit = -1;
+        acc = BoundingBox.empty();
+        accCount = 0;
+        for (int b = NUM_BINS - 1; b > 0; --b) {
+            acc = acc.union(binBounds[b]);
+            accCount += binCount[b];
+            if (leftCount[b - 1] == 0 || accCount == 0)
+                continue;
+            double cost = leftArea[b - 1] * leftCount[b - 1] + acc.surfaceArea() * accCount;
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSplit = b;
+            }
+        }
+
+        double area = box.surfaceArea();
+        double leafCost = INTERSECTION_COST * count;
+        double splitCost = TRAVERSAL_COST + INTERSECTION_COST * bestCost / area;
+        if (bestSplit < 0 || (count <= MAX_LEAF_SIZE && leafCost <= splitCost)) {
+            makeLeaf(node, start, count);
+            return node;
+        }
+
+        // Partition the primitives in place according to the chosen bin
+        int mid = start;
+        for (int i = start; i < end; ++i) {
+            int p = order[i];
+            if (binIndex(centroids[3 * p + axis], axisMin, binScale) < bestSplit) {
+                order[i] = order[mid];
+                order[mid] = p;
+                ++mid;
+            }
+        }
+
+        build(order, start, mid, bounds, centroids, depth + 1);
+        int right = build(order, mid, end, bounds, centroids, depth + 1);
+        nodeOffset[node] = right;
+        nodeCount[node] = -(axis + 1);
+        return node;
+    }
+
+    private static int binIndex(double centroid, double axisMin, double binScale) {
+        int b = (int) ((centroid - axisMin) * binScale);
+        return b < 0 ? 0 : (b >= NUM_BINS ? NUM_BINS - 1 : b);
+    }
+
+    private static int largestAxis(BoundingBox box) {
+        double x = box.extent(0), y = box.extent(1), z = box.extent(2);
+        return x >= y && x >= z ? 0 : (y >= z ? 1 : 2);
+    }
+
+    private void makeLeaf(int node, int start, int count) {
+        nodeOffset[node] = start;
+        nodeCount[node] = count;
+    }
+
+    private void setBounds(int node, BoundingBox box) {
+        int i = 6 * node;
+        nodeBounds[i] = box.minX;
+        nodeBounds[i + 1] = box.minY;
+        nodeBounds[i + 2] = box.minZ;
+        nodeBounds[i + 3] = box.maxX;
+        nodeBounds[i + 4] = box.maxY;
+        nodeBounds[i + 5] = box.maxZ;
+    }
+
+    /**
+     * Slab test of the ray against the bounds of a node.
+     *
+     * @return the entry parameter of the ray into the node, or MISS if the node is missed within [0, maxT]
+     */
+    private double enter(int node, double ox, double oy, double oz, double ix, double iy, double iz, double maxT) {
+        int i = 6 * node;
+        double tNear = 0, tFar = maxT;
+
+        double t1 = (nodeBounds[i] - ox) * ix, t2 = (nodeBounds[i + 3] - ox) * ix;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        t1 = (nodeBounds[i + 1] - oy) * iy;
+        t2 = (nodeBounds[i + 4] - oy) * iy;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        t1 = (nodeBounds[i + 2] - oz) * iz;
+        t2 = (nodeBounds[i + 5] - oz) * iz;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        return tNear <= tFar ? tNear : MISS;
+    }
+
+    /**
+     * Finds the closest surface intersected by the ray.
+     *
+     * @param ray - the ray
+     * @return the closest hit, or null if the ray does not hit any surface
+     */
+    public Hit findMinIntersection(Ray ray) {
+        return findMinIntersection(ray, null);
+    }
+
+    /**
+     * @param tests - counts the intersection tests per shape type (see CompiledScene), may be null
+     */
+    @Override
+    public Hit findMinIntersection(Ray ray, long[] tests) {
+        double closestT = CompiledScene.NO_HIT;
+        int closestId = Integer.MAX_VALUE;
+
+        for (int id : unbounded) {
+            double t = scene.intersect(id, ray);
+            if (tests != null)
+                tests[scene.type(id)]++;
+            if (isCloser(t, id, closestT, closestId)) {
+                closestT = t;
+                closestId = id;
+            }
+        }
+
+        if (numNodes == 0)
+            return closestT == CompiledScene.NO_HIT ? null : scene.hit(closestId, ray, closestT);
+
+        double ox = ray.source().x, oy = ray.source().y, oz = ray.source().z;
+        double dx = ray.direction().x, dy = ray.direction().y, dz = ray.direction().z;
+        double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+
+        int[] stack = STACKS.get();
+        int top = 0;
+        if (shouldVisit(enter(0, ox, oy, oz, ix, iy, iz, closestT), closestT))
+            stack[top++] = 0;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int count = nodeCount[node];
+            if (count > 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i) {
+                    int id = primitives[i];
+                    double t = scene.intersect(id, ray);
+                    if (tests != null)
+                        tests[scene.type(id)]++;
+                    if (isCloser(t, id, closestT, closestId)) {
+                        closestT = t;
+                        closestId = id;
+                    }
+                }
+                continue;
+            }
+
+            int left = node + 1, right = nodeOffset[node];
+            double tLeft = enter(left, ox, oy, oz, ix, iy, iz, closestT);
+            double tRight = enter(right, ox, oy, oz, ix, iy, iz, closestT);
+            // push the farther child first, so the nearer one is visited first
+            if (tLeft <= tRight) {
+                if (shouldVisit(tRight, closestT)) stack[top++] = right;
+                if (shouldVisit(tLeft, closestT)) stack[top++] = left;
+            } else {
+                if (shouldVisit(tLeft, closestT)) stack[top++] = left;
+                if (shouldVisit(tRight, closestT)) stack[top++] = right;
+            }
+        }
+        return closestT == CompiledScene.NO_HIT ? null : scene.hit(closestId, ray, closestT);
+    }
+
+    /**
+     * Finds the closest surface of every ray of the packet. The packet traverses the tree together: a node is
+     * visited if any of its rays may find a closer hit in it, so every node and primitive is fetched once for
+     * all the rays instead of once per ray.
+     *
+     * @param tests - counts the intersection tests per shape type (see CompiledScene), may be null
+     */
+    @Override
+    public void findMinIntersections(RayPacket packet, long[] tests) {
+        int size = packet.size;
+        packet.computeBounds();
+        for (int id : unbounded) {
+            scene.intersect(id, packet);
+            if (tests != null)
+                tests[scene.type(id)] += size;
+        }
+        if (numNodes == 0 || size == 0)
+            return;
+
+        int[] stack = STACKS.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            // the closest hits may have moved since the node was pushed
+            if (packetMisses(node, packet) || !anyShouldVisit(node, packet))
+                continue;
+
+            int count = nodeCount[node];
+            if (count > 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i) {
+                    int id = primitives[i];
+                    scene.intersect(id, packet);
+                    if (tests != null)
+                        tests[scene.type(id)] += size;
+                }
+                continue;
+            }
+
+            // the rays of a packet are coherent, the direction of the first ray orders the children for all
+            int axis = -count - 1;
+            double direction = axis == 0 ? packet.dx[0] : (axis == 1 ? packet.dy[0] : packet.dz[0]);
+            int left = node + 1, right = nodeOffset[node];
+            if (direction >= 0) {
+                stack[top++] = right;
+                stack[top++] = left;
+            } else {
+                stack[top++] = left;
+                stack[top++] = right;
+            }
+        }
+    }
+
+    private boolean packetMisses(int node, RayPacket packet) {
+        int i = 6 * node;
+        return packet.missesBox(nodeBounds[i], nodeBounds[i + 1], nodeBounds[i + 2],
+                nodeBounds[i + 3], nodeBounds[i + 4], nodeBounds[i + 5]);
+    }
+
+    private boolean anyShouldVisit(int node, RayPacket packet) {
+        for (int lane = 0; lane < packet.size; ++lane) {
+            double closestT = packet.closestT[lane];
+            double tEnter = enter(node, packet.ox[lane], packet.oy[lane], packet.oz[lane],
+                    packet.ix[lane], packet.iy[lane], packet.iz[lane], closestT);
+            if (shouldVisit(tEnter, closestT))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Any-hit query, used for shadow rays. The traversal order doesn't matter, it stops at the first
+     * surface that is hit before maxT and never builds a Hit.
+     *
+     * @param ray - the ray
+     * @param maxT - the distance along the ray beyond which surfaces are ignored
+     * @return true if some surface is hit by the ray before maxT
+     */
+    public boolean isOccluded(Ray ray, double maxT) {
+        return isOccluded(ray, maxT, null);
+    }
+
+    /**
+     * @param tests - counts the intersection tests per shape type (see CompiledScene), may be null
+     */
+    @Override
+    public boolean isOccluded(Ray ray, double maxT, long[] tests) {
+        for (int id : unbounded) {
+            if (tests != null)
+                tests[scene.type(id)]++;
+            if (scene.occludes(id, ray, maxT))
+                return true;
+        }
+
+        if (numNodes == 0)
+            return false;
+
+        double ox = ray.source().x, oy = ray.source().y, oz = ray.source().z;
+        double ix = 1.0 / ray.direction().x, iy = 1.0 / ray.direction().y, iz = 1.0 / ray.direction().z;
+
+        int[] stack = STACKS.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (enter(node, ox, oy, oz, ix, iy, iz, maxT) == MISS)
+                continue;
+
+            int count = nodeCount[node];
+            if (count > 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i) {
+                    if (tests != null)
+                        tests[scene.type(primitives[i])]++;
+                    if (scene.occludes(primitives[i], ray, maxT))
+                        return true;
+                }
+            } else {
+                stack[top++] = nodeOffset[node];
+                stack[top++] = node + 1;
+            }
+        }
+        return false;
+    }
+
+    // nodes entered exactly at the closest t are still visited, they may hold an earlier surface of a tie
+    private static boolean shouldVisit(double tEnter, double closestT) {
+        return tEnter != MISS && tEnter <= closestT;
+    }
+
+    private static boolean isCloser(double t, int index, double closestT, int closestIndex) {
+        return t < closestT || (t == closestT && t != CompiledScene.NO_HIT && index < closestIndex);
+    }
+}
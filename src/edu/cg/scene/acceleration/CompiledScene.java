@@ -0,0 +1,439 @@
+package edu.cg.scene.acceleration;
+
+import java.util.List;
+
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Plain;
+import edu.cg.scene.objects.Shape;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A flat, structure-of-arrays copy of the geometry of a scene, built once per render.
+ * Spheres, boxes and plains are stored in one primitive double[] per shape type, so intersection loops
+ * run over contiguous memory instead of chasing Surface -> Shape -> Point references.
+ * <p>
+ * Every surface is identified by its position in the scene (its id). Intersection tests only compute t,
+ * the Hit (with its normal and inside flag) is built once, for the closest surface only, from its id and t.
+ * Shapes without a flat representation are intersected through their Surface, with Shape.intersectT.
+ * <p>
+ * The queries optionally count the intersection tests they make per shape type, into an array of NUM_TYPES
+ * counters indexed by typeOf (null counts nothing).
+ * <p>
+ * Its own queries scan all the surfaces, it is the LINEAR accelerator.
+ */
+public class CompiledScene implements Accelerator {
+    public static final double NO_HIT = Shape.NO_HIT;
+
+    private static final byte SPHERE = 0;
+    private static final byte BOX = 1;
+    private static final byte PLAIN = 2;
+    private static final byte OTHER = 3;
+    public static final int NUM_TYPES = 4;
+    private static final String[] TYPE_NAMES = { "sphere", "box", "plain", "other" };
+
+    private static final int SPHERE_STRIDE = 4; // cx, cy, cz, r
+    private static final int BOX_STRIDE = 6; // minX, minY, minZ, maxX, maxY, maxZ
+    private static final int PLAIN_STRIDE = 4; // a, b, c, d
+
+    private final Surface[] surfaces;
+    private final byte[] types;
+    private final int[] slots; // the index of the surface within the array of its type
+
+    private final double[] spheres;
+    private final int[] sphereIds;
+    private final double[] boxes;
+    private final int[] boxIds;
+    private final double[] plains;
+    private final int[] plainIds;
+    private final int[] otherIds;
+
+    public CompiledScene(List<Surface> surfaceList) {
+        int n = surfaceList.size();
+        surfaces = surfaceList.toArray(new Surface[0]);
+        types = new byte[n];
+        slots = new int[n];
+
+        int[] counts = new int[4];
+        for (int id = 0; id < n; ++id) {
+            byte type = typeOf(surfaces[id].getShape());
+            types[id] = type;
+            slots[id] = counts[type]++;
+        }
+
+        spheres = new double[SPHERE_STRIDE * counts[SPHERE]];
+        sphereIds = new int[counts[SPHERE]];
+        boxes = new double[BOX_STRIDE * counts[BOX]];
+        boxIds = new int[counts[BOX]];
+        plains = new double[PLAIN_STRIDE * counts[PLAIN]];
+        plainIds = new int[counts[PLAIN]];
+        otherIds = new int[counts[OTHER]];
+
+        for (int id = 0; id < n; ++id)
+            write(id);
+    }
+
+    /**
+     * Copies the geometry of a surface into the array of its type, at its slot.
+     */
+    private void write(int id) {
+        Shape shape = surfaces[id].getShape();
+        int slot = slots[id];
+        switch (types[id]) {
+        case SPHERE: {
+            Sphere sphere = (Sphere) shape;
+            Point center = sphere.getCenter();
+            int i = SPHERE_STRIDE * slot;
+            spheres[i] = center.x;
+            spheres[i + 1] = center.y;
+            spheres[i + 2] = center.z;
+            spheres[i + 3] = sphere.getRadius();
+            sphereIds[slot] = id;
+            break;
+        }
+        case BOX: {
+            AxisAlignedBox box = (AxisAlignedBox) shape;
+            Point min = box.getMinPoint(), max = box.getMaxPoint();
+            int i = BOX_STRIDE * slot;
+            boxes[i] = min.x;
+            boxes[i + 1] = min.y;
+            boxes[i + 2] = min.z;
+            boxes[i + 3] = max.x;
+            boxes[i + 4] = max.y;
+            boxes[i + 5] = max.z;
+            boxIds[slot] = id;
+            break;
+        }
+        case PLAIN: {
+            System.arraycopy(((Plain) shape).getCoefficients(), 0, plains, PLAIN_STRIDE * slot, PLAIN_STRIDE);
+            plainIds[slot] = id;
+            break;
+        }
+        default:
+            otherIds[slot] = id;
+        }
+    }
+
+    /**
+     * Replaces the surface with the given id in place, without recompiling the other surfaces.
+     * Must not be called while the compiled scene is queried.
+     *
+     * @return false if the new shape is of another type than the old one, the scene must then be compiled again
+     */
+    public boolean update(int id, Surface surface) {
+        if (typeOf(surface.getShape()) != types[id])
+            return false;
+        surfaces[id] = surface;
+        write(id);
+        return true;
+    }
+
+    /**
+     * @return the type of the shape, the index of its intersection tests counter
+     */
+    public static byte typeOf(Shape shape) {
+        // exact classes only, a subclass may override intersect
+        Class<?> klass = shape.getClass();
+        if (klass == Sphere.class)
+            return SPHERE;
+        if (klass == AxisAlignedBox.class)
+            return BOX;
+        if (klass == Plain.class)
+            return PLAIN;
+        return OTHER;
+    }
+
+    public static String typeName(int type) {
+        return TYPE_NAMES[type];
+    }
+
+    public int type(int id) {
+        return types[id];
+    }
+
+    public int size() {
+        return surfaces.length;
+    }
+
+    public Surface surface(int id) {
+        return surfaces[id];
+    }
+
+    /**
+     * @return the distance along the ray to the surface with the given id, or NO_HIT
+     */
+    public double intersect(int id, Ray ray) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        int slot = slots[id];
+        switch (types[id]) {
+        case SPHERE:
+            return sphereT(spheres, SPHERE_STRIDE * slot, p.x, p.y, p.z, v.x, v.y, v.z);
+        case BOX:
+            return boxT(boxes, BOX_STRIDE * slot, p.x, p.y, p.z, v.x, v.y, v.z);
+        case PLAIN:
+            return plainT(plains, PLAIN_STRIDE * slot, p.x, p.y, p.z, v.x, v.y, v.z);
+        default:
+            return surfaces[id].intersectT(ray);
+        }
+    }
+
+    /**
+     * Builds the full hit record (normal, inside flag and surface) of a surface that is known to be hit.
+     *
+     * @param t - the distance to the surface, as found by the intersection tests
+     */
+    public Hit hit(int id, Ray ray, double t) {
+        return surfaces[id].hitAt(ray, t);
+    }
+
+    /**
+     * @return the hit record of the closest surface of the lane of the packet, or null if it hits nothing
+     */
+    public Hit hit(RayPacket packet, int lane) {
+        int id = packet.closestId(lane);
+        return id < 0 ? null : hit(id, packet.rays[lane], packet.closestT[lane]);
+    }
+
+    /**
+     * Finds the closest surface hit by the ray by scanning all the primitive arrays.
+     * Ties are resolved in favour of the surface that comes first in the scene.
+     */
+    public Hit findMinIntersection(Ray ray) {
+        return findMinIntersection(ray, null);
+    }
+
+    @Override
+    public Hit findMinIntersection(Ray ray, long[] tests) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double ox = p.x, oy = p.y, oz = p.z, dx = v.x, dy = v.y, dz = v.z;
+        double closestT = NO_HIT;
+        int closestId = -1;
+
+        for (int s = 0; s < sphereIds.length; ++s) {
+            double t = sphereT(spheres, SPHERE_STRIDE * s, ox, oy, oz, dx, dy, dz);
+            if (t < closestT || (t == closestT && t != NO_HIT && sphereIds[s] < closestId)) {
+                closestT = t;
+                closestId = sphereIds[s];
+            }
+        }
+        for (int b = 0; b < boxIds.length; ++b) {
+            double t = boxT(boxes, BOX_STRIDE * b, ox, oy, oz, dx, dy, dz);
+            if (t < closestT || (t == closestT && t != NO_HIT && boxIds[b] < closestId)) {
+                closestT = t;
+                closestId = boxIds[b];
+            }
+        }
+        for (int q = 0; q < plainIds.length; ++q) {
+            double t = plainT(plains, PLAIN_STRIDE * q, ox, oy, oz, dx, dy, dz);
+            if (t < closestT || (t == closestT && t != NO_HIT && plainIds[q] < closestId)) {
+                closestT = t;
+                closestId = plainIds[q];
+            }
+        }
+        for (int id : otherIds) {
+            double t = intersect(id, ray);
+            if (t < closestT || (t == closestT && t != NO_HIT && id < closestId)) {
+                closestT = t;
+                closestId = id;
+            }
+        }
+        if (tests != null) {
+            tests[SPHERE] += sphereIds.length;
+            tests[BOX] += boxIds.length;
+            tests[PLAIN] += plainIds.length;
+            tests[OTHER] += otherIds.length;
+        }
+        return closestId < 0 ? null : hit(closestId, ray, closestT);
+    }
+
+    /**
+     * Finds the closest surface of every ray of the packet: every primitive is loaded once and tested against
+     * all the lanes. Spheres and boxes that the whole packet misses are skipped after a single bounds test.
+     */
+    @Override
+    public void findMinIntersections(RayPacket packet, long[] tests) {
+        packet.computeBounds();
+        double pad = Ops.epsilon;
+        for (int s = 0; s < sphereIds.length; ++s) {
+            int i = SPHERE_STRIDE * s;
+            double r = spheres[i + 3] + pad;
+            if (packet.missesBox(spheres[i] - r, spheres[i + 1] - r, spheres[i + 2] - r,
+                    spheres[i] + r, spheres[i + 1] + r, spheres[i + 2] + r))
+                continue;
+            intersectSpheres(i, sphereIds[s], packet);
+            count(tests, SPHERE, packet.size);
+        }
+        for (int b = 0; b < boxIds.length; ++b) {
+            int i = BOX_STRIDE * b;
+            if (packet.missesBox(boxes[i] - pad, boxes[i + 1] - pad, boxes[i + 2] - pad,
+                    boxes[i + 3] + pad, boxes[i + 4] + pad, boxes[i + 5] + pad))
+                continue;
+            intersectBoxes(i, boxIds[b], packet);
+            count(tests, BOX, packet.size);
+        }
+        for (int q = 0; q < plainIds.length; ++q)
+            intersectPlains(PLAIN_STRIDE * q, plainIds[q], packet);
+        count(tests, PLAIN, plainIds.length * packet.size);
+        for (int id : otherIds)
+            intersectOther(id, packet);
+        count(tests, OTHER, otherIds.length * packet.size);
+    }
+
+    /**
+     * Tests the surface with the given id against all the lanes of the packet.
+     */
+    public void intersect(int id, RayPacket packet) {
+        int slot = slots[id];
+        switch (types[id]) {
+        case SPHERE:
+            intersectSpheres(SPHERE_STRIDE * slot, id, packet);
+            break;
+        case BOX:
+            intersectBoxes(BOX_STRIDE * slot, id, packet);
+            break;
+        case PLAIN:
+            intersectPlains(PLAIN_STRIDE * slot, id, packet);
+            break;
+        default:
+            intersectOther(id, packet);
+        }
+    }
+
+    private void intersectSpheres(int i, int id, RayPacket packet) {
+        for (int lane = 0; lane < packet.size; ++lane)
+            packet.offer(lane, sphereT(spheres, i, packet.ox[lane], packet.oy[lane], packet.oz[lane],
+                    packet.dx[lane], packet.dy[lane], packet.dz[lane]), id);
+    }
+
+    private void intersectBoxes(int i, int id, RayPacket packet) {
+        for (int lane = 0; lane < packet.size; ++lane)
+            packet.offer(lane, boxT(boxes, i, packet.ox[lane], packet.oy[lane], packet.oz[lane],
+                    packet.dx[lane], packet.dy[lane], packet.dz[lane]), id);
+    }
+
+    private void intersectPlains(int i, int id, RayPacket packet) {
+        for (int lane = 0; lane < packet.size; ++lane)
+            packet.offer(lane, plainT(plains, i, packet.ox[lane], packet.oy[lane], packet.oz[lane],
+                    packet.dx[lane], packet.dy[lane], packet.dz[lane]), id);
+    }
+
+    private void intersectOther(int id, RayPacket packet) {
+        for (int lane = 0; lane < packet.size; ++lane) {
+            packet.offer(lane, surfaces[id].intersectT(packet.rays[lane]), id);
+        }
+    }
+
+    /**
+     * @return true if the surface with the given id is hit by the ray before maxT
+     */
+    public boolean occludes(int id, Ray ray, double maxT) {
+        if (types[id] == OTHER)
+            return surfaces[id].occludes(ray, maxT);
+        return intersect(id, ray) < maxT;
+    }
+
+    /**
+     * Any-hit query over all the primitive arrays, stops at the first surface hit before maxT.
+     */
+    public boolean isOccluded(Ray ray, double maxT) {
+        return isOccluded(ray, maxT, null);
+    }
+
+    @Override
+    public boolean isOccluded(Ray ray, double maxT, long[] tests) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double ox = p.x, oy = p.y, oz = p.z, dx = v.x, dy = v.y, dz = v.z;
+
+        for (int q = 0; q < plainIds.length; ++q)
+            if (plainT(plains, PLAIN_STRIDE * q, ox, oy, oz, dx, dy, dz) < maxT)
+                return count(tests, PLAIN, q + 1);
+        count(tests, PLAIN, plainIds.length);
+        for (int b = 0; b < boxIds.length; ++b)
+            if (boxT(boxes, BOX_STRIDE * b, ox, oy, oz, dx, dy, dz) < maxT)
+                return count(tests, BOX, b + 1);
+        count(tests, BOX, boxIds.length);
+        for (int s = 0; s < sphereIds.length; ++s)
+            if (sphereT(spheres, SPHERE_STRIDE * s, ox, oy, oz, dx, dy, dz) < maxT)
+                return count(tests, SPHERE, s + 1);
+        count(tests, SPHERE, sphereIds.length);
+        for (int o = 0; o < otherIds.length; ++o)
+            if (surfaces[otherIds[o]].occludes(ray, maxT))
+                return count(tests, OTHER, o + 1);
+        count(tests, OTHER, otherIds.length);
+        return false;
+    }
+
+    /**
+     * Nothing to do, update already rewrote the moved surfaces.
+     */
+    @Override
+    public boolean refit() {
+        return true;
+    }
+
+    @Override
+    public String describe() {
+        return "linear scan over " + size() + " surfaces";
+    }
+
+    // always true, so an early exit can count its tests and return at once
+    private static boolean count(long[] tests, int type, int n) {
+        if (tests != null)
+            tests[type] += n;
+        return true;
+    }
+
+    //MARK: intersection kernels
+    //These follow the arithmetic of Sphere, AxisAlignedBox and Plain exactly, so that the t found here
+    //and the t of the Hit built by the shape are equal.
+
+    static double sphereT(double[] data, int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+        double px = ox - data[i], py = oy - data[i + 1], pz = oz - data[i + 2];
+        double r = data[i + 3];
+        double b = 2.0 * (dx * px + dy * py + dz * pz);
+        double c = (px * px + py * py + pz * pz) - r * r;
+        double sqr = b * b - 4 * c;
+        if (sqr < 0)
+            return NO_HIT;
+        double t1 = (-b + Math.sqrt(sqr)) / 2.0;
+        double t2 = (-b - Math.sqrt(sqr)) / 2.0;
+        if (t1 < Ops.epsilon)
+            return NO_HIT;
+        return t2 < Ops.epsilon ? t1 : t2;
+    }
+
+    static double boxT(double[] data, int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+        double near = -Ops.infinity, far = Ops.infinity;
+        for (int axis = 0; axis < 3; ++axis) {
+            double start = axis == 0 ? ox : (axis == 1 ? oy : oz);
+            double direction = axis == 0 ? dx : (axis == 1 ? dy : dz);
+            double min = data[i + axis], max = data[i + 3 + axis];
+            if (Math.abs(direction) <= Ops.epsilon && (min > start || start > max))
+                return NO_HIT;
+            double t1 = (min - start) / direction;
+            double t2 = (max - start) / direction;
+            double tempMin = Math.min(t1, t2);
+            double tempMax = Math.max(t1, t2);
+            if (tempMin > near) near = tempMin;
+            if (tempMax < far) far = tempMax;
+            if ((near > far) || (far < Ops.epsilon))
+                return NO_HIT;
+        }
+        // a ray that starts inside the box leaves it at the far side
+        return near < Ops.epsilon ? far : near;
+    }
+
+    static double plainT(double[] data, int i, double ox, double oy, double oz, double dx, double dy, double dz) {
+        double a = data[i], b = data[i + 1], c = data[i + 2], d = data[i + 3];
+        double t = -(a * ox + b * oy + c * oz + d) / (a * dx + b * dy + c * dz);
+        return t > Ops.epsilon & t < Ops.infinity ? t : NO_HIT;
+    }
+}
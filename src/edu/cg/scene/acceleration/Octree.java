@@ -0,0 +1,224 @@
+package edu.cg.scene.acceleration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Ray;
+
+/**
+ * A sparse octree over the bounded surfaces of a compiled scene. A node is split into its 8 octants while it holds
+ * more than MAX_LEAF_SIZE surfaces, only the octants that overlap some surface are stored. Rays visit the octants
+ * of a node nearest first, and skip the ones they enter beyond the closest hit found so far.
+ * It adapts to clustered surfaces, where a uniform grid wastes most of its cells, but large surfaces are
+ * referenced by many octants, so a node whose split would mostly copy its surfaces is kept as a leaf.
+ */
+public class Octree extends SpatialSubdivision {
+    private static final int MAX_LEAF_SIZE = 8;
+    private static final int MAX_DEPTH = 10;
+    private static final int MAX_DUPLICATION = 4; //a split may reference the surfaces of a node at most 4 times
+    private static final int STACK_SIZE = 7 * MAX_DEPTH + 8;
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+    private static final ThreadLocal<double[]> ENTRIES = ThreadLocal.withInitial(() -> new double[8]);
+
+    // Per node: minX, minY, minZ, maxX, maxY, maxZ
+    private double[] nodeBounds;
+    // Per node: interior - index of the first of its children in children, leaf - first primitive
+    private int[] nodeOffset;
+    // Per node: interior - -1, leaf - number of primitives
+    private int[] nodeCount;
+    private int numNodes = 0;
+    // Per interior node, the indices of its 8 octants, -1 for the empty ones
+    private final List<Integer> children = new ArrayList<>();
+    private int[] childNodes;
+    private final List<Integer> leafPrimitives = new ArrayList<>();
+    private int[] primitives; // surface ids, in id order within every leaf
+
+    public Octree(CompiledScene scene) {
+        super(scene);
+        int capacity = 16;
+        nodeBounds = new double[6 * capacity];
+        nodeOffset = new int[capacity];
+        nodeCount = new int[capacity];
+        if (bounded.length > 0) {
+            int[] all = new int[bounded.length];
+            for (int i = 0; i < all.length; ++i)
+                all[i] = i;
+            build(sceneBounds, all, 0);
+        }
+        childNodes = toArray(children);
+        primitives = toArray(leafPrimitives);
+        children.clear();
+        leafPrimitives.clear();
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] ans = new int[list.size()];
+        for (int i = 0; i < ans.length; ++i)
+            ans[i] = list.get(i);
+        return ans;
+    }
+
+    /**
+     * @param members - indices into bounded of the surfaces that overlap the box, in increasing order
+     */
+    private int build(BoundingBox box, int[] members, int depth) {
+        // the node is shrunk to its surfaces, so that rays skip the empty parts of its octant, and its own
+        // octants are taken from there
+        BoundingBox used = BoundingBox.empty();
+        for (int m : members)
+            used = used.union(bounds[m]);
+        box = intersection(box, used);
+        int node = newNode(box);
+        if (members.length > MAX_LEAF_SIZE && depth < MAX_DEPTH) {
+            int[][] octants = split(box, members);
+            if (octants != null) {
+                int first = children.size();
+                for (int o = 0; o < 8; ++o)
+                    children.add(-1);
+                for (int o = 0; o < 8; ++o)
+                    if (octants[o].length > 0)
+                        children.set(first + o, build(octant(box, o), octants[o], depth + 1));
+                nodeOffset[node] = first;
+                nodeCount[node] = -1;
+                return node;
+            }
+        }
+        nodeOffset[node] = leafPrimitives.size();
+        nodeCount[node] = members.length;
+        for (int m : members)
+            leafPrimitives.add(bounded[m]);
+        return node;
+    }
+
+    /**
+     * @return the members overlapping each octant, or null if splitting wouldn't separate them
+     */
+    private int[][] split(BoundingBox box, int[] members) {
+        int[][] octants = new int[8][];
+        int total = 0, largest = 0;
+        for (int o = 0; o < 8; ++o) {
+            BoundingBox octant = octant(box, o);
+            int[] overlapping = new int[members.length];
+            int n = 0;
+            for (int m : members)
+                if (overlaps(bounds[m], octant))
+                    overlapping[n++] = m;
+            octants[o] = Arrays.copyOf(overlapping, n);
+            total += n;
+            largest = Math.max(largest, n);
+        }
+        if (largest == members.length || total > MAX_DUPLICATION * members.length)
+            return null;
+        return octants;
+    }
+
+    private static BoundingBox octant(BoundingBox box, int o) {
+        double midX = box.centroid(0), midY = box.centroid(1), midZ = box.centroid(2);
+        return new BoundingBox((o & 1) == 0 ? box.minX : midX, (o & 2) == 0 ? box.minY : midY,
+                (o & 4) == 0 ? box.minZ : midZ, (o & 1) == 0 ? midX : box.maxX, (o & 2) == 0 ? midY : box.maxY,
+                (o & 4) == 0 ? midZ : box.maxZ);
+    }
+
+    private static BoundingBox intersection(BoundingBox a, BoundingBox b) {
+        return new BoundingBox(Math.max(a.minX, b.minX), Math.max(a.minY, b.minY), Math.max(a.minZ, b.minZ),
+                Math.min(a.maxX, b.maxX), Math.min(a.maxY, b.maxY), Math.min(a.maxZ, b.maxZ));
+    }
+
+    private static boolean overlaps(BoundingBox a, BoundingBox b) {
+        return a.minX <= b.maxX && b.minX <= a.maxX && a.minY <= b.maxY && b.minY <= a.maxY &&
+                a.minZ <= b.maxZ && b.minZ <= a.maxZ;
+    }
+
+    private int newNode(BoundingBox box) {
+        if (numNodes == nodeCount.length) {
+            nodeBounds = Arrays.copyOf(nodeBounds, 12 * numNodes);
+            nodeOffset = Arrays.copyOf(nodeOffset, 2 * numNodes);
+            nodeCount = Arrays.copyOf(nodeCount, 2 * numNodes);
+        }
+        int i = 6 * numNodes;
+        nodeBounds[i] = box.minX;
+        nodeBounds[i + 1] = box.minY;
+        nodeBounds[i + 2] = box.minZ;
+        nodeBounds[i + 3] = box.maxX;
+        nodeBounds[i + 4] = box.maxY;
+        nodeBounds[i + 5] = box.maxZ;
+        return numNodes++;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    @Override
+    public String describe() {
+        return "octree over " + scene.size() + " surfaces (" + numNodes + " nodes)";
+    }
+
+    @Override
+    protected void findClosest(Ray ray, Query query) {
+        traverse(ray, CompiledScene.NO_HIT, query, false);
+    }
+
+    @Override
+    protected boolean findOccluder(Ray ray, double maxT, Query query) {
+        return traverse(ray, maxT, query, true);
+    }
+
+    /**
+     * Visits the nodes the ray enters before the closest hit (or before maxT for the any hit query), nearest
+     * first. Nodes entered exactly at the closest hit are still visited, they may hold an earlier surface of a tie.
+     *
+     * @return true if the any hit query found an occluder
+     */
+    private boolean traverse(Ray ray, double maxT, Query query, boolean anyHit) {
+        double ox = ray.source().x, oy = ray.source().y, oz = ray.source().z;
+        double ix = 1.0 / ray.direction().x, iy = 1.0 / ray.direction().y, iz = 1.0 / ray.direction().z;
+        int[] stack = STACKS.get();
+        double[] entries = ENTRIES.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            double limit = anyHit ? maxT : query.closestT;
+            // the closest hit may have moved since the node was pushed
+            if (enter(nodeBounds, 6 * node, ox, oy, oz, ix, iy, iz, limit) == MISS)
+                continue;
+
+            int count = nodeCount[node];
+            if (count >= 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i) {
+                    if (anyHit) {
+                        if (query.occludes(primitives[i], ray, maxT))
+                            return true;
+                    } else {
+                        query.test(primitives[i], ray);
+                    }
+                }
+                continue;
+            }
+
+            // push the entered octants farthest first, so the nearest one is visited first
+            int first = nodeOffset[node], pushed = top;
+            for (int o = 0; o < 8; ++o) {
+                int child = childNodes[first + o];
+                if (child < 0)
+                    continue;
+                double t = enter(nodeBounds, 6 * child, ox, oy, oz, ix, iy, iz, limit);
+                if (t == MISS)
+                    continue;
+                int k = top++;
+                while (k > pushed && entries[k - 1 - pushed] < t) {
+                    stack[k] = stack[k - 1];
+                    entries[k - pushed] = entries[k - 1 - pushed];
+                    --k;
+                }
+                stack[k] = child;
+                entries[k - pushed] = t;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+package edu.cg.scene.acceleration;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+import edu.cg.algebra.Vec;
+
+/**
+ * A packet of up to MAX_SIZE coherent rays (e.g. the primary rays of a block of neighbouring pixels), stored as
+ * a structure of arrays so that every primitive and every BVH node is fetched once and tested against all the
+ * lanes in a tight loop.
+ * <p>
+ * Every lane keeps its own closest hit (t and surface id), ties are resolved exactly like the single ray queries,
+ * so a ray finds the same hit in a packet and on its own.
+ * <p>
+ * When the directions of all the rays have the same sign on every axis, the packet also keeps the intervals of
+ * its origins and inverse directions, and whole boxes that no ray can hit are rejected with a single interval
+ * arithmetic slab test instead of a test per lane.
+ */
+public class RayPacket {
+    public static final int MAX_SIZE = 64;
+
+    final Ray[] rays = new Ray[MAX_SIZE];
+    final double[] ox = new double[MAX_SIZE], oy = new double[MAX_SIZE], oz = new double[MAX_SIZE];
+    final double[] dx = new double[MAX_SIZE], dy = new double[MAX_SIZE], dz = new double[MAX_SIZE];
+    final double[] ix = new double[MAX_SIZE], iy = new double[MAX_SIZE], iz = new double[MAX_SIZE];
+    final double[] closestT = new double[MAX_SIZE];
+    final int[] closestId = new int[MAX_SIZE];
+    int size = 0;
+
+    // the intervals of the origins and inverse directions of the lanes, valid after computeBounds
+    private boolean coherent = false;
+    private double oxMin, oxMax, oyMin, oyMax, ozMin, ozMax;
+    private double ixMin, ixMax, iyMin, iyMax, izMin, izMax;
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the lane of the ray
+     */
+    public int add(Ray ray) {
+        if (size == MAX_SIZE)
+            throw new IllegalStateException("The packet is full");
+        Point p = ray.source();
+        Vec v = ray.direction();
+        int lane = size++;
+        rays[lane] = ray;
+        ox[lane] = p.x;
+        oy[lane] = p.y;
+        oz[lane] = p.z;
+        dx[lane] = v.x;
+        dy[lane] = v.y;
+        dz[lane] = v.z;
+        ix[lane] = 1.0 / v.x;
+        iy[lane] = 1.0 / v.y;
+        iz[lane] = 1.0 / v.z;
+        closestT[lane] = CompiledScene.NO_HIT;
+        closestId[lane] = Integer.MAX_VALUE;
+        return lane;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Ray ray(int lane) {
+        return rays[lane];
+    }
+
+    /**
+     * @return the id of the surface closest along the ray of the lane, or -1 if it hits nothing
+     */
+    public int closestId(int lane) {
+        return closestT[lane] == CompiledScene.NO_HIT ? -1 : closestId[lane];
+    }
+
+    /**
+     * Computes the intervals used by missesBox, called once all the rays were added.
+     */
+    void computeBounds() {
+        coherent = size > 0 && sameSign(dx) && sameSign(dy) && sameSign(dz);
+        if (!coherent)
+            return;
+        oxMin = min(ox); oxMax = max(ox);
+        oyMin = min(oy); oyMax = max(oy);
+        ozMin = min(oz); ozMax = max(oz);
+        ixMin = min(ix); ixMax = max(ix);
+        iyMin = min(iy); iyMax = max(iy);
+        izMin = min(iz); izMax = max(iz);
+    }
+
+    /**
+     * Conservative test: when true none of the rays enters the box (at a non negative t), so the per lane
+     * slab tests of the box would all miss. Rounding is monotonic, so the bounds hold for the computed values too.
+     */
+    boolean missesBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if (!coherent)
+            return false;
+        double near = 0, far = Double.POSITIVE_INFINITY;
+
+        double lo1 = productMin(minX - oxMax, minX - oxMin, ixMin, ixMax);
+        double hi1 = productMax(minX - oxMax, minX - oxMin, ixMin, ixMax);
+        double lo2 = productMin(maxX - oxMax, maxX - oxMin, ixMin, ixMax);
+        double hi2 = productMax(maxX - oxMax, maxX - oxMin, ixMin, ixMax);
+        // with a positive direction the near plane is the min plane, with a negative one it is the max plane
+        near = Math.max(near, ixMin > 0 ? lo1 : lo2);
+        far = Math.min(far, ixMin > 0 ? hi2 : hi1);
+
+        lo1 = productMin(minY - oyMax, minY - oyMin, iyMin, iyMax);
+        hi1 = productMax(minY - oyMax, minY - oyMin, iyMin, iyMax);
+        lo2 = productMin(maxY - oyMax, maxY - oyMin, iyMin, iyMax);
+        hi2 = productMax(maxY - oyMax, maxY - oyMin, iyMin, iyMax);
+        near = Math.max(near, iyMin > 0 ? lo1 : lo2);
+        far = Math.min(far, iyMin > 0 ? hi2 : hi1);
+
+        lo1 = productMin(minZ - ozMax, minZ - ozMin, izMin, izMax);
+        hi1 = productMax(minZ - ozMax, minZ - ozMin, izMin, izMax);
+        lo2 = productMin(maxZ - ozMax, maxZ - ozMin, izMin, izMax);
+        hi2 = productMax(maxZ - ozMax, maxZ - ozMin, izMin, izMax);
+        near = Math.max(near, izMin > 0 ? lo1 : lo2);
+        far = Math.min(far, izMin > 0 ? hi2 : hi1);
+
+        return near > far;
+    }
+
+    private boolean sameSign(double[] values) {
+        boolean positive = values[0] > 0, negative = values[0] < 0;
+        for (int lane = 1; lane < size; ++lane) {
+            positive &= values[lane] > 0;
+            negative &= values[lane] < 0;
+        }
+        return positive | negative;
+    }
+
+    private double min(double[] values) {
+        double ans = values[0];
+        for (int lane = 1; lane < size; ++lane)
+            ans = Math.min(ans, values[lane]);
+        return ans;
+    }
+
+    private double max(double[] values) {
+        double ans = values[0];
+        for (int lane = 1; lane < size; ++lane)
+            ans = Math.max(ans, values[lane]);
+        return ans;
+    }
+
+    // bounds of the product of the intervals [a1, a2] and [b1, b2]
+    private static double productMin(double a1, double a2, double b1, double b2) {
+        return Math.min(Math.min(a1 * b1, a1 * b2), Math.min(a2 * b1, a2 * b2));
+    }
+
+    private static double productMax(double a1, double a2, double b1, double b2) {
+        return Math.max(Math.max(a1 * b1, a1 * b2), Math.max(a2 * b1, a2 * b2));
+    }
+
+    void offer(int lane, double t, int id) {
+        double current = closestT[lane];
+        if (t < current || (t == current && t != CompiledScene.NO_HIT && id < closestId[lane])) {
+            closestT[lane] = t;
+            closestId[lane] = id;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package edu.cg.scene.acceleration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Ray;
+
+/**
+ * The common part of the accelerators that divide space into cells: the uniform grid and the octree.
+ * A surface is referenced by every cell its (padded) bounds overlap, so a ray may meet it in several cells, the
+ * per thread mailbox makes sure it is tested once per query. Unbounded surfaces are tested linearly, as by the BVH.
+ * The cells are fitted to the surfaces when built, so moving surfaces requires building the structure again.
+ * Packets are traced lane by lane.
+ */
+abstract class SpatialSubdivision implements Accelerator {
+    static final double MISS = Double.POSITIVE_INFINITY;
+
+    protected final CompiledScene scene;
+    protected final int[] bounded; // ids of the surfaces with finite bounds
+    protected final BoundingBox[] bounds; // their padded bounds
+    protected final int[] unbounded;
+    protected final BoundingBox sceneBounds; // the union of the padded bounds, empty if there are none
+    private final ThreadLocal<Query> queries;
+
+    /**
+     * The state of a query of a thread.
+     */
+    static final class Query {
+        final CompiledScene scene;
+        final int[] mailbox; // per surface id, the stamp of the last query that tested it
+        int stamp = 0;
+        long[] tests;
+        double closestT;
+        int closestId;
+
+        Query(CompiledScene scene) {
+            this.scene = scene;
+            mailbox = new int[scene.size()];
+        }
+
+        void start(long[] tests, double closestT, int closestId) {
+            if (++stamp == Integer.MAX_VALUE) {
+                Arrays.fill(mailbox, 0);
+                stamp = 1;
+            }
+            this.tests = tests;
+            this.closestT = closestT;
+            this.closestId = closestId;
+        }
+
+        /**
+         * Tests a surface for the closest hit, unless it was already tested by this query.
+         */
+        void test(int id, Ray ray) {
+            if (mailbox[id] == stamp)
+                return;
+            mailbox[id] = stamp;
+            double t = scene.intersect(id, ray);
+            if (tests != null)
+                tests[scene.type(id)]++;
+            if (t < closestT || (t == closestT && t != CompiledScene.NO_HIT && id < closestId)) {
+                closestT = t;
+                closestId = id;
+            }
+        }
+
+        /**
+         * @return true if the surface is hit before maxT, false if it isn't or was already tested by this query
+         */
+        boolean occludes(int id, Ray ray, double maxT) {
+            if (mailbox[id] == stamp)
+                return false;
+            mailbox[id] = stamp;
+            if (tests != null)
+                tests[scene.type(id)]++;
+            return scene.occludes(id, ray, maxT);
+        }
+    }
+
+    protected SpatialSubdivision(CompiledScene scene) {
+        this.scene = scene;
+        List<Integer> finite = new ArrayList<>();
+        List<Integer> others = new ArrayList<>();
+        for (int id = 0; id < scene.size(); ++id) {
+            if (scene.surface(id).bounds().isFinite())
+                finite.add(id);
+            else
+                others.add(id);
+        }
+        bounded = new int[finite.size()];
+        bounds = new BoundingBox[finite.size()];
+        BoundingBox box = BoundingBox.empty();
+        for (int i = 0; i < bounded.length; ++i) {
+            bounded[i] = finite.get(i);
+            bounds[i] = scene.surface(bounded[i]).bounds().pad(Ops.epsilon);
+            box = box.union(bounds[i]);
+        }
+        sceneBounds = box;
+        unbounded = new int[others.size()];
+        for (int i = 0; i < unbounded.length; ++i)
+            unbounded[i] = others.get(i);
+        queries = ThreadLocal.withInitial(() -> new Query(scene));
+    }
+
+    /**
+     * Tests the surfaces of the cells the ray goes through, in order, until no further cell can hold a hit
+     * closer than (or as close as) query.closestT.
+     */
+    protected abstract void findClosest(Ray ray, Query query);
+
+    /**
+     * @return true if a surface in the cells the ray goes through is hit before maxT
+     */
+    protected abstract boolean findOccluder(Ray ray, double maxT, Query query);
+
+    @Override
+    public Hit findMinIntersection(Ray ray, long[] tests) {
+        Query query = queries.get();
+        query.start(tests, CompiledScene.NO_HIT, Integer.MAX_VALUE);
+        closest(ray, query);
+        return query.closestT == CompiledScene.NO_HIT ? null : scene.hit(query.closestId, ray, query.closestT);
+    }
+
+    @Override
+    public void findMinIntersections(RayPacket packet, long[] tests) {
+        Query query = queries.get();
+        for (int lane = 0; lane < packet.size; ++lane) {
+            query.start(tests, packet.closestT[lane], packet.closestId[lane]);
+            closest(packet.rays[lane], query);
+            packet.offer(lane, query.closestT, query.closestId);
+        }
+    }
+
+    private void closest(Ray ray, Query query) {
+        for (int id : unbounded)
+            query.test(id, ray);
+        if (bounded.length > 0)
+            findClosest(ray, query);
+    }
+
+    @Override
+    public boolean isOccluded(Ray ray, double maxT, long[] tests) {
+        for (int id : unbounded) {
+            if (tests != null)
+                tests[scene.type(id)]++;
+            if (scene.occludes(id, ray, maxT))
+                return true;
+        }
+        if (bounded.length == 0)
+            return false;
+        Query query = queries.get();
+        query.start(tests, CompiledScene.NO_HIT, Integer.MAX_VALUE);
+        return findOccluder(ray, maxT, query);
+    }
+
+    /**
+     * The cells are fitted to the surfaces, they are built again instead.
+     */
+    @Override
+    public boolean refit() {
+        return false;
+    }
+
+    /**
+     * Slab test of the ray against a box stored as minX, minY, minZ, maxX, maxY, maxZ from index i, given the
+     * inverse of the direction of the ray.
+     *
+     * @return the entry parameter of the ray into the box, or MISS if the box is missed within [0, maxT]
+     */
+    static double enter(double[] box, int i, double ox, double oy, double oz, double ix, double iy, double iz,
+            double maxT) {
+        double tNear = 0, tFar = maxT;
+
+        double t1 = (box[i] - ox) * ix, t2 = (box[i + 3] - ox) * ix;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        t1 = (box[i + 1] - oy) * iy;
+        t2 = (box[i + 4] - oy) * iy;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        t1 = (box[i + 2] - oz) * iz;
+        t2 = (box[i + 5] - oz) * iz;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar) tFar = t2;
+
+        return tNear <= tFar ? tNear : MISS;
+    }
+}
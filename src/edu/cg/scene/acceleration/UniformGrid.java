@@ -0,0 +1,161 @@
+package edu.cg.scene.acceleration;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Ray;
+
+/**
+ * A uniform grid over the bounded surfaces of a compiled scene. The cells are cubes sized so that there are about
+ * DENSITY cells per surface, and rays walk through them in order with a 3D DDA, stopping at the first cell that
+ * ends beyond the closest hit found so far.
+ * Cheap to build and to traverse when the surfaces are of similar sizes and evenly spread, like a stack of boxes,
+ * but a few large surfaces fill many cells and clustered ones crowd a few cells.
+ */
+public class UniformGrid extends SpatialSubdivision {
+    private static final double DENSITY = 2.0;
+    private static final int MAX_RESOLUTION = 64; //cells per axis
+
+    private final int[] resolution = new int[3];
+    private final double[] origin = new double[3];
+    private final double[] cellSize = new double[3];
+    private final double[] gridBounds = new double[6];
+    // The surface ids of cell c are cellPrimitives[cellStart[c]] .. cellPrimitives[cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private final int[] cellPrimitives;
+
+    public UniformGrid(CompiledScene scene) {
+        super(scene);
+        BoundingBox box = sceneBounds;
+        if (bounded.length == 0) {
+            cellStart = new int[1];
+            cellPrimitives = new int[0];
+            return;
+        }
+        double volume = Math.max(box.extent(0) * box.extent(1) * box.extent(2), Double.MIN_VALUE);
+        double cellsPerUnit = Math.cbrt(DENSITY * bounded.length / volume);
+        for (int axis = 0; axis < 3; ++axis) {
+            resolution[axis] = (int) Math.max(1, Math.min(MAX_RESOLUTION, Math.round(box.extent(axis) * cellsPerUnit)));
+            origin[axis] = box.min(axis);
+            cellSize[axis] = box.extent(axis) / resolution[axis];
+            gridBounds[axis] = box.min(axis);
+            gridBounds[axis + 3] = box.max(axis);
+        }
+
+        int numCells = resolution[0] * resolution[1] * resolution[2];
+        int[] counts = new int[numCells + 1];
+        int[] range = new int[6];
+        for (BoundingBox b : bounds) {
+            cellRange(b, range);
+            for (int z = range[2]; z <= range[5]; ++z)
+                for (int y = range[1]; y <= range[4]; ++y)
+                    for (int x = range[0]; x <= range[3]; ++x)
+                        counts[cell(x, y, z)]++;
+        }
+        cellStart = new int[numCells + 1];
+        for (int c = 0; c < numCells; ++c)
+            cellStart[c + 1] = cellStart[c] + counts[c];
+        cellPrimitives = new int[cellStart[numCells]];
+        int[] fill = new int[numCells];
+        // surfaces are added in id order, so every cell lists its surfaces in id order
+        for (int i = 0; i < bounded.length; ++i) {
+            cellRange(bounds[i], range);
+            for (int z = range[2]; z <= range[5]; ++z)
+                for (int y = range[1]; y <= range[4]; ++y)
+                    for (int x = range[0]; x <= range[3]; ++x) {
+                        int c = cell(x, y, z);
+                        cellPrimitives[cellStart[c] + fill[c]++] = bounded[i];
+                    }
+        }
+    }
+
+    private int cell(int x, int y, int z) {
+        return (z * resolution[1] + y) * resolution[0] + x;
+    }
+
+    private int cellIndex(double coordinate, int axis) {
+        int c = (int) Math.floor((coordinate - origin[axis]) / cellSize[axis]);
+        return c < 0 ? 0 : (c >= resolution[axis] ? resolution[axis] - 1 : c);
+    }
+
+    // the cells overlapped by a box, as minX, minY, minZ, maxX, maxY, maxZ
+    private void cellRange(BoundingBox b, int[] range) {
+        for (int axis = 0; axis < 3; ++axis) {
+            range[axis] = cellIndex(b.min(axis), axis);
+            range[axis + 3] = cellIndex(b.max(axis), axis);
+        }
+    }
+
+    public int numCells() {
+        return cellStart.length - 1;
+    }
+
+    @Override
+    public String describe() {
+        return "uniform grid of " + resolution[0] + "x" + resolution[1] + "x" + resolution[2] + " cells over " +
+                scene.size() + " surfaces";
+    }
+
+    @Override
+    protected void findClosest(Ray ray, Query query) {
+        walk(ray, CompiledScene.NO_HIT, query, false);
+    }
+
+    @Override
+    protected boolean findOccluder(Ray ray, double maxT, Query query) {
+        return walk(ray, maxT, query, true);
+    }
+
+    /**
+     * Walks the cells along the ray with a 3D DDA. The closest hit query stops once the next cell starts beyond
+     * the closest hit, cells that start exactly at it may hold an earlier surface of a tie.
+     *
+     * @param maxT - the any hit query ignores the cells that start beyond it
+     * @return true if the any hit query found an occluder
+     */
+    private boolean walk(Ray ray, double maxT, Query query, boolean anyHit) {
+        Point o = ray.source();
+        double[] p = { o.x, o.y, o.z };
+        double[] d = { ray.direction().x, ray.direction().y, ray.direction().z };
+        double tEnter = enter(gridBounds, 0, p[0], p[1], p[2], 1.0 / d[0], 1.0 / d[1], 1.0 / d[2], maxT);
+        if (tEnter == MISS)
+            return false;
+
+        int[] c = new int[3];
+        int[] step = new int[3];
+        double[] tNext = new double[3];
+        for (int axis = 0; axis < 3; ++axis) {
+            c[axis] = cellIndex(p[axis] + tEnter * d[axis], axis);
+            if (d[axis] > 0) {
+                step[axis] = 1;
+                tNext[axis] = (origin[axis] + (c[axis] + 1) * cellSize[axis] - p[axis]) / d[axis];
+            } else if (d[axis] < 0) {
+                step[axis] = -1;
+                tNext[axis] = (origin[axis] + c[axis] * cellSize[axis] - p[axis]) / d[axis];
+            } else {
+                tNext[axis] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        while (true) {
+            int cell = cell(c[0], c[1], c[2]);
+            for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+                if (anyHit) {
+                    if (query.occludes(cellPrimitives[i], ray, maxT))
+                        return true;
+                } else {
+                    query.test(cellPrimitives[i], ray);
+                }
+            }
+
+            int axis = tNext[0] <= tNext[1] ? (tNext[0] <= tNext[2] ? 0 : 2) : (tNext[1] <= tNext[2] ? 1 : 2);
+            double tExit = tNext[axis];
+            if (tExit > (anyHit ? maxT : query.closestT))
+                return false;
+            c[axis] += step[axis];
+            if (c[axis] < 0 || c[axis] >= resolution[axis])
+                return false;
+            tNext[axis] = (origin[axis] + (step[axis] > 0 ? c[axis] + 1 : c[axis]) * cellSize[axis] - p[axis]) /
+                    d[axis];
+        }
+    }
+}
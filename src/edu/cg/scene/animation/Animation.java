@@ -0,0 +1,236 @@
+package edu.cg.scene.animation;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+
+import edu.cg.Logger;
+import edu.cg.algebra.Point;
+import edu.cg.scene.Scene;
+import edu.cg.scene.objects.AxisAlignedBox;
+import edu.cg.scene.objects.Plain;
+import edu.cg.scene.objects.Shape;
+import edu.cg.scene.objects.Sphere;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * A sequence of frames of a scene, with a keyframed camera and keyframed shapes.
+ * <p>
+ * All the frames are rendered by the same scene, so they share its thread pool (see Scene.initExecutor), and its
+ * compiled surfaces and accelerator are built once for the whole sequence: frames that only move the camera reuse
+ * them as they are, moved shapes are updated in place and the accelerator is refitted (see Scene.setSurface).
+ * Every frame is written to disk as soon as it is rendered, while the next one is rendered.
+ */
+public class Animation {
+    public interface FrameListener {
+        /**
+         * Called from the writing thread once a frame is on disk.
+         */
+        void frameWritten(int frame, File file);
+    }
+
+    private static final int MAX_PENDING_WRITES = 2; //frames rendered ahead of the writer, to bound the memory
+
+    private final Scene scene;
+    private final int numFrames;
+    private Keyframes<CameraPose> camera = null;
+    private final Map<Integer, Keyframes<Shape>> shapes = new TreeMap<>();
+    private String filePattern = "frame%04d.png";
+    private FrameListener listener = null;
+    private volatile boolean cancelled = false;
+
+    public Animation(Scene scene, int numFrames) {
+        if (numFrames <= 0)
+            throw new IllegalArgumentException("An animation needs at least one frame");
+        this.scene = scene;
+        this.numFrames = numFrames;
+    }
+
+    public static Keyframes<CameraPose> cameraKeyframes() {
+        return new Keyframes<>(CameraPose::interpolate);
+    }
+
+    public static Keyframes<Shape> shapeKeyframes() {
+        return new Keyframes<>(Animation::interpolate);
+    }
+
+    //MARK: initializers
+    public Animation initCamera(Keyframes<CameraPose> camera) {
+        this.camera = camera;
+        return this;
+    }
+
+    /**
+     * Animates the shape of a surface of the scene, its material is kept.
+     *
+     * @param surfaceIndex - the position of the surface in the scene
+     */
+    public Animation animateShape(int surfaceIndex, Keyframes<Shape> keyframes) {
+        if (surfaceIndex < 0 || surfaceIndex >= scene.getSurfaces().size())
+            throw new IllegalArgumentException("The scene has no surface " + surfaceIndex);
+        if (keyframes.isEmpty())
+            throw new IllegalArgumentException("The shape of surface " + surfaceIndex + " has no keys");
+        shapes.put(surfaceIndex, keyframes);
+        return this;
+    }
+
+    /**
+     * @param filePattern - the name of the file of a frame, formatted with the frame number (default frame%04d.png)
+     */
+    public Animation initFilePattern(String filePattern) {
+        this.filePattern = filePattern;
+        return this;
+    }
+
+    public Animation initFrameListener(FrameListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Sets the camera and the animated shapes of the scene to their values at the given frame.
+     * Shapes that hold their value since the previous frame are left untouched.
+     */
+    public void applyFrame(int frame) {
+        if (camera != null && !camera.isEmpty())
+            camera.valueAt(frame).applyTo(scene);
+        for (Map.Entry<Integer, Keyframes<Shape>> entry : shapes.entrySet()) {
+            int index = entry.getKey();
+            Shape shape = entry.getValue().valueAt(frame);
+            Surface surface = scene.getSurfaces().get(index);
+            if (surface.getShape() != shape)
+                scene.setSurface(index, new Surface(shape, surface.getMaterial()));
+        }
+    }
+
+    /**
+     * Renders all the frames into the directory, in order, each one as a PNG file named by the file pattern.
+     * Stops after the current frame if cancel() is called, the frame being rendered is then not written.
+     *
+     * @return the files of the frames that were written
+     */
+    public List<File> render(int imgWidth, int imgHeight, double viewPlainWidth, File directory, Logger logger)
+            throws IOException, InterruptedException, ExecutionException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Couldn't create the directory " + directory);
+        cancelled = false;
+        List<File> files = new ArrayList<>();
+        Queue<Future<?>> writes = new ArrayDeque<>();
+        Semaphore pendingWrites = new Semaphore(MAX_PENDING_WRITES);
+        ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "frame-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.currentTimeMillis();
+        try {
+            applyFrame(0);
+            scene.buildAccelerationStructures(logger);
+            for (int frame = 0; frame < numFrames && !cancelled; ++frame) {
+                if (frame > 0)
+                    applyFrame(frame);
+                pendingWrites.acquire();
+                long frameStart = System.currentTimeMillis();
+                BufferedImage img = scene.render(imgWidth, imgHeight, viewPlainWidth, logger);
+                if (cancelled) {
+                    pendingWrites.release();
+                    break;
+                }
+                logger.log("Rendered frame " + (frame + 1) + "/" + numFrames + " in " +
+                        (System.currentTimeMillis() - frameStart) + "ms");
+
+                File file = new File(directory, String.format(filePattern, frame));
+                files.add(file);
+                int number = frame;
+                writes.add(writer.submit(() -> {
+                    try {
+                        ImageIO.write(img, "png", file);
+                        if (listener != null)
+                            listener.frameWritten(number, file);
+                        return null;
+                    } finally {
+                        pendingWrites.release();
+                    }
+                }));
+                // fail fast on a frame that couldn't be written
+                while (!writes.isEmpty() && writes.peek().isDone())
+                    awaitWrite(writes.poll());
+            }
+            while (!writes.isEmpty())
+                awaitWrite(writes.poll());
+        } finally {
+            writer.shutdownNow();
+            scene.releaseAccelerationStructures();
+        }
+        logger.log("Rendered " + files.size() + " frames of " + scene.getName() + " in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return files;
+    }
+
+    private static void awaitWrite(Future<?> write) throws IOException, InterruptedException, ExecutionException {
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the animation after the frame being rendered, which is cancelled as well.
+     */
+    public void cancel() {
+        cancelled = true;
+        scene.cancelRender();
+    }
+
+    //MARK: interpolation
+    /**
+     * Interpolates the parameters of spheres, axis aligned boxes and plains. Other shapes, and shapes of
+     * different classes, jump from one key to the next.
+     */
+    public static Shape interpolate(Shape from, Shape to, double t) {
+        if (from.getClass() != to.getClass())
+            return from;
+        if (from.getClass() == Sphere.class) {
+            Sphere a = (Sphere) from, b = (Sphere) to;
+            return new Sphere(lerp(a.getCenter(), b.getCenter(), t), lerp(a.getRadius(), b.getRadius(), t));
+        }
+        if (from.getClass() == AxisAlignedBox.class) {
+            AxisAlignedBox a = (AxisAlignedBox) from, b = (AxisAlignedBox) to;
+            return new AxisAlignedBox(lerp(a.getMinPoint(), b.getMinPoint(), t),
+                    lerp(a.getMaxPoint(), b.getMaxPoint(), t)).initName(a.getName());
+        }
+        if (from.getClass() == Plain.class) {
+            double[] a = ((Plain) from).getCoefficients(), b = ((Plain) to).getCoefficients();
+            return new Plain(lerp(a[0], b[0], t), lerp(a[1], b[1], t), lerp(a[2], b[2], t), lerp(a[3], b[3], t));
+        }
+        return from;
+    }
+
+    static double lerp(double from, double to, double t) {
+        return from + (to - from) * t;
+    }
+
+    static Point lerp(Point from, Point to, double t) {
+        return new Point(lerp(from.x, to.x, t), lerp(from.y, to.y, t), lerp(from.z, to.z, t));
+    }
+}
@@ -0,0 +1,69 @@
+package edu.cg.scene.animation;
+
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.Scene;
+
+/**
+ * The parameters of the camera of a scene (see Scene.initCamera), as a value that can be keyframed.
+ */
+public class CameraPose {
+    private final Point eyePosition;
+    private final Vec towardsVec;
+    private final Vec upVec;
+    private final double distanceToPlain;
+
+    public CameraPose(Point eyePosition, Vec towardsVec, Vec upVec, double distanceToPlain) {
+        this.eyePosition = eyePosition;
+        this.towardsVec = towardsVec;
+        this.upVec = upVec;
+        this.distanceToPlain = distanceToPlain;
+    }
+
+    public Point getEyePosition() {
+        return eyePosition;
+    }
+
+    public Vec getTowardsVec() {
+        return towardsVec;
+    }
+
+    public Vec getUpVec() {
+        return upVec;
+    }
+
+    public double getDistanceToPlain() {
+        return distanceToPlain;
+    }
+
+    public void applyTo(Scene scene) {
+        scene.initCamera(eyePosition, towardsVec, upVec, distanceToPlain);
+    }
+
+    /**
+     * Moves the eye and the distance to the plain linearly, and turns the directions along the shorter arc
+     * between them (a normalized linear interpolation).
+     */
+    public static CameraPose interpolate(CameraPose from, CameraPose to, double t) {
+        return new CameraPose(
+                Animation.lerp(from.eyePosition, to.eyePosition, t),
+                turn(from.towardsVec, to.towardsVec, t),
+                turn(from.upVec, to.upVec, t),
+                Animation.lerp(from.distanceToPlain, to.distanceToPlain, t));
+    }
+
+    private static Vec turn(Vec from, Vec to, double t) {
+        Vec u = from.normalize(), v = to.normalize();
+        Vec ans = u.mult(1 - t).add(v.mult(t));
+        // opposite directions have no shorter arc
+        if (ans.norm() < 1e-6)
+            return t < 0.5 ? from : to;
+        return ans.normalize();
+    }
+
+    @Override
+    public String toString() {
+        return "Camera: eye " + eyePosition + ", towards " + towardsVec + ", up " + upVec + ", distance " +
+                distanceToPlain;
+    }
+}
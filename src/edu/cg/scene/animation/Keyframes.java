@@ -0,0 +1,59 @@
+package edu.cg.scene.animation;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The values of an animated parameter at some frames, its keys. Between two keys the value is interpolated,
+ * before the first key and after the last one the value of that key is held.
+ * A key holds the same object over the frames it covers, so unchanged values can be detected by identity.
+ *
+ * @param <T> - the type of the parameter
+ */
+public class Keyframes<T> {
+    public interface Interpolator<T> {
+        /**
+         * @param t - the position between the keys, in (0, 1)
+         */
+        T interpolate(T from, T to, double t);
+    }
+
+    private final Interpolator<T> interpolator;
+    private final TreeMap<Integer, T> keys = new TreeMap<>();
+
+    public Keyframes(Interpolator<T> interpolator) {
+        this.interpolator = interpolator;
+    }
+
+    /**
+     * @return keyframes that jump from the value of a key to the value of the next key at its frame
+     */
+    public static <T> Keyframes<T> step() {
+        return new Keyframes<>((from, to, t) -> from);
+    }
+
+    public Keyframes<T> addKey(int frame, T value) {
+        if (frame < 0)
+            throw new IllegalArgumentException("Negative frame: " + frame);
+        if (value == null)
+            throw new IllegalArgumentException("The value of frame " + frame + " is null");
+        keys.put(frame, value);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public T valueAt(int frame) {
+        if (keys.isEmpty())
+            throw new IllegalStateException("No keys");
+        Map.Entry<Integer, T> before = keys.floorEntry(frame), after = keys.ceilingEntry(frame);
+        if (before == null)
+            return after.getValue();
+        if (after == null || before.getKey() == frame || before.getValue() == after.getValue())
+            return before.getValue();
+        double t = (frame - before.getKey()) / (double) (after.getKey() - before.getKey());
+        return interpolator.interpolate(before.getValue(), after.getValue(), t);
+    }
+}
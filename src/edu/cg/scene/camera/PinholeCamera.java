@@ -7,7 +7,7 @@ import edu.cg.algebra.Vec;
 
 public class PinholeCamera {
 	private Point cameraPosition;
-	private Point center;
+	private transient Point center; //derived from the position, towards vector and distance
 	private Vec towardsVec;
 	private Vec rightVec;
     private Vec upVec;
@@ -30,8 +30,36 @@ public class PinholeCamera {
 		this.rightVec = towardsVec.cross(upVec).normalize();
 		this.upVec = rightVec.cross(towardsVec).normalize();
 		this.distanceToPlain = distanceToPlain;
-		this.center = new Ray(cameraPosition, towardsVec).add(distanceToPlain);
+		this.center = new Ray(cameraPosition, this.towardsVec).add(distanceToPlain);
 	}
+	/**
+	 * @return a copy of the camera, for a render: its resolution can be initialized without affecting this
+	 *         camera, and its center point is computed once so the render threads only read it.
+	 */
+	public PinholeCamera copy() {
+		PinholeCamera ans = new PinholeCamera();
+		ans.cameraPosition = cameraPosition;
+		ans.towardsVec = towardsVec;
+		ans.rightVec = rightVec;
+		ans.upVec = upVec;
+		ans.distanceToPlain = distanceToPlain;
+		ans.center = center();
+		ans.height = height;
+		ans.width = width;
+		ans.viewPlainWidth = viewPlainWidth;
+		return ans;
+	}
+	
+	private PinholeCamera() {
+	}
+	
+	/**
+	 * @return the center point of the image-plain. Cameras read by Gson don't have it yet.
+	 */
+	private Point center() {
+		return center != null ? center : new Ray(cameraPosition, towardsVec).add(distanceToPlain);
+	}
+	
 	/**
 	 * Initializes the resolution and width of the image.
 	 * @param height - the number of pixels in the y direction.
@@ -51,14 +79,24 @@ public class PinholeCamera {
 	 * @return the middle point of the pixel (x,y) in the model coordinates.
 	 */
 	public Point transform(int x, int y) {
+		return transform((double) x, (double) y);
+	}
+
+	/**
+	 * Transforms from (sub) pixel coordinates to the corresponding point in model coordinates.
+	 * Integer coordinates are the middle points of the pixels, so the pixel (x,y) covers [x-0.5, x+0.5)x[y-0.5, y+0.5).
+	 * @param x - the x coordinate on the image.
+	 * @param y - the y coordinate on the image.
+	 * @return the point (x,y) in the model coordinates.
+	 */
+	public Point transform(double x, double y) {
 
 	    double ratio = viewPlainWidth/width;
-	    double rightCalc = (double) (x - width/2) * ratio;
-	    double upCalc = (double) (y - height/2) * -ratio;
+	    double rightCalc = (x - width/2) * ratio;
+	    double upCalc = (y - height/2) * -ratio;
         Vec up = upVec.mult(upCalc);
         Vec right = rightVec.mult(rightCalc);
-        this.center = new Ray(cameraPosition, towardsVec).add(distanceToPlain);
-        return center.add(up).add(right);
+        return center().add(up).add(right);
 	}
 	
 	/**
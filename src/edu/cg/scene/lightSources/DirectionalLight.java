@@ -3,7 +3,6 @@ package edu.cg.scene.lightSources;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
-import edu.cg.scene.objects.Surface;
 
 public class DirectionalLight extends Light {
     private Vec direction = new Vec(0, -1, -1);
@@ -31,8 +30,8 @@ public class DirectionalLight extends Light {
     }
 
     @Override
-    public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-        return surface.intersect(rayToLight) != null;
+    public double distance(Point fromPoint) {
+        return Double.POSITIVE_INFINITY;
     }
 
     @Override
@@ -1,9 +1,9 @@
 package edu.cg.scene.lightSources;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
-import edu.cg.scene.objects.Surface;
 
 public abstract class Light {
 	protected Vec intensity = new Vec(1, 1, 1); //white color
@@ -27,13 +27,12 @@ public abstract class Light {
 	public abstract Ray rayToLight(Point fromPoint);
 	
 	/**
-	 * Checks if the given surface occludes the light-source. The surface occludes the light source
-	 * if the given ray first intersects the surface before reaching the light source.
-	 * @param surface -The given surface
-	 * @param rayToLight - the ray to the light source
-	 * @return true if the ray is occluded by the surface..
+	 * Returns the distance from the given point to the light source.
+	 * Surfaces which are hit by the ray to the light beyond this distance can't occlude it.
+	 * @param fromPoint - The given point
+	 * @return the distance to the light source (infinity for a light source at infinity).
 	 */
-	public abstract boolean isOccludedBy(Surface surface, Ray rayToLight);
+	public abstract double distance(Point fromPoint);
 	
 	/**
 	 * Returns the light intensity at the specified point.
@@ -42,4 +41,30 @@ public abstract class Light {
 	 * @return A vector representing the light intensity (the r,g and b channels). 
 	 */
 	public abstract Vec intensity(Point hittingPoint, Ray rayToLight);
+	
+	/**
+	 * Returns an upper bound of every channel of the light intensity at the specified point, whatever occludes it.
+	 * Lights whose bound is low enough are skipped with their shadow ray (see LightIndex).
+	 * @param hittingPoint - The given point
+	 * @return the bound, or infinity if the light can't tell.
+	 */
+	public double maxIntensityAt(Point hittingPoint) {
+		return Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Returns an upper bound of every channel of the light intensity at all the points of the given box.
+	 * @param box - The given box
+	 * @return the bound, or infinity if the light can't tell.
+	 */
+	public double maxIntensityIn(BoundingBox box) {
+		return Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * @return the largest magnitude of the channels of the intensity of the light.
+	 */
+	protected double maxIntensity() {
+		return Math.max(Math.abs(intensity.x), Math.max(Math.abs(intensity.y), Math.abs(intensity.z)));
+	}
 }
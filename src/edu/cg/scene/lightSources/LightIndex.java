@@ -0,0 +1,178 @@
+package edu.cg.scene.lightSources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Ops;
+import edu.cg.algebra.Point;
+import edu.cg.algebra.Vec;
+import edu.cg.scene.objects.Surface;
+
+/**
+ * Finds the lights that are worth a shadow ray at a hit point, so that the many small lights of a large scene are
+ * only shaded near their own position.
+ * <p>
+ * The lights skipped at a point may change its color by at most the cutoff in every channel, half of an 8-bit color
+ * step by default. The bound is per shading point, a pixel also gets the errors of the points its reflected and
+ * refracted rays hit, weighted by the reflection and refraction intensities along the way. A light adds at most
+ * its intensity times Kd + |Ks| of the surface to a color (the diffuse and specular factors are at most 1), so the
+ * lights skipped at a point may have a total intensity of the cutoff divided by the largest Kd + |Ks| of the scene,
+ * their budget. The bounds of the intensities come from the decay of the lights and the cones of the spotlights
+ * (see Light.maxIntensityAt).
+ * <p>
+ * The surfaces are covered by a uniform grid. Every cell drops the lights that are dim all over it, dimmest first,
+ * while their total stays within half of the budget, and the rest of the budget is left to skip the lights of the
+ * cell that are dim at the hit point itself. The lights of a cell are kept in the order of the scene, so that the
+ * colors of the remaining lights are summed in the same order as without the index.
+ */
+public class LightIndex {
+    public static final double DEFAULT_CUTOFF = 0.5 / 255;
+    private static final int MAX_CELLS = 4096;
+    private static final int MAX_RESOLUTION = 32; //cells per axis
+
+    private final Light[] lights;
+    private final double budget;
+    private final int[] resolution = { 0, 0, 0 };
+    private final double[] origin = new double[3];
+    private final double[] cellSize = new double[3];
+    private final Cell[] cells;
+    private final Cell everywhere; // all the lights with the whole budget, for the points outside the grid
+
+    /**
+     * @param cutoff - the change of a color channel the skipped lights may make, 0 never skips lights
+     */
+    public LightIndex(List<Light> lights, List<Surface> surfaces, double cutoff) {
+        this.lights = lights.toArray(new Light[0]);
+        double maxReflectance = 0;
+        BoundingBox box = BoundingBox.empty();
+        for (Surface surface : surfaces) {
+            maxReflectance = Math.max(maxReflectance, reflectance(surface.Kd(), surface.Ks()));
+            BoundingBox b = surface.bounds();
+            if (b.isFinite())
+                box = box.union(b);
+        }
+        budget = cutoff > 0 && maxReflectance > 0 ? cutoff / maxReflectance : 0;
+        everywhere = new Cell(this.lights, budget);
+        if (budget == 0 || box.isEmpty()) {
+            cells = new Cell[0];
+            return;
+        }
+
+        double volume = 1;
+        for (int axis = 0; axis < 3; ++axis)
+            volume *= Math.max(box.extent(axis), Double.MIN_VALUE);
+        double cellsPerUnit = Math.cbrt(MAX_CELLS / volume);
+        for (int axis = 0; axis < 3; ++axis) {
+            resolution[axis] = (int) Math.max(1, Math.min(MAX_RESOLUTION, Math.round(box.extent(axis) * cellsPerUnit)));
+            origin[axis] = box.min(axis);
+            cellSize[axis] = box.extent(axis) / resolution[axis];
+        }
+
+        int numCells = resolution[0] * resolution[1] * resolution[2];
+        cells = new Cell[numCells];
+        double[] bounds = new double[this.lights.length];
+        Integer[] dimmest = new Integer[this.lights.length];
+        for (int z = 0; z < resolution[2]; ++z)
+            for (int y = 0; y < resolution[1]; ++y)
+                for (int x = 0; x < resolution[0]; ++x) {
+                    // padded, so that the points rounded into the cell are within its box
+                    BoundingBox cellBox = new BoundingBox(origin[0] + x * cellSize[0], origin[1] + y * cellSize[1],
+                            origin[2] + z * cellSize[2], origin[0] + (x + 1) * cellSize[0],
+                            origin[1] + (y + 1) * cellSize[1], origin[2] + (z + 1) * cellSize[2]).pad(Ops.epsilon);
+                    for (int i = 0; i < bounds.length; ++i) {
+                        bounds[i] = this.lights[i].maxIntensityIn(cellBox);
+                        dimmest[i] = i;
+                    }
+                    Arrays.sort(dimmest, (i, j) -> Double.compare(bounds[i], bounds[j]));
+                    boolean[] dropped = new boolean[bounds.length];
+                    double total = 0;
+                    for (int i : dimmest) {
+                        if (total + bounds[i] > budget / 2)
+                            break;
+                        total += bounds[i];
+                        dropped[i] = true;
+                    }
+                    List<Light> kept = new ArrayList<>();
+                    for (int i = 0; i < bounds.length; ++i)
+                        if (!dropped[i])
+                            kept.add(this.lights[i]);
+                    cells[cell(x, y, z)] = new Cell(kept.toArray(new Light[0]), budget - total);
+                }
+    }
+
+    private static double reflectance(Vec Kd, Vec Ks) {
+        return Math.max(Kd.x + Math.abs(Ks.x), Math.max(Kd.y + Math.abs(Ks.y), Kd.z + Math.abs(Ks.z)));
+    }
+
+    private int cell(int x, int y, int z) {
+        return (z * resolution[1] + y) * resolution[0] + x;
+    }
+
+    /**
+     * @return the cell of the point, with the lights that may be worth a shadow ray there
+     */
+    public Cell cellAt(Point p) {
+        if (cells.length == 0)
+            return everywhere;
+        int x = index(p.x, 0), y = index(p.y, 1), z = index(p.z, 2);
+        if (x < 0 || y < 0 || z < 0)
+            return everywhere;
+        return cells[cell(x, y, z)];
+    }
+
+    /**
+     * @return the index along the axis of the cells holding the coordinate, -1 outside the grid
+     */
+    private int index(double coordinate, int axis) {
+        double offset = coordinate - origin[axis];
+        if (offset < 0 || offset > resolution[axis] * cellSize[axis])
+            return -1;
+        return cellSize[axis] > 0 ? Math.min(resolution[axis] - 1, (int) (offset / cellSize[axis])) : 0;
+    }
+
+    /**
+     * @return true if lights may be skipped at all
+     */
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    public String describe() {
+        long kept = 0;
+        for (Cell c : cells)
+            kept += c.lights.length;
+        return "Indexed " + lights.length + " lights in a grid of " + resolution[0] + "x" + resolution[1] + "x" +
+                resolution[2] + " cells, " + (kept / Math.max(1, cells.length)) + " of them per cell on average";
+    }
+
+    /**
+     * The lights of a cell of the grid, and the budget left to skip them at its points.
+     */
+    public static class Cell {
+        private final Light[] lights;
+        private final double budget;
+
+        private Cell(Light[] lights, double budget) {
+            this.lights = lights;
+            this.budget = budget;
+        }
+
+        /**
+         * @return the lights that may be worth a shadow ray in the cell, in the order of the scene. The array is
+         *         shared, it must not be modified.
+         */
+        public Light[] lights() {
+            return lights;
+        }
+
+        /**
+         * @return the total intensity of the lights that may still be skipped at a point of the cell, 0 if lights
+         *         are never skipped
+         */
+        public double budget() {
+            return budget;
+        }
+    }
+}
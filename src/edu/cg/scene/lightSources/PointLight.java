@@ -1,10 +1,9 @@
 package edu.cg.scene.lightSources;
 
-import edu.cg.algebra.Hit;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
-import edu.cg.scene.objects.Surface;
 
 public class PointLight extends Light {
     protected Point position;
@@ -38,23 +37,44 @@ public class PointLight extends Light {
     }
 
     @Override
-    public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-        Hit hit = surface.intersect(rayToLight);
-        // in case there is no intersection
-        if (hit == null) return false;
-        Point hittingPoint = rayToLight.getHittingPoint(hit);
-        Point sourceOfRayToLight = rayToLight.source();
-        // check if the surface is behind the PointLight
-        return sourceOfRayToLight.distSqr(position) > sourceOfRayToLight.distSqr(hittingPoint);
+    public double distance(Point fromPoint) {
+        double dx = fromPoint.x - position.x, dy = fromPoint.y - position.y, dz = fromPoint.z - position.z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
     }
 
     @Override
     public Vec intensity(Point hittingPoint, Ray rayToLight) {
-        double d = hittingPoint.dist(position);
-        double denominator = kc + kl * d + kq * Math.pow(d, 2);
+        double d = distance(hittingPoint);
+        double denominator = kc + kl * d + kq * d * d;
         return intensity.mult(1.0 / denominator);
     }
 
+    @Override
+    public double maxIntensityAt(Point hittingPoint) {
+        return maxIntensityAt(distance(hittingPoint));
+    }
+
+    /**
+     * The bound at the point of the box closest to the light.
+     */
+    @Override
+    public double maxIntensityIn(BoundingBox box) {
+        double dx = Math.max(0, Math.max(box.minX - position.x, position.x - box.maxX));
+        double dy = Math.max(0, Math.max(box.minY - position.y, position.y - box.maxY));
+        double dz = Math.max(0, Math.max(box.minZ - position.z, position.z - box.maxZ));
+        return maxIntensityAt(Math.sqrt(dx * dx + dy * dy + dz * dz));
+    }
+
+    /**
+     * The decay only grows with the distance if its factors aren't negative, otherwise there is no bound.
+     */
+    protected double maxIntensityAt(double d) {
+        double denominator = kc + kl * d + kq * d * d;
+        if (kq < 0 || kl < 0 || kc < 0 || denominator <= 0)
+            return Double.POSITIVE_INFINITY;
+        return maxIntensity() / denominator;
+    }
+
     public PointLight initPosition(Point position) {
         this.position = position;
         return this;
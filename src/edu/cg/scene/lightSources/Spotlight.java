@@ -1,10 +1,10 @@
 package edu.cg.scene.lightSources;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
-import edu.cg.scene.objects.Surface;
 
 public class Spotlight extends PointLight {
     private Vec direction;
@@ -40,20 +40,44 @@ public class Spotlight extends PointLight {
 
     @Override
     public Vec intensity(Point hittingPoint, Ray rayToLight) {
-        Vec D = direction.neg();
-        Vec V = rayToLight.direction().normalize();
-        double dotVD = D.dot(V);
+        // the ray's direction is normalized, D.V where D = -direction
+        double dotVD = -direction.dot(rayToLight.direction());
 
         if (dotVD < Ops.epsilon) return new Vec(0, 0, 0);
 
-        return super.intensity(hittingPoint, rayToLight).mult(dotVD);
+        return super.intensity(hittingPoint, rayToLight).multInPlace(dotVD);
     }
 
+    /**
+     * Besides its decay, the intensity of a spotlight falls with the cosine of the angle to its direction.
+     */
     @Override
-    public boolean isOccludedBy(Surface surface, Ray rayToLight) {
-        Vec V = rayToLight.direction().normalize().neg();
-        Vec D = direction;
-        if (V.dot(D) < Ops.epsilon) return true;
-        return super.isOccludedBy(surface, rayToLight);
+    public double maxIntensityAt(Point hittingPoint) {
+        double d = distance(hittingPoint);
+        if (d == 0)
+            return Double.POSITIVE_INFINITY;
+        // D.V as computed by intensity, where V is the direction to the light
+        double dotVD = (direction.x * (hittingPoint.x - position.x) + direction.y * (hittingPoint.y - position.y) +
+                direction.z * (hittingPoint.z - position.z)) / d;
+        if (dotVD < Ops.epsilon) return 0;
+        return maxIntensityAt(d) * dotVD;
+    }
+
+    /**
+     * Boxes behind the spotlight get none of it. Otherwise the cosine is at most the length of the direction,
+     * which may not be a unit vector when it wasn't set by initDirection.
+     */
+    @Override
+    public double maxIntensityIn(BoundingBox box) {
+        boolean behind = true;
+        for (int corner = 0; corner < 8 && behind; ++corner) {
+            double x = (corner & 1) == 0 ? box.minX : box.maxX;
+            double y = (corner & 2) == 0 ? box.minY : box.maxY;
+            double z = (corner & 4) == 0 ? box.minZ : box.maxZ;
+            behind = direction.x * (x - position.x) + direction.y * (y - position.y) +
+                    direction.z * (z - position.z) <= 0;
+        }
+        if (behind) return 0;
+        return super.maxIntensityIn(box) * Math.max(1, direction.norm());
     }
 }
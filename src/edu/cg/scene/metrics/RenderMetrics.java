@@ -0,0 +1,217 @@
+package edu.cg.scene.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The counters and timings of a single render, filled by the scene when the render ends.
+ * The intersection tests and the intersection time are only collected when the scene was asked to
+ * (see Scene.initCollectMetrics), since they require a clock read per query.
+ */
+public class RenderMetrics {
+    private String sceneName = "";
+    private int width;
+    private int height;
+    private boolean cancelled = false;
+    private long renderNanos;
+    private long primaryRays;
+    private long reflectionRays;
+    private long refractionRays;
+    private long shadowRays;
+    private long terminatedRays;
+    private long tiles;
+    private Map<String, Long> busyNanos = Collections.emptyMap(); //per render thread
+    private boolean detailed = false;
+    private Map<String, Long> intersectionTests = Collections.emptyMap(); //per shape type
+    private long intersectionNanos;
+
+    //MARK: initializers
+    public RenderMetrics initScene(String sceneName, int width, int height) {
+        this.sceneName = sceneName;
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    public RenderMetrics initCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    public RenderMetrics initRenderNanos(long renderNanos) {
+        this.renderNanos = renderNanos;
+        return this;
+    }
+
+    public RenderMetrics initRays(long primaryRays, long reflectionRays, long refractionRays, long shadowRays,
+            long terminatedRays) {
+        this.primaryRays = primaryRays;
+        this.reflectionRays = reflectionRays;
+        this.refractionRays = refractionRays;
+        this.shadowRays = shadowRays;
+        this.terminatedRays = terminatedRays;
+        return this;
+    }
+
+    public RenderMetrics initTiles(long tiles, Map<String, Long> busyNanos) {
+        this.tiles = tiles;
+        this.busyNanos = Collections.unmodifiableMap(new TreeMap<>(busyNanos));
+        return this;
+    }
+
+    /**
+     * @param intersectionTests - the number of tests per shape type
+     * @param intersectionNanos - the time all the threads spent in closest hit and shadow queries
+     */
+    public RenderMetrics initIntersections(Map<String, Long> intersectionTests, long intersectionNanos) {
+        this.detailed = true;
+        this.intersectionTests = Collections.unmodifiableMap(new LinkedHashMap<>(intersectionTests));
+        this.intersectionNanos = intersectionNanos;
+        return this;
+    }
+
+    //MARK: getters
+    public String getSceneName() {
+        return sceneName;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the wall clock time of the render passes (without building the acceleration structures)
+     */
+    public long getRenderNanos() {
+        return renderNanos;
+    }
+
+    public long getPrimaryRays() {
+        return primaryRays;
+    }
+
+    public long getReflectionRays() {
+        return reflectionRays;
+    }
+
+    public long getRefractionRays() {
+        return refractionRays;
+    }
+
+    public long getShadowRays() {
+        return shadowRays;
+    }
+
+    public long getTerminatedRays() {
+        return terminatedRays;
+    }
+
+    public long getTiles() {
+        return tiles;
+    }
+
+    public double getTilesPerSecond() {
+        return renderNanos == 0 ? 0 : tiles * 1e9 / renderNanos;
+    }
+
+    /**
+     * @return the time every render thread spent rendering tiles, by thread name
+     */
+    public Map<String, Long> getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * @return the fraction of the render time every render thread spent rendering tiles, by thread name
+     */
+    public Map<String, Double> getThreadUtilisation() {
+        Map<String, Double> ans = new TreeMap<>();
+        busyNanos.forEach((thread, nanos) -> ans.put(thread, renderNanos == 0 ? 0 : (double) nanos / renderNanos));
+        return ans;
+    }
+
+    public long getBusyNanosTotal() {
+        long ans = 0;
+        for (long nanos : busyNanos.values())
+            ans += nanos;
+        return ans;
+    }
+
+    /**
+     * @return true if the intersection tests and times were collected
+     */
+    public boolean isDetailed() {
+        return detailed;
+    }
+
+    public Map<String, Long> getIntersectionTests() {
+        return intersectionTests;
+    }
+
+    public long getIntersectionTestsTotal() {
+        long ans = 0;
+        for (long tests : intersectionTests.values())
+            ans += tests;
+        return ans;
+    }
+
+    public long getIntersectionNanos() {
+        return intersectionNanos;
+    }
+
+    /**
+     * @return the time the threads spent rendering tiles outside of intersection queries (shading, camera rays
+     * and sampling), 0 when the intersection times were not collected
+     */
+    public long getShadingNanos() {
+        if (!detailed)
+            return 0;
+        return Math.max(0, getBusyNanosTotal() - intersectionNanos);
+    }
+
+    /**
+     * @return the fraction of the busy time spent in intersection queries, a scene is intersection bound when
+     * it is high and shading bound when it is low
+     */
+    public double getIntersectionFraction() {
+        long busy = getBusyNanosTotal();
+        return busy == 0 ? 0 : (double) intersectionNanos / busy;
+    }
+
+    @Override
+    public String toString() {
+        String endl = System.lineSeparator();
+        StringBuilder sb = new StringBuilder();
+        sb.append(sceneName).append(" ").append(width).append("x").append(height)
+                .append(cancelled ? " (cancelled)" : "").append(": ").append(millis(renderNanos)).append("ms, ")
+                .append(tiles).append(" tiles, ").append(String.format("%.1f", getTilesPerSecond()))
+                .append(" tiles/s").append(endl);
+        sb.append("Rays: ").append(primaryRays).append(" primary, ").append(reflectionRays).append(" reflection, ")
+                .append(refractionRays).append(" refraction, ").append(shadowRays).append(" shadow, ")
+                .append(terminatedRays).append(" terminated").append(endl);
+        sb.append("Thread utilisation:");
+        getThreadUtilisation().forEach((thread, u) -> sb.append(" ").append(thread)
+                .append(String.format("=%.0f%%", 100 * u)));
+        if (detailed) {
+            sb.append(endl).append("Intersection tests: ").append(intersectionTests).append(endl);
+            sb.append("Intersection ").append(millis(intersectionNanos)).append("ms, shading ")
+                    .append(millis(getShadingNanos())).append("ms (")
+                    .append(String.format("%.0f%%", 100 * getIntersectionFraction())).append(" intersection)");
+        }
+        return sb.toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,163 @@
+package edu.cg.scene.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects the metrics of all the renders of the JVM, exposes them through JMX and emits a JFR event
+ * (edu.cg.Render) per render when the runtime supports JFR.
+ * <p>
+ * The event (RenderEvent) is compiled apart from the rest of the sources, which target Java 8, by the jfr profile
+ * of the build, and is loaded by name, so it is only emitted when it was built and the runtime has JFR.
+ */
+public class RenderMonitor implements RenderMonitorMXBean {
+    public static final String OBJECT_NAME = "edu.cg:type=RenderMonitor";
+
+    private static final RenderMonitor INSTANCE = new RenderMonitor();
+    private static final MethodHandle COMMIT_EVENT = findRenderEvent(); //RenderEvent.commit, null without JFR
+
+    private final LongAdder renders = new LongAdder();
+    private final LongAdder primaryRays = new LongAdder();
+    private final LongAdder reflectionRays = new LongAdder();
+    private final LongAdder refractionRays = new LongAdder();
+    private final LongAdder shadowRays = new LongAdder();
+    private final LongAdder intersectionTests = new LongAdder();
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+    private volatile RenderMetrics last = null;
+
+    private RenderMonitor() {
+        // starting the platform MBean server takes several hundred milliseconds, it shouldn't delay the first render
+        Thread registration = new Thread(this::register, "RenderMonitor registration");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // the metrics are still available through getLast()
+        }
+    }
+
+    public static RenderMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    private static MethodHandle findRenderEvent() {
+        try {
+            Class<?> event = Class.forName(RenderMonitor.class.getPackage().getName() + ".RenderEvent");
+            return MethodHandles.lookup().findStatic(event, "commit",
+                    MethodType.methodType(void.class, RenderMetrics.class));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the metrics of a render that has ended.
+     */
+    public void record(RenderMetrics metrics) {
+        renders.increment();
+        primaryRays.add(metrics.getPrimaryRays());
+        reflectionRays.add(metrics.getReflectionRays());
+        refractionRays.add(metrics.getRefractionRays());
+        shadowRays.add(metrics.getShadowRays());
+        intersectionTests.add(metrics.getIntersectionTestsTotal());
+        tiles.add(metrics.getTiles());
+        renderNanos.add(metrics.getRenderNanos());
+        last = metrics;
+        if (COMMIT_EVENT != null) {
+            try {
+                COMMIT_EVENT.invokeExact(metrics);
+            } catch (Throwable e) {
+                // the metrics are still recorded without the event
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of the latest render, or null if nothing was rendered yet
+     */
+    public RenderMetrics getLast() {
+        return last;
+    }
+
+    //MARK: RenderMonitorMXBean
+    @Override
+    public long getRenders() {
+        return renders.sum();
+    }
+
+    @Override
+    public long getPrimaryRays() {
+        return primaryRays.sum();
+    }
+
+    @Override
+    public long getReflectionRays() {
+        return reflectionRays.sum();
+    }
+
+    @Override
+    public long getRefractionRays() {
+        return refractionRays.sum();
+    }
+
+    @Override
+    public long getShadowRays() {
+        return shadowRays.sum();
+    }
+
+    @Override
+    public long getIntersectionTests() {
+        return intersectionTests.sum();
+    }
+
+    @Override
+    public long getTiles() {
+        return tiles.sum();
+    }
+
+    @Override
+    public long getRenderMillis() {
+        return renderNanos.sum() / 1000000;
+    }
+
+    @Override
+    public String getLastSceneName() {
+        RenderMetrics metrics = last;
+        return metrics == null ? "" : metrics.getSceneName();
+    }
+
+    @Override
+    public long getLastRenderMillis() {
+        RenderMetrics metrics = last;
+        return metrics == null ? 0 : metrics.getRenderNanos() / 1000000;
+    }
+
+    @Override
+    public double getLastTilesPerSecond() {
+        RenderMetrics metrics = last;
+        return metrics == null ? 0 : metrics.getTilesPerSecond();
+    }
+
+    @Override
+    public double getLastIntersectionFraction() {
+        RenderMetrics metrics = last;
+        return metrics == null ? 0 : metrics.getIntersectionFraction();
+    }
+
+    @Override
+    public String getLastRenderSummary() {
+        RenderMetrics metrics = last;
+        return metrics == null ? "" : metrics.toString();
+    }
+}
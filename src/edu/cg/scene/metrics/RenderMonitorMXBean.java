@@ -0,0 +1,33 @@
+package edu.cg.scene.metrics;
+
+/**
+ * The JMX view of the renders of this JVM, registered as edu.cg:type=RenderMonitor.
+ * Counters are cumulative over all the renders, the "last" attributes describe the latest render.
+ */
+public interface RenderMonitorMXBean {
+    long getRenders();
+
+    long getPrimaryRays();
+
+    long getReflectionRays();
+
+    long getRefractionRays();
+
+    long getShadowRays();
+
+    long getIntersectionTests();
+
+    long getTiles();
+
+    long getRenderMillis();
+
+    String getLastSceneName();
+
+    long getLastRenderMillis();
+
+    double getLastTilesPerSecond();
+
+    double getLastIntersectionFraction();
+
+    String getLastRenderSummary();
+}
@@ -57,131 +57,123 @@ public class AxisAlignedBox extends Shape {
         return this;
     }
 
-    @Override
-    public Hit intersect(Ray ray) {
-
-        IntersectingT t = new IntersectingT(ray.source(), ray.direction());
-        Double minT = t.getMinT();
-        if (minT.isNaN()) return null;
+    public AxisAlignedBox initName(String name) {
+        this.name = name;
+        return this;
+    }
 
-        boolean isWithin = t.getIsWithin();
-        Vec normal = t.getNormal();
-        if (isWithin) {
-            normal = normal.neg();
-        }
+    public String getName() {
+        return name;
+    }
 
-        return new Hit(minT, normal).setIsWithin(isWithin);
+    public Point getMinPoint() {
+        return new Point(minPoint.x, minPoint.y, minPoint.z);
     }
 
-    /**
-     * Class that receives a point and a vector and returns the  vectors intersecting parameter t
-     * with an axis aligned box
-     */
-    public class IntersectingT {
-        private Point start;
-        private Vec dir;
-        private double minT;
-        private double maxT;
-        private boolean isWithin;
-
-        public IntersectingT(Point start, Vec dir) {
-            this.start = start;
-            this.dir = dir;
-            minT = calcMinT();
-            isWithin = checkIsWithin();
-        }
+    public Point getMaxPoint() {
+        return new Point(maxPoint.x, maxPoint.y, maxPoint.z);
+    }
 
-        public double calcMinT() {
-            double[] startPoint = start.asArray();
-            double[] direction = dir.asArray();
-            double[] minPointArr = minPoint.asArray();
-            double[] maxPointArr = maxPoint.asArray();
-            minT = -Ops.infinity;
-            maxT = Ops.infinity;
+    @Override
+    public BoundingBox bounds() {
+        return new BoundingBox(minPoint, maxPoint);
+    }
 
-            for (int i = 0; i < 3; i++) {
-                if (Math.abs(direction[i]) <= Ops.epsilon) {
-                    if (minPointArr[i] > startPoint[i] || startPoint[i] > maxPointArr[i]) {
-                        return Double.NaN;
-                    }
-                }
+    @Override
+    public Hit intersect(Ray ray) {
+        double t = intersectT(ray);
+        return t == NO_HIT ? null : hitAt(ray, t);
+    }
 
-                double tempT1 = calcT(minPointArr[i], startPoint[i], direction[i]);
-                double tempT2 = calcT(maxPointArr[i], startPoint[i], direction[i]);
-                double tempMin = Math.min(tempT1, tempT2);
-                double tempMax = Math.max(tempT1, tempT2);
+    @Override
+    public boolean occludes(Ray ray, double maxT) {
+        return intersectT(ray) < maxT;
+    }
 
-                if (tempMin > minT) {
-                    minT = tempMin;
-                }
+    @Override
+    public double intersectT(Ray ray) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double near = -Ops.infinity, far = Ops.infinity;
+
+        for (int i = 0; i < 3; i++) {
+            double start = coordinate(p, i);
+            double direction = coordinate(v, i);
+            double min = coordinate(minPoint, i);
+            double max = coordinate(maxPoint, i);
+
+            if (Math.abs(direction) <= Ops.epsilon && (min > start || start > max))
+                return NO_HIT;
+
+            double t1 = (min - start) / direction;
+            double t2 = (max - start) / direction;
+            double tempMin = Math.min(t1, t2);
+            double tempMax = Math.max(t1, t2);
+            if (tempMin > near) near = tempMin;
+            if (tempMax < far) far = tempMax;
+            if ((near > far) || (far < Ops.epsilon)) return NO_HIT;
+        }
 
-                if (tempMax < maxT) {
-                    maxT = tempMax;
-                }
+        // a ray that starts inside the box leaves it at the far side
+        return near < Ops.epsilon ? far : near;
+    }
 
-                if ((minT > maxT) || (maxT < Ops.epsilon)) return Double.NaN;
+    @Override
+    public Hit hitAt(Ray ray, double t) {
+        boolean isWithin = isWithin(ray);
+        Vec normal = normalAt(ray.source().add(t, ray.direction()));
+        if (isWithin && normal != null) {
+            normal = normal.neg();
+        }
 
-            }
+        return new Hit(t, normal).setIsWithin(isWithin);
+    }
 
-            return minT;
+    /**
+     * Checks if a ray that hits the box starts within it, i.e. enters the box behind its source
+     */
+    private boolean isWithin(Ray ray) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double near = -Ops.infinity;
+
+        for (int i = 0; i < 3; i++) {
+            double start = coordinate(p, i);
+            double direction = coordinate(v, i);
+            double tempMin = Math.min((coordinate(minPoint, i) - start) / direction,
+                    (coordinate(maxPoint, i) - start) / direction);
+            if (tempMin > near) near = tempMin;
         }
 
-        /**
-         * @return - minT, the intersecting parameter with the box
-         */
-        public double getMinT() {
-            return minT;
-        }
+        return near < Ops.epsilon;
+    }
 
-        /**
-         * @return true if the point is within the box
-         */
-        public boolean getIsWithin() {
-            return isWithin;
+    /**
+     * Checks which face of the box the point lies on and returns the normal to the face
+     */
+    private Vec normalAt(Point p) {
+        if (Math.abs(p.z - minPoint.z) < Ops.epsilon) {
+            return new Vec(0.0, 0.0, -1.0);
+        } else if (Math.abs(p.z - maxPoint.z) < Ops.epsilon) {
+            return new Vec(0.0, 0.0, 1.0);
+        } else if (Math.abs(p.y - minPoint.y) < Ops.epsilon) {
+            return new Vec(0.0, -1.0, 0.0);
+        } else if (Math.abs(p.y - maxPoint.y) < Ops.epsilon) {
+            return new Vec(0.0, 1.0, 0.0);
+        } else if (Math.abs(p.x - minPoint.x) < Ops.epsilon) {
+            return new Vec(-1.0, 0.0, 0.0);
+        } else if (Math.abs(p.x - maxPoint.x) < Ops.epsilon) {
+            return new Vec(1.0, 0.0, 0.0);
         }
 
-        /**
-         * Checks which face of the box is intersected and returns the normal to the face
-         *
-         * @return
-         */
-        public Vec getNormal() {
-            Point p = start.add(minT, dir);
-            Vec norm = null;
-
-            if (Math.abs(p.z - minPoint.z) < Ops.epsilon) {
-                norm = new Vec(0.0, 0.0, -1.0);
-            } else if (Math.abs(p.z - maxPoint.z) < Ops.epsilon) {
-                norm = new Vec(0.0, 0.0, 1.0);
-            } else if (Math.abs(p.y - minPoint.y) < Ops.epsilon) {
-                norm = new Vec(0.0, -1.0, 0.0);
-            } else if (Math.abs(p.y - maxPoint.y) < Ops.epsilon) {
-                norm = new Vec(0.0, 1.0, 0.0);
-            } else if (Math.abs(p.x - minPoint.x) < Ops.epsilon) {
-                norm = new Vec(-1.0, 0.0, 0.0);
-            } else if (Math.abs(p.x - maxPoint.x) < Ops.epsilon) {
-                norm = new Vec(1.0, 0.0, 0.0);
-            }
-
-            return norm;
-        }
+        return null;
+    }
 
-        /**
-         * Checks if the point lies within the box, if so replaces minT with maxT
-         *
-         * @return true if the point is within the box
-         */
-        private boolean checkIsWithin() {
-            if (minT < Ops.epsilon) {
-                minT = maxT;
-                isWithin = true;
-            }
-
-            return isWithin;
-        }
+    private static double coordinate(Point p, int i) {
+        return i == 0 ? p.x : (i == 1 ? p.y : p.z);
+    }
 
-        private double calcT(double box, double start, double direction) {
-            return (box - start) / direction;
-        }
+    private static double coordinate(Vec v, int i) {
+        return i == 0 ? v.x : (i == 1 ? v.y : v.z);
     }
 }
@@ -0,0 +1,300 @@
+package edu.cg.scene.objects;
+
+import edu.cg.algebra.Ops;
+
+/**
+ * The acceleration structure of a single triangle mesh: a bounding volume hierarchy over its triangles,
+ * split at the median centroid of the longest axis, which builds in O(n log n) even for millions of triangles.
+ * It is stored flattened in depth-first order, like the BVH of the scene, and intersects with the
+ * Moller-Trumbore algorithm straight from the shared vertex array.
+ */
+class MeshBVH {
+    static final double NO_HIT = Double.POSITIVE_INFINITY;
+
+    private static final int MAX_LEAF_SIZE = 4;
+    private static final int STACK_SIZE = 64;
+    private static final double DET_EPSILON = 1e-12;
+    private static final ThreadLocal<int[]> STACKS = ThreadLocal.withInitial(() -> new int[STACK_SIZE]);
+
+    private final double[] vertices;
+    private final int[] indices;
+    // the triangles, reordered so that every leaf holds a contiguous range
+    private final int[] triangles;
+
+    // Per node: minX, minY, minZ, maxX, maxY, maxZ
+    private final double[] nodeBounds;
+    // Per node: interior - index of the right child (left child is the next node), leaf - first triangle
+    private final int[] nodeOffset;
+    // Per node: interior - 0, leaf - number of triangles
+    private final int[] nodeCount;
+    private int numNodes = 0;
+
+    // temporary, only during the build
+    private double[] centroids;
+    private double[] triangleBounds;
+
+    MeshBVH(double[] vertices, int[] indices) {
+        this.vertices = vertices;
+        this.indices = indices;
+        int n = indices.length / 3;
+        triangles = new int[n];
+        centroids = new double[3 * n];
+        triangleBounds = new double[6 * n];
+        for (int tri = 0; tri < n; ++tri) {
+            triangles[tri] = tri;
+            for (int axis = 0; axis < 3; ++axis) {
+                double a = vertex(tri, 0, axis), b = vertex(tri, 1, axis), c = vertex(tri, 2, axis);
+                double min = Math.min(a, Math.min(b, c)), max = Math.max(a, Math.max(b, c));
+                // padded, so rays grazing an axis aligned triangle are not culled by its flat box
+                triangleBounds[6 * tri + axis] = min - Ops.epsilon;
+                triangleBounds[6 * tri + 3 + axis] = max + Ops.epsilon;
+                centroids[3 * tri + axis] = 0.5 * (min + max);
+            }
+        }
+
+        int maxNodes = Math.max(1, 2 * n - 1);
+        nodeBounds = new double[6 * maxNodes];
+        nodeOffset = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        if (n > 0)
+            build(0, n, 0);
+        centroids = null;
+        triangleBounds = null;
+    }
+
+    private double vertex(int tri, int corner, int axis) {
+        return vertices[3 * indices[3 * tri + corner] + axis];
+    }
+
+    private int build(int first, int count, int depth) {
+        int node = numNodes++;
+        setBounds(node, first, count);
+
+        if (count <= MAX_LEAF_SIZE || depth >= STACK_SIZE - 2) {
+            makeLeaf(node, first, count);
+            return node;
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        for (int i = first; i < first + count; ++i) {
+            int c = 3 * triangles[i];
+            minX = Math.min(minX, centroids[c]);
+            maxX = Math.max(maxX, centroids[c]);
+            minY = Math.min(minY, centroids[c + 1]);
+            maxY = Math.max(maxY, centroids[c + 1]);
+            minZ = Math.min(minZ, centroids[c + 2]);
+            maxZ = Math.max(maxZ, centroids[c + 2]);
+        }
+        double extentX = maxX - minX, extentY = maxY - minY, extentZ = maxZ - minZ;
+        int axis = extentX >= extentY && extentX >= extentZ ? 0 : (extentY >= extentZ ? 1 : 2);
+        double bestExtent = Math.max(extentX, Math.max(extentY, extentZ));
+        if (bestExtent <= 0) {
+            // all the centroids coincide, no split can separate them
+            makeLeaf(node, first, count);
+            return node;
+        }
+
+        int mid = first + count / 2;
+        select(first, first + count - 1, mid, axis);
+        build(first, mid - first, depth + 1);
+        nodeOffset[node] = build(mid, first + count - mid, depth + 1);
+        nodeCount[node] = 0;
+        return node;
+    }
+
+    private void makeLeaf(int node, int first, int count) {
+        nodeOffset[node] = first;
+        nodeCount[node] = count;
+    }
+
+    private void setBounds(int node, int first, int count) {
+        double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        for (int i = first; i < first + count; ++i) {
+            int t = 6 * triangles[i];
+            minX = Math.min(minX, triangleBounds[t]);
+            minY = Math.min(minY, triangleBounds[t + 1]);
+            minZ = Math.min(minZ, triangleBounds[t + 2]);
+            maxX = Math.max(maxX, triangleBounds[t + 3]);
+            maxY = Math.max(maxY, triangleBounds[t + 4]);
+            maxZ = Math.max(maxZ, triangleBounds[t + 5]);
+        }
+        int b = 6 * node;
+        nodeBounds[b] = minX;
+        nodeBounds[b + 1] = minY;
+        nodeBounds[b + 2] = minZ;
+        nodeBounds[b + 3] = maxX;
+        nodeBounds[b + 4] = maxY;
+        nodeBounds[b + 5] = maxZ;
+    }
+
+    /**
+     * Quickselect: reorders triangles[from..to] so that the triangle at k has the k-th smallest centroid on the
+     * axis, with smaller centroids before it and larger ones after it.
+     */
+    private void select(int from, int to, int k, int axis) {
+        while (from < to) {
+            double pivot = centroids[3 * triangles[(from + to) >>> 1] + axis];
+            int i = from, j = to;
+            while (i <= j) {
+                while (centroids[3 * triangles[i] + axis] < pivot) ++i;
+                while (centroids[3 * triangles[j] + axis] > pivot) --j;
+                if (i <= j) {
+                    int tmp = triangles[i];
+                    triangles[i++] = triangles[j];
+                    triangles[j--] = tmp;
+                }
+            }
+            if (k <= j)
+                to = j;
+            else if (k >= i)
+                from = i;
+            else
+                return;
+        }
+    }
+
+    int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Finds the closest triangle hit by the ray.
+     *
+     * @return the index of the triangle (as given to the mesh), or -1 if no triangle is hit
+     */
+    int closestTriangle(double ox, double oy, double oz, double dx, double dy, double dz) {
+        if (numNodes == 0)
+            return -1;
+        double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+        double closestT = NO_HIT;
+        int closest = -1;
+
+        int[] stack = STACKS.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (enter(node, ox, oy, oz, ix, iy, iz, closestT) == NO_HIT)
+                continue;
+
+            int count = nodeCount[node];
+            if (count > 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i) {
+                    int tri = triangles[i];
+                    double t = intersect(tri, ox, oy, oz, dx, dy, dz);
+                    // equal hits (on shared edges) go to the first triangle of the mesh, whatever the traversal
+                    if (t < closestT || (t == closestT && t != NO_HIT && tri < closest)) {
+                        closestT = t;
+                        closest = tri;
+                    }
+                }
+                continue;
+            }
+
+            int left = node + 1, right = nodeOffset[node];
+            double tLeft = enter(left, ox, oy, oz, ix, iy, iz, closestT);
+            double tRight = enter(right, ox, oy, oz, ix, iy, iz, closestT);
+            // push the farther child first, so the nearer one is visited first
+            if (tLeft <= tRight) {
+                if (tRight != NO_HIT) stack[top++] = right;
+                if (tLeft != NO_HIT) stack[top++] = left;
+            } else {
+                if (tLeft != NO_HIT) stack[top++] = left;
+                if (tRight != NO_HIT) stack[top++] = right;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Any-hit query, stops at the first triangle hit before maxT.
+     */
+    boolean occludes(double ox, double oy, double oz, double dx, double dy, double dz, double maxT) {
+        if (numNodes == 0)
+            return false;
+        double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+
+        int[] stack = STACKS.get();
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (enter(node, ox, oy, oz, ix, iy, iz, maxT) == NO_HIT)
+                continue;
+
+            int count = nodeCount[node];
+            if (count > 0) {
+                int first = nodeOffset[node];
+                for (int i = first; i < first + count; ++i)
+                    if (intersect(triangles[i], ox, oy, oz, dx, dy, dz) < maxT)
+                        return true;
+            } else {
+                stack[top++] = nodeOffset[node];
+                stack[top++] = node + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Slab test of the ray against the bounds of a node.
+     *
+     * @return the entry parameter of the ray into the node, or NO_HIT if the node is missed within [0, maxT]
+     */
+    private double enter(int node, double ox, double oy, double oz, double ix, double iy, double iz, double maxT) {
+        int i = 6 * node;
+        double tNear = 0, tFar = maxT;
+
+        double t1 = (nodeBounds[i] - ox) * ix, t2 = (nodeBounds[i + 3] - ox) * ix;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+
+        t1 = (nodeBounds[i + 1] - oy) * iy;
+        t2 = (nodeBounds[i + 4] - oy) * iy;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+
+        t1 = (nodeBounds[i + 2] - oz) * iz;
+        t2 = (nodeBounds[i + 5] - oz) * iz;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+
+        return tNear <= tFar ? tNear : NO_HIT;
+    }
+
+    /**
+     * Moller-Trumbore ray / triangle intersection.
+     *
+     * @return the distance along the ray to the triangle, or NO_HIT
+     */
+    double intersect(int tri, double ox, double oy, double oz, double dx, double dy, double dz) {
+        int i0 = 3 * indices[3 * tri], i1 = 3 * indices[3 * tri + 1], i2 = 3 * indices[3 * tri + 2];
+        double v0x = vertices[i0], v0y = vertices[i0 + 1], v0z = vertices[i0 + 2];
+        double e1x = vertices[i1] - v0x, e1y = vertices[i1 + 1] - v0y, e1z = vertices[i1 + 2] - v0z;
+        double e2x = vertices[i2] - v0x, e2y = vertices[i2 + 1] - v0y, e2z = vertices[i2 + 2] - v0z;
+
+        // p = d x e2
+        double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        double det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) < DET_EPSILON)
+            return NO_HIT; // the ray is parallel to the triangle
+        double invDet = 1.0 / det;
+
+        double sx = ox - v0x, sy = oy - v0y, sz = oz - v0z;
+        double u = (sx * px + sy * py + sz * pz) * invDet;
+        if (u < 0 || u > 1)
+            return NO_HIT;
+
+        // q = s x e1
+        double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        double v = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (v < 0 || u + v > 1)
+            return NO_HIT;
+
+        double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        return t > Ops.epsilon ? t : NO_HIT;
+    }
+}
@@ -0,0 +1,194 @@
+package edu.cg.scene.objects;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Reads triangle meshes from Wavefront OBJ files.
+ * Supports vertices (v), vertex normals (vn) and faces (f) with any of the v, v/vt, v//vn and v/vt/vn forms,
+ * including negative (relative) indices. Polygons are split into triangle fans. Texture coordinates, groups,
+ * smoothing groups and materials are ignored.
+ * The file is read line by line into primitive arrays, so large files never hold a Java object per element.
+ */
+public class ObjLoader {
+    private final GrowingDoubles vertices = new GrowingDoubles();
+    private final GrowingDoubles normals = new GrowingDoubles();
+    private final GrowingInts indices = new GrowingInts();
+    private final GrowingInts normalIndices = new GrowingInts();
+    private boolean allCornersHaveNormals = true;
+    private int lineNumber = 0;
+    // the tokens of the current line, reused from line to line
+    private String[] tokens = new String[16];
+    private int numTokens = 0;
+    private final GrowingInts faceVertices = new GrowingInts();
+    private final GrowingInts faceNormals = new GrowingInts();
+
+    private ObjLoader() {
+    }
+
+    /**
+     * @param path - the OBJ file
+     * @return a mesh with the triangles of the file, and its vertex normals if every face has them
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public static TriangleMesh load(String path) throws IOException {
+        ObjLoader loader = new ObjLoader();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                loader.parseLine(line);
+        } catch (NumberFormatException e) {
+            throw new IOException(path + ":" + loader.lineNumber + ": " + e.getMessage(), e);
+        }
+        if (loader.indices.size() == 0)
+            throw new IOException(path + " has no faces");
+        return loader.toMesh();
+    }
+
+    private void parseLine(String line) throws IOException {
+        ++lineNumber;
+        tokenize(line);
+        if (numTokens == 0)
+            return;
+        switch (tokens[0]) {
+        case "v":
+            require(4);
+            vertices.add(Double.parseDouble(tokens[1]));
+            vertices.add(Double.parseDouble(tokens[2]));
+            vertices.add(Double.parseDouble(tokens[3]));
+            break;
+        case "vn":
+            require(4);
+            normals.add(Double.parseDouble(tokens[1]));
+            normals.add(Double.parseDouble(tokens[2]));
+            normals.add(Double.parseDouble(tokens[3]));
+            break;
+        case "f":
+            require(4);
+            parseFace();
+            break;
+        default:
+            // comments, texture coordinates, groups and materials
+        }
+    }
+
+    /**
+     * Splits the line at white spaces, without the regular expression machinery of String.split.
+     */
+    private void tokenize(String line) {
+        numTokens = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(line.charAt(i)))
+                ++i;
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i)))
+                ++i;
+            if (i > start) {
+                if (numTokens == tokens.length)
+                    tokens = Arrays.copyOf(tokens, 2 * numTokens);
+                tokens[numTokens++] = line.substring(start, i);
+            }
+        }
+    }
+
+    private void require(int count) throws IOException {
+        if (numTokens < count)
+            throw new IOException("line " + lineNumber + ": expected " + (count - 1) + " values after " + tokens[0]);
+    }
+
+    private void parseFace() throws IOException {
+        faceVertices.clear();
+        faceNormals.clear();
+        for (int i = 1; i < numTokens; ++i) {
+            String corner = tokens[i];
+            int slash = corner.indexOf('/');
+            String vertex = slash < 0 ? corner : corner.substring(0, slash);
+            faceVertices.add(resolve(Integer.parseInt(vertex), vertices.size() / 3));
+            int secondSlash = slash < 0 ? -1 : corner.indexOf('/', slash + 1);
+            if (secondSlash >= 0 && secondSlash + 1 < corner.length()) {
+                faceNormals.add(resolve(Integer.parseInt(corner.substring(secondSlash + 1)), normals.size() / 3));
+            } else {
+                faceNormals.add(-1);
+                allCornersHaveNormals = false;
+            }
+        }
+        // a fan around the first corner
+        for (int i = 1; i + 1 < faceVertices.size(); ++i) {
+            indices.add(faceVertices.get(0));
+            indices.add(faceVertices.get(i));
+            indices.add(faceVertices.get(i + 1));
+            normalIndices.add(faceNormals.get(0));
+            normalIndices.add(faceNormals.get(i));
+            normalIndices.add(faceNormals.get(i + 1));
+        }
+    }
+
+    /**
+     * OBJ indices start at 1, negative indices count back from the last element read so far.
+     */
+    private int resolve(int index, int count) throws IOException {
+        int ans = index > 0 ? index - 1 : count + index;
+        if (index == 0 || ans < 0 || ans >= count)
+            throw new IOException("line " + lineNumber + ": index " + index + " out of range");
+        return ans;
+    }
+
+    private TriangleMesh toMesh() {
+        TriangleMesh mesh = new TriangleMesh(vertices.toArray(), indices.toArray());
+        if (allCornersHaveNormals && normals.size() > 0)
+            mesh.initNormals(normals.toArray(), normalIndices.toArray());
+        return mesh;
+    }
+
+    private static class GrowingDoubles {
+        private double[] values = new double[1024];
+        private int size = 0;
+
+        void add(double value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class GrowingInts {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
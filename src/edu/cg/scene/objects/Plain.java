@@ -1,5 +1,6 @@
 package edu.cg.scene.objects;
 
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ops;
 import edu.cg.algebra.Point;
@@ -10,7 +11,22 @@ public class Plain extends Shape {
 	//implicit form of a plain: ax + by + cz + d = 0;
 	private double a, b, c, d;
 	
-	private transient Vec normal = null;
+	//computed on first use, since Gson sets the coefficients after the constructor
+	private transient Normals normals = null;
+	
+	/**
+	 * The unit normals of both sides of the plain. Immutable, so it is safely shared by the render threads
+	 * without a lock: a thread that sees no normals yet computes the same ones.
+	 */
+	private static final class Normals {
+		final Vec normal;
+		final Vec negNormal;
+		
+		Normals(Vec normal) {
+			this.normal = normal;
+			this.negNormal = normal.neg();
+		}
+	}
 	
 	public Plain(double a, double b, double c, double d) {
 		this.a = a;
@@ -33,27 +49,63 @@ public class Plain extends Shape {
 		return "Plain: a = " + a + ", b = " + b + ", c = " + c + ", d = " + d + endl;
 	}
 	
-	public synchronized Vec normal() {
-		if(normal == null)
-			normal = new Vec(a, b, c).normalize();
-		return normal;
+	/**
+	 * @return the coefficients {a, b, c, d} of the implicit form ax + by + cz + d = 0
+	 */
+	public double[] getCoefficients() {
+		return new double[] { a, b, c, d };
 	}
 	
+	private Normals normals() {
+		Normals ans = normals;
+		if(ans == null) {
+			ans = new Normals(new Vec(a, b, c).normalize());
+			normals = ans;
+		}
+		return ans;
+	}
+	
+	public Vec normal() {
+		return normals().normal;
+	}
 	
 	public Vec normal(Ray ray) {
-		return ray.direction().dot(normal()) < 0 ? normal() : normal().neg();
+		Normals n = normals();
+		return ray.direction().dot(n.normal) < 0 ? n.normal : n.negNormal;
 	}
 	
 	public double substitute(Point p) {
-		Vec abc = new Vec(a, b, c);
-		return abc.dot(p.toVec()) + d;
+		return a * p.x + b * p.y + c * p.z + d;
+	}
+	
+	@Override
+	public BoundingBox bounds() {
+		return BoundingBox.infinite();
+	}
+	
+	@Override
+	public boolean occludes(Ray ray, double maxT) {
+		Vec v = ray.direction();
+		double t = -substitute(ray.source()) / (a * v.x + b * v.y + c * v.z);
+		return t > Ops.epsilon & t < Ops.infinity & t < maxT;
 	}
 	
 	@Override
 	public Hit intersect(Ray ray) {
-		Vec abc = new Vec(a, b, c);
+		double t = intersectT(ray);
+		return t == NO_HIT ? null : hitAt(ray, t);
+	}
+	
+	@Override
+	public double intersectT(Ray ray) {
+		Vec v = ray.direction();
 		
-		double t = -substitute(ray.source()) / ray.direction().dot(abc);
-		return t > Ops.epsilon & t < Ops.infinity ? new Hit(t, normal(ray)) : null;
+		double t = -substitute(ray.source()) / (a * v.x + b * v.y + c * v.z);
+		return t > Ops.epsilon & t < Ops.infinity ? t : NO_HIT;
+	}
+	
+	@Override
+	public Hit hitAt(Ray ray, double t) {
+		return new Hit(t, normal(ray));
 	}
 }
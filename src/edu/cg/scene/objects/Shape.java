@@ -1,7 +1,56 @@
 package edu.cg.scene.objects;
 
+import edu.cg.algebra.BoundingBox;
+import edu.cg.algebra.Hit;
+import edu.cg.algebra.Ray;
 
 public abstract class Shape implements Intersectable {
 	// An abstract class the represents a shape.
 	// You can add abstract methods here.
+	
+	/**
+	 * The distance returned by intersectT for a ray that misses the shape.
+	 */
+	public static final double NO_HIT = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Returns an axis aligned box that contains the whole shape.
+	 * Unbounded shapes should return an infinite box, see BoundingBox.infinite().
+	 * 
+	 * @return the bounds of the shape.
+	 */
+	public abstract BoundingBox bounds();
+	
+	/**
+	 * Checks if the ray hits the shape before travelling the given distance.
+	 * This is the shadow ray query, so implementations should neither compute normals nor allocate.
+	 * 
+	 * @param ray the specified ray
+	 * @param maxT the distance along the ray beyond which hits are ignored
+	 * @return true if the ray hits the shape at some t < maxT.
+	 */
+	public abstract boolean occludes(Ray ray, double maxT);
+	
+	/**
+	 * Finds the closest hit of the ray without building its hit record, so that the surfaces that lose
+	 * the closest hit search allocate nothing. Shapes should override it together with hitAt.
+	 * 
+	 * @param ray the specified ray
+	 * @return the distance along the ray to the hit returned by intersect, or NO_HIT.
+	 */
+	public double intersectT(Ray ray) {
+		Hit hit = intersect(ray);
+		return hit == null ? NO_HIT : hit.t();
+	}
+	
+	/**
+	 * Builds the hit record (normal and inside flag) of a ray that hits the shape.
+	 * 
+	 * @param ray the specified ray
+	 * @param t the distance returned by intersectT for this ray
+	 * @return the hit returned by intersect.
+	 */
+	public Hit hitAt(Ray ray, double t) {
+		return intersect(ray);
+	}
 }
@@ -1,6 +1,5 @@
 package edu.cg.scene.objects;
 
-import edu.cg.UnimplementedMethodException;
 import edu.cg.algebra.*;
 
 public class Sphere extends Shape {
@@ -32,29 +31,77 @@ public class Sphere extends Shape {
         return this;
     }
 
+    public Point getCenter() {
+        return new Point(center.x, center.y, center.z);
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    @Override
+    public BoundingBox bounds() {
+        return new BoundingBox(center.x - radius, center.y - radius, center.z - radius,
+                center.x + radius, center.y + radius, center.z + radius);
+    }
+
+    @Override
+    public boolean occludes(Ray ray, double maxT) {
+        return intersectT(ray) < maxT;
+    }
+
     @Override
     public Hit intersect(Ray ray) {
-        double b = 2.0 * ray.direction().dot(ray.source().sub(center));
-        double c = ray.source().distSqr(center) - Math.pow(radius, 2.0);
-        double sqr = Math.pow(b, 2.0) - 4 * c;
+        double t = intersectT(ray);
+        return t == NO_HIT ? null : hitAt(ray, t);
+    }
+
+    @Override
+    public double intersectT(Ray ray) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double ox = p.x - center.x, oy = p.y - center.y, oz = p.z - center.z;
+        double b = 2.0 * (v.x * ox + v.y * oy + v.z * oz);
+        double c = (ox * ox + oy * oy + oz * oz) - radius * radius;
+        double sqr = b * b - 4 * c;
 
         // There are no roots, the ray does not intersect the sphere
-        if (sqr < 0) return null;
+        if (sqr < 0) return NO_HIT;
 
         double t1 = (-b + Math.sqrt(sqr)) / 2.0;
         double t2 = (-b - Math.sqrt(sqr)) / 2.0;
 
         // Since Math.sqrt(sqr) > 0 then if t1 < epsilon then t2 is < epsilon
-        if (t1 < Ops.epsilon) return null;
+        if (t1 < Ops.epsilon) return NO_HIT;
 
-        Vec normalToSurface;
         // If t2 is negative choose t1, otherwise t2 is the minimum
+        return t2 < Ops.epsilon ? t1 : t2;
+    }
+
+    @Override
+    public Hit hitAt(Ray ray, double t) {
+        // the ray starts within the sphere if its nearer root is behind it
+        Point p = ray.source();
+        Vec v = ray.direction();
+        double ox = p.x - center.x, oy = p.y - center.y, oz = p.z - center.z;
+        double b = 2.0 * (v.x * ox + v.y * oy + v.z * oz);
+        double c = (ox * ox + oy * oy + oz * oz) - radius * radius;
+        double t2 = (-b - Math.sqrt(b * b - 4 * c)) / 2.0;
+
         if (t2 < Ops.epsilon) {
-            normalToSurface = ray.add(t1).sub(center).normalize().neg();
-            return new Hit(t1, normalToSurface).setIsWithin(true);
+            return new Hit(t, normalAt(ray, t).negInPlace()).setIsWithin(true);
         } else {
-            normalToSurface = ray.add(t2).sub(center).normalize();
-            return new Hit(t2, normalToSurface).setIsWithin(false);
+            return new Hit(t, normalAt(ray, t)).setIsWithin(false);
         }
     }
+
+    /**
+     * @return the outwards normal at the point p0 + t*direction of the ray, as a new vector
+     */
+    private Vec normalAt(Ray ray, double t) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        return new Vec(p.x + t * v.x - center.x, p.y + t * v.y - center.y, p.z + t * v.z - center.z)
+                .normalizeInPlace();
+    }
 }
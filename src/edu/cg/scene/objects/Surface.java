@@ -1,6 +1,7 @@
 package edu.cg.scene.objects;
 
 import edu.cg.UnimplementedMethodException;
+import edu.cg.algebra.BoundingBox;
 import edu.cg.algebra.Hit;
 import edu.cg.algebra.Ray;
 import edu.cg.algebra.Vec;
@@ -35,6 +36,38 @@ public class Surface implements Intersectable {
 		return hit;
 	}
 	
+	/**
+	 * @return the distance along the ray to the surface, or Shape.NO_HIT (see Shape.intersectT)
+	 */
+	public double intersectT(Ray ray) {
+		return shape.intersectT(ray);
+	}
+	
+	/**
+	 * Builds the hit record of a ray that hits the surface at t (see Shape.hitAt)
+	 */
+	public Hit hitAt(Ray ray, double t) {
+		Hit hit = shape.hitAt(ray, t);
+		hit.setSurface(this);
+		return hit;
+	}
+	
+	public Shape getShape() {
+		return shape;
+	}
+	
+	public Material getMaterial() {
+		return material;
+	}
+	
+	public boolean occludes(Ray ray, double maxT) {
+		return shape.occludes(ray, maxT);
+	}
+	
+	public BoundingBox bounds() {
+		return shape.bounds();
+	}
+	
 	public Vec Ka() {
 		return material.Ka;
 	}
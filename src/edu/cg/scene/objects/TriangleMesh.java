@@ -0,0 +1,253 @@
+package edu.cg.scene.objects;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import edu.cg.algebra.*;
+
+/**
+ * A mesh of triangles in indexed form: the vertices are stored once, in a shared array of coordinates,
+ * and every triangle is three indices into it. Optional per vertex normals (e.g. from an OBJ file) are
+ * interpolated over the triangles for smooth shading, otherwise every triangle is shaded with its own normal.
+ * <p>
+ * A mesh is either given its arrays directly, which are then serialized with it, or refers to an OBJ file
+ * (see initObjFile) which is loaded on first use, so that scene files only hold the path of large meshes.
+ * The triangles of a mesh are accelerated by a BVH of their own.
+ * <p>
+ * Triangles are expected in counter clockwise order when seen from outside (as in OBJ files), so rays that hit
+ * the back of a triangle of a closed mesh are considered within the mesh.
+ */
+public class TriangleMesh extends Shape {
+    private String objFile = null;
+    private double[] vertices = null; //x, y, z per vertex
+    private int[] indices = null; //3 vertex indices per triangle
+    private double[] normals = null; //x, y, z per normal
+    private int[] normalIndices = null; //3 normal indices per triangle
+
+    private transient volatile Mesh mesh = null;
+
+    /**
+     * The geometry in use, loaded (from the arrays or the OBJ file) with its acceleration structure.
+     */
+    static class Mesh {
+        final double[] vertices;
+        final int[] indices;
+        final double[] normals;
+        final int[] normalIndices;
+        final BoundingBox bounds;
+        final MeshBVH bvh;
+
+        Mesh(double[] vertices, int[] indices, double[] normals, int[] normalIndices) {
+            this.vertices = vertices;
+            this.indices = indices;
+            this.normals = normals;
+            this.normalIndices = normalIndices;
+            double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+            for (int i = 0; i < vertices.length; i += 3) {
+                minX = Math.min(minX, vertices[i]);
+                minY = Math.min(minY, vertices[i + 1]);
+                minZ = Math.min(minZ, vertices[i + 2]);
+                maxX = Math.max(maxX, vertices[i]);
+                maxY = Math.max(maxY, vertices[i + 1]);
+                maxZ = Math.max(maxZ, vertices[i + 2]);
+            }
+            this.bounds = new BoundingBox(minX, minY, minZ, maxX, maxY, maxZ);
+            this.bvh = new MeshBVH(vertices, indices);
+        }
+    }
+
+    /**
+     * @param vertices - the coordinates of the vertices, x, y, z per vertex
+     * @param indices - the vertices of the triangles, 3 indices per triangle
+     */
+    public TriangleMesh(double[] vertices, int[] indices) {
+        if (vertices.length % 3 != 0 || indices.length % 3 != 0)
+            throw new IllegalArgumentException("The vertices and indices must come in triplets");
+        for (int index : indices)
+            if (index < 0 || 3 * index >= vertices.length)
+                throw new IllegalArgumentException("Vertex index out of range: " + index);
+        this.vertices = vertices;
+        this.indices = indices;
+    }
+
+    public TriangleMesh() {
+        this(new double[0], new int[0]);
+    }
+
+    @Override
+    public String toString() {
+        String endl = System.lineSeparator();
+        return "Triangle mesh:" + endl + (objFile != null ? "OBJ file: " + objFile + endl :
+                "Triangles: " + indices.length / 3 + endl);
+    }
+
+    //Initializers
+    /**
+     * Sets per vertex normals, interpolated over the triangles.
+     *
+     * @param normals - the normals, x, y, z per normal
+     * @param normalIndices - the normals of the corners of the triangles, 3 indices per triangle
+     */
+    public TriangleMesh initNormals(double[] normals, int[] normalIndices) {
+        if (normalIndices.length != indices.length)
+            throw new IllegalArgumentException("Every corner of every triangle needs a normal");
+        for (int index : normalIndices)
+            if (index < 0 || 3 * index >= normals.length)
+                throw new IllegalArgumentException("Normal index out of range: " + index);
+        this.normals = normals;
+        this.normalIndices = normalIndices;
+        this.mesh = null;
+        return this;
+    }
+
+    /**
+     * Makes this mesh refer to an OBJ file, which is read the first time the mesh is used.
+     * Only the path is serialized.
+     */
+    public TriangleMesh initObjFile(String objFile) {
+        this.objFile = objFile;
+        this.vertices = null;
+        this.indices = null;
+        this.normals = null;
+        this.normalIndices = null;
+        this.mesh = null;
+        return this;
+    }
+
+    public String getObjFile() {
+        return objFile;
+    }
+
+    /**
+     * The arrays of a mesh that was given its geometry (and not an OBJ file), as stored, without copying.
+     * Each is null for a mesh that refers to an OBJ file, and the normals are null for a mesh without normals.
+     */
+    public double[] getVertices() {
+        return vertices;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public double[] getNormals() {
+        return normals;
+    }
+
+    public int[] getNormalIndices() {
+        return normalIndices;
+    }
+
+    public int numTriangles() {
+        return mesh().indices.length / 3;
+    }
+
+    public int numVertices() {
+        return mesh().vertices.length / 3;
+    }
+
+    /**
+     * Loads the mesh (reading the OBJ file if needed) and builds its BVH, once.
+     *
+     * @throws UncheckedIOException if the OBJ file can't be read
+     */
+    Mesh mesh() {
+        Mesh ans = mesh;
+        if (ans == null) {
+            synchronized (this) {
+                ans = mesh;
+                if (ans == null) {
+                    ans = load();
+                    mesh = ans;
+                }
+            }
+        }
+        return ans;
+    }
+
+    private Mesh load() {
+        if (objFile == null)
+            return new Mesh(vertices, indices, normals, normalIndices);
+        try {
+            TriangleMesh loaded = ObjLoader.load(objFile);
+            return new Mesh(loaded.vertices, loaded.indices, loaded.normals, loaded.normalIndices);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't load " + objFile, e);
+        }
+    }
+
+    @Override
+    public BoundingBox bounds() {
+        return mesh().bounds;
+    }
+
+    @Override
+    public boolean occludes(Ray ray, double maxT) {
+        Point p = ray.source();
+        Vec v = ray.direction();
+        return mesh().bvh.occludes(p.x, p.y, p.z, v.x, v.y, v.z, maxT);
+    }
+
+    @Override
+    public Hit intersect(Ray ray) {
+        Mesh m = mesh();
+        Point p = ray.source();
+        Vec v = ray.direction();
+        int tri = m.bvh.closestTriangle(p.x, p.y, p.z, v.x, v.y, v.z);
+        if (tri < 0)
+            return null;
+        return hit(m, ray, tri, m.bvh.intersect(tri, p.x, p.y, p.z, v.x, v.y, v.z));
+    }
+
+    @Override
+    public double intersectT(Ray ray) {
+        Mesh m = mesh();
+        Point p = ray.source();
+        Vec v = ray.direction();
+        int tri = m.bvh.closestTriangle(p.x, p.y, p.z, v.x, v.y, v.z);
+        return tri < 0 ? NO_HIT : m.bvh.intersect(tri, p.x, p.y, p.z, v.x, v.y, v.z);
+    }
+
+    /**
+     * Builds the hit record of the closest triangle of the ray, hit at t
+     */
+    private static Hit hit(Mesh m, Ray ray, int tri, double t) {
+        Vec v = ray.direction();
+        int i0 = 3 * m.indices[3 * tri], i1 = 3 * m.indices[3 * tri + 1], i2 = 3 * m.indices[3 * tri + 2];
+        double[] vs = m.vertices;
+        Vec e1 = new Vec(vs[i1] - vs[i0], vs[i1 + 1] - vs[i0 + 1], vs[i1 + 2] - vs[i0 + 2]);
+        Vec e2 = new Vec(vs[i2] - vs[i0], vs[i2 + 1] - vs[i0 + 1], vs[i2 + 2] - vs[i0 + 2]);
+        Vec faceNormal = e1.cross(e2);
+        boolean isWithin = faceNormal.dot(v) > 0;
+
+        Vec normal;
+        if (m.normals == null) {
+            normal = faceNormal.normalizeInPlace();
+        } else {
+            // barycentric coordinates of the hit point
+            Point hitPoint = ray.add(t);
+            Vec toHit = new Vec(hitPoint.x - vs[i0], hitPoint.y - vs[i0 + 1], hitPoint.z - vs[i0 + 2]);
+            double d00 = e1.dot(e1), d01 = e1.dot(e2), d11 = e2.dot(e2);
+            double d20 = toHit.dot(e1), d21 = toHit.dot(e2);
+            double denom = d00 * d11 - d01 * d01;
+            double b1 = (d11 * d20 - d01 * d21) / denom;
+            double b2 = (d00 * d21 - d01 * d20) / denom;
+            double b0 = 1 - b1 - b2;
+            normal = new Vec();
+            normal.addInPlace(b0, vertexNormal(m, 3 * tri));
+            normal.addInPlace(b1, vertexNormal(m, 3 * tri + 1));
+            normal.addInPlace(b2, vertexNormal(m, 3 * tri + 2));
+            normal.normalizeInPlace();
+        }
+        // the normal always faces the ray, like the normal of a box hit from within
+        if (isWithin)
+            normal.negInPlace();
+        return new Hit(t, normal).setIsWithin(isWithin);
+    }
+
+    private static Vec vertexNormal(Mesh m, int corner) {
+        int n = 3 * m.normalIndices[corner];
+        return new Vec(m.normals[n], m.normals[n + 1], m.normals[n + 2]);
+    }
+}